@@ -0,0 +1,90 @@
+package com.matrix_factorization.benchmark;
+
+import com.matrix_factorization.DefaultAlternatingLeastSquares;
+import com.matrix_factorization.FactorMatrix;
+import com.matrix_factorization.InteractionMatrix;
+import com.matrix_factorization.Nd4jAlternatingLeastSquares;
+import com.matrix_factorization.ParallelAlternatingLeastSquares;
+import com.matrix_factorization.Precision;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One user half-sweep, one item half-sweep and one loss evaluation per implementation. The ND4J solver scales with
+ * nItems^2 per user, so keep its shapes small or exclude it with -p implementation=default,parallel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AlternatingLeastSquaresBenchmark {
+    @Param({"default", "parallel", "nd4j"})
+    public String implementation;
+
+    @Param({"1000"})
+    public int nUsers;
+
+    @Param({"500"})
+    public int nItems;
+
+    @Param({"32", "64"})
+    public int nFactor;
+
+    @Param({"0.01"})
+    public double density;
+
+    @Param({"DOUBLE"})
+    public Precision precision;
+
+    private static final double LAMBDA = 0.1, ALPHA = 40;
+
+    private DefaultAlternatingLeastSquares als;
+    private FactorMatrix x, y;
+    private InteractionMatrix r;
+
+    private Nd4jAlternatingLeastSquares nd4jAls;
+    private INDArray nd4jX, nd4jY, nd4jR;
+
+    @Setup
+    public void setup() {
+        if (this.implementation.equals("nd4j")) {
+            this.nd4jAls = new Nd4jAlternatingLeastSquares();
+            this.nd4jR = Nd4j.create(SyntheticData.denseRatings(this.nUsers, this.nItems, this.density));
+            this.nd4jX = Nd4j.create(SyntheticData.matrix(this.nUsers, this.nFactor, 0.01)).castTo(Nd4j.defaultFloatingPointType());
+            this.nd4jY = Nd4j.create(SyntheticData.matrix(this.nItems, this.nFactor, 0.01)).castTo(Nd4j.defaultFloatingPointType());
+        } else {
+            this.als = this.implementation.equals("parallel") ? new ParallelAlternatingLeastSquares() : new DefaultAlternatingLeastSquares();
+            this.r = SyntheticData.ratings(this.nUsers, this.nItems, this.density);
+            this.x = SyntheticData.factors(this.nUsers, this.nFactor, this.precision);
+            this.y = SyntheticData.factors(this.nItems, this.nFactor, this.precision);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (this.als instanceof ParallelAlternatingLeastSquares) ((ParallelAlternatingLeastSquares) this.als).shutdown();
+    }
+
+    @Benchmark
+    public void optimizeUser() {
+        if (this.als != null) this.als.optimizeUser(this.x, this.y, this.r, this.nUsers, this.nFactor, LAMBDA, ALPHA);
+        else this.nd4jAls.optimizeUser(this.nd4jX, this.nd4jY, this.nd4jR, this.nUsers, this.nFactor, LAMBDA, ALPHA);
+    }
+
+    @Benchmark
+    public void optimizeItem() {
+        if (this.als != null) this.als.optimizeItem(this.x, this.y, this.r, this.nItems, this.nFactor, LAMBDA, ALPHA);
+        else this.nd4jAls.optimizeItem(this.nd4jX, this.nd4jY, this.nd4jR, this.nItems, this.nFactor, LAMBDA, ALPHA);
+    }
+
+    @Benchmark
+    public double[] loss() {
+        if (this.als != null) return this.als.loss(this.x, this.y, this.r, LAMBDA, ALPHA);
+        return this.nd4jAls.loss(this.nd4jX, this.nd4jY, this.nd4jR, LAMBDA, ALPHA);
+    }
+}
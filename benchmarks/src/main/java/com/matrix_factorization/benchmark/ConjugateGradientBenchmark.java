@@ -0,0 +1,63 @@
+package com.matrix_factorization.benchmark;
+
+import com.matrix_factorization.DefaultAlternatingLeastSquares;
+import com.matrix_factorization.FactorMatrix;
+import com.matrix_factorization.InteractionMatrix;
+import com.matrix_factorization.Precision;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One full sweep with the exact Cholesky row solve (cgSteps = 0) and with warm-started conjugate-gradient iterations,
+ * across factor counts. Setup trains a few sweeps from the same start and prints the resulting loss, so the speedup
+ * of every cgSteps can be read against its loss next to the exact solve's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConjugateGradientBenchmark {
+    /** 0 solves exactly. */
+    @Param({"0", "2", "3"})
+    public int cgSteps;
+
+    @Param({"5000"})
+    public int nUsers;
+
+    @Param({"2000"})
+    public int nItems;
+
+    @Param({"50", "100", "200"})
+    public int nFactor;
+
+    @Param({"0.005"})
+    public double density;
+
+    private static final double LAMBDA = 0.1, ALPHA = 40;
+    private static final int TRAINING_SWEEPS = 5;
+
+    private DefaultAlternatingLeastSquares als;
+    private FactorMatrix x, y;
+    private InteractionMatrix r;
+
+    @Setup
+    public void setup() {
+        this.als = new DefaultAlternatingLeastSquares();
+        this.als.setConjugateGradientSteps(this.cgSteps);
+        this.r = SyntheticData.ratings(this.nUsers, this.nItems, this.density);
+        this.x = SyntheticData.factors(this.nUsers, this.nFactor, Precision.DOUBLE);
+        this.y = SyntheticData.factors(this.nItems, this.nFactor, Precision.DOUBLE);
+        for (int step = 0; step < TRAINING_SWEEPS; ++step) sweep();
+        System.out.printf("%ncgSteps=%d nFactor=%d: loss after %d sweeps %.6g%n", this.cgSteps, this.nFactor, TRAINING_SWEEPS,
+                this.als.loss(this.x, this.y, this.r, LAMBDA, ALPHA)[3]);
+    }
+
+    @Benchmark
+    public void sweep() {
+        this.als.optimizeUser(this.x, this.y, this.r, this.nUsers, this.nFactor, LAMBDA, ALPHA);
+        this.als.optimizeItem(this.x, this.y, this.r, this.nItems, this.nFactor, LAMBDA, ALPHA);
+    }
+}
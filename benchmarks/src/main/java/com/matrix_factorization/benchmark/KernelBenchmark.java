@@ -0,0 +1,57 @@
+package com.matrix_factorization.benchmark;
+
+import com.matrix_factorization.Kernels;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The scalar and Vector API {@link Kernels} side by side on one contiguous nRows * nFactor factor block: scoring every
+ * row against a query, as top-k recommendation does, and the rank-k Gram update of an ALS sweep. The vector kernels
+ * need the jdk.incubator.vector module, which the forked JVM is given here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class KernelBenchmark {
+    @Param({"scalar", "vector"})
+    public String kernel;
+
+    @Param({"10000"})
+    public int nRows;
+
+    @Param({"32", "64", "128"})
+    public int nFactor;
+
+    private Kernels kernels;
+    private double[] factors, query, scores;
+    private double[][] gram;
+
+    @Setup
+    public void setup() {
+        this.kernels = this.kernel.equals("vector") ? Kernels.vector() : Kernels.scalar();
+        if (this.kernels == null) throw new IllegalStateException("the Vector API is not available on this JVM");
+        double[][] matrix = SyntheticData.matrix(this.nRows, this.nFactor, 1);
+        this.factors = new double[this.nRows * this.nFactor];
+        for (int i = 0; i < this.nRows; ++i) System.arraycopy(matrix[i], 0, this.factors, i * this.nFactor, this.nFactor);
+        this.query = SyntheticData.matrix(1, this.nFactor, 1)[0];
+        this.scores = new double[this.nRows];
+        this.gram = new double[this.nFactor][this.nFactor];
+    }
+
+    @Benchmark
+    public double[] score() {
+        for (int i = 0; i < this.nRows; ++i)
+            this.scores[i] = this.kernels.dot(this.factors, i * this.nFactor, this.query, 0, this.nFactor);
+        return this.scores;
+    }
+
+    @Benchmark
+    public double[][] gram() {
+        this.kernels.addGram(this.factors, 0, this.nRows, this.nFactor, this.gram);
+        return this.gram;
+    }
+}
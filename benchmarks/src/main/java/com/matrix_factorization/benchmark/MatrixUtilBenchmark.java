@@ -0,0 +1,94 @@
+package com.matrix_factorization.benchmark;
+
+import com.matrix_factorization.CholeskySolver;
+import com.matrix_factorization.MatrixUtil;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.inverse.InvertMatrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Dense kernels at ALS shapes: nRows * nFactor factor blocks and nFactor * nFactor normal equations. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatrixUtilBenchmark {
+    @Param({"2000"})
+    public int nRows;
+
+    @Param({"32", "64", "128"})
+    public int nFactor;
+
+    private double[][] factors, factorsT, system, scratch;
+    private double[] rhs, solution, diagonal;
+    private INDArray nd4jFactors, nd4jFactorsT, nd4jSystem;
+
+    @Setup
+    public void setup() {
+        this.factors = SyntheticData.matrix(this.nRows, this.nFactor, 1);
+        this.factorsT = MatrixUtil.transpose(this.factors);
+        this.system = SyntheticData.normalEquation(this.nFactor, 4 * this.nFactor, 0.1);
+        this.scratch = new double[this.nFactor][this.nFactor];
+        this.rhs = SyntheticData.matrix(1, this.nFactor, 1)[0];
+        this.solution = new double[this.nFactor];
+        this.diagonal = new double[this.nFactor];
+        this.nd4jFactors = Nd4j.create(this.factors);
+        this.nd4jFactorsT = this.nd4jFactors.transpose().dup();
+        this.nd4jSystem = Nd4j.create(this.system);
+    }
+
+    /** nFactor * nRows times nRows * nFactor, the shape of YtY. */
+    @Benchmark
+    public double[][] product() {
+        return MatrixUtil.product(this.factorsT, this.factors);
+    }
+
+    @Benchmark
+    public double[][] gram() {
+        return MatrixUtil.gram(this.factors, this.scratch);
+    }
+
+    /** nRows * nFactor times nFactor * nRows, the shape of predict() for one block of users. */
+    @Benchmark
+    public double[][] productTranspose() {
+        return MatrixUtil.productTranspose(this.factors, this.factors);
+    }
+
+    @Benchmark
+    public INDArray nd4jProduct() {
+        return this.nd4jFactorsT.mmul(this.nd4jFactors);
+    }
+
+    @Benchmark
+    public double[][] inverse() {
+        return MatrixUtil.inverse(copy(this.system));
+    }
+
+    @Benchmark
+    public double[] solve() {
+        return MatrixUtil.solve(copy(this.system), this.rhs);
+    }
+
+    @Benchmark
+    public double[] cholesky() {
+        for (int f = 0; f < this.nFactor; ++f) System.arraycopy(this.system[f], 0, this.scratch[f], 0, this.nFactor);
+        System.arraycopy(this.rhs, 0, this.solution, 0, this.nFactor);
+        CholeskySolver.solve(this.scratch, this.solution, this.diagonal);
+        return this.solution;
+    }
+
+    @Benchmark
+    public INDArray nd4jInverse() {
+        return InvertMatrix.invert(this.nd4jSystem, false);
+    }
+
+    private static double[][] copy(double[][] matrix) {
+        double[][] copy = new double[matrix.length][];
+        for (int i = 0; i < matrix.length; ++i) copy[i] = matrix[i].clone();
+        return copy;
+    }
+}
@@ -0,0 +1,76 @@
+package com.matrix_factorization.benchmark;
+
+import com.matrix_factorization.DefaultMatrixFactorization;
+import com.matrix_factorization.MatrixFactorization;
+import com.matrix_factorization.Nd4jMatrixFactorization;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** Inference and persistence through the public {@link MatrixFactorization} API of both implementations. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ModelBenchmark {
+    @Param({"default", "nd4j"})
+    public String implementation;
+
+    /** Binary {@link com.matrix_factorization.ModelFile} or the CSV-in-ZIP export. */
+    @Param({"bin", "zip"})
+    public String format;
+
+    @Param({"2000"})
+    public int nUsers;
+
+    @Param({"2000"})
+    public int nItems;
+
+    @Param({"64"})
+    public int nFactor;
+
+    @Param({"0.01"})
+    public double density;
+
+    private MatrixFactorization model;
+    private String modelPath;
+    private int[] users;
+
+    @Setup
+    public void setup() throws IOException {
+        double[][] r = SyntheticData.denseRatings(this.nUsers, this.nItems, this.density);
+        this.model = this.implementation.equals("nd4j")
+                ? new Nd4jMatrixFactorization(r, this.nFactor, 0.1, 40, false)
+                : new DefaultMatrixFactorization(r, this.nFactor, 0.1, 40, false);
+        File file = File.createTempFile("model", "." + this.format);
+        file.deleteOnExit();
+        this.model.saveModel(this.modelPath = file.getAbsolutePath());
+        this.users = new int[Math.min(100, this.nUsers)];
+        for (int u = 0; u < this.users.length; ++u) this.users[u] = u * (this.nUsers / this.users.length);
+    }
+
+    @Benchmark
+    public double[][] predict() {
+        return this.model.predict();
+    }
+
+    /** Top-20 for 100 users. */
+    @Benchmark
+    public int[][] recommend() {
+        return this.model.recommend(this.users, 20, true);
+    }
+
+    @Benchmark
+    public void saveModel() {
+        this.model.saveModel(this.modelPath);
+    }
+
+    @Benchmark
+    public MatrixFactorization loadModel() {
+        return this.implementation.equals("nd4j") ? new Nd4jMatrixFactorization(this.modelPath) : new DefaultMatrixFactorization(this.modelPath);
+    }
+}
@@ -0,0 +1,73 @@
+package com.matrix_factorization.benchmark;
+
+import com.matrix_factorization.DefaultMatrixFactorization;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of one top-k request by exact scan (ef = 0) and through the HNSW item index at increasing ef. The recall
+ * of each ef against the exact top k is printed during setup, so the output reads as a recall/latency curve.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecommendBenchmark {
+    /** 0 scores every item exactly. */
+    @Param({"0", "20", "50", "100", "200", "400"})
+    public int ef;
+
+    @Param({"20000"})
+    public int nUsers;
+
+    @Param({"100000"})
+    public int nItems;
+
+    @Param({"32"})
+    public int nFactor;
+
+    @Param({"0.0002"})
+    public double density;
+
+    @Param({"20"})
+    public int k;
+
+    private static final int QUERIES = 1000;
+
+    private DefaultMatrixFactorization model;
+    private int[] users;
+    private int next;
+
+    @Setup
+    public void setup() {
+        this.model = new DefaultMatrixFactorization(SyntheticData.ratings(this.nUsers, this.nItems, this.density), this.nFactor, 0.1, 40, false);
+        this.model.fit(3);
+        this.users = new int[Math.min(QUERIES, this.nUsers)];
+        for (int q = 0; q < this.users.length; ++q) this.users[q] = q * (this.nUsers / this.users.length);
+        if (this.ef == 0) return;
+
+        long start = System.nanoTime();
+        this.model.buildIndex();
+        long build = System.nanoTime() - start;
+        int[][] exact = this.model.recommend(this.users, this.k, true), approximate = this.model.recommendApproximate(this.users, this.k, true, this.ef);
+        long hits = 0, total = 0;
+        for (int q = 0; q < this.users.length; ++q) {
+            Set<Integer> relevant = new HashSet<Integer>();
+            for (int i : exact[q]) relevant.add(i);
+            for (int i : approximate[q]) if (relevant.contains(i)) ++hits;
+            total += exact[q].length;
+        }
+        System.out.printf("%nef=%d: recall@%d %.4f, index built in %d ms%n", this.ef, this.k, (double) hits / total, build / 1000000);
+    }
+
+    @Benchmark
+    public int[] recommend() {
+        int user = this.users[this.next++ % this.users.length];
+        return this.ef == 0 ? this.model.recommend(user, this.k, true) : this.model.recommendApproximate(user, this.k, true, this.ef);
+    }
+}
@@ -0,0 +1,61 @@
+package com.matrix_factorization.benchmark;
+
+import com.matrix_factorization.FactorMatrix;
+import com.matrix_factorization.InteractionMatrix;
+import com.matrix_factorization.Precision;
+
+import java.util.Random;
+
+/**
+ * Deterministic synthetic inputs. Ratings follow a power-law item popularity, so a few items collect most of the
+ * interactions as in real catalogs, and every generator is seeded so repeated runs see identical data.
+ */
+public class SyntheticData {
+    public static final long SEED = 42;
+
+    /** Ratings in 1..5 on about density * nUsers * nItems cells, item popularity ~ rank^-0.8. */
+    public static InteractionMatrix ratings(int nUsers, int nItems, double density) {
+        Random random = new Random(SEED);
+        InteractionMatrix r = new InteractionMatrix(nUsers, nItems);
+        long n = Math.max(1, Math.round(density * nUsers * nItems));
+        for (long k = 0; k < n; ++k)
+            r.put(random.nextInt(nUsers), popularItem(random, nItems), 1 + random.nextInt(5));
+        r.compact();
+        return r;
+    }
+
+    /** Same ratings as {@link #ratings} as a dense matrix, for the double[][] and ND4J entry points. */
+    public static double[][] denseRatings(int nUsers, int nItems, double density) {
+        return ratings(nUsers, nItems, density).toDense();
+    }
+
+    public static FactorMatrix factors(int rows, int nFactor, Precision precision) {
+        return FactorMatrix.create(matrix(rows, nFactor, 0.01), precision);
+    }
+
+    public static double[][] matrix(int rows, int cols, double scale) {
+        Random random = new Random(SEED + rows * 31L + cols);
+        double[][] matrix = new double[rows][cols];
+        for (double[] row : matrix)
+            for (int j = 0; j < cols; ++j) row[j] = random.nextDouble() * scale;
+        return matrix;
+    }
+
+    /** Symmetric positive definite nFactor * nFactor system like the ALS normal equations. */
+    public static double[][] normalEquation(int nFactor, int nRows, double lambda) {
+        double[][] y = matrix(nRows, nFactor, 1);
+        double[][] a = new double[nFactor][nFactor];
+        for (double[] v : y)
+            for (int f = 0; f < nFactor; ++f)
+                for (int g = 0; g < nFactor; ++g) a[f][g] += v[f] * v[g];
+        for (int f = 0; f < nFactor; ++f) a[f][f] += lambda;
+        return a;
+    }
+
+    private static int popularItem(Random random, int nItems) {
+        // inverse transform sampling of a truncated power law over item ranks
+        double u = random.nextDouble(), s = 0.2;
+        int item = (int) (Math.pow(u * (Math.pow(nItems, s) - 1) + 1, 1 / s)) - 1;
+        return Math.min(nItems - 1, Math.max(0, item));
+    }
+}
@@ -0,0 +1,78 @@
+package com.matrix_factorization;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Heap allocated by training: the calling thread plus the workers of the pools the solvers run on, which are created
+ * by {@link #WORKERS}. Other threads of the process, e.g. serving threads, are not counted. Read from the HotSpot
+ * thread MXBean where available.
+ */
+class Allocations {
+    private static final com.sun.management.ThreadMXBean THREADS;
+    // ids of the live workers, and what the exited ones allocated in their lifetime
+    private static final Set<Long> WORKER_IDS = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private static final AtomicLong EXITED = new AtomicLong();
+
+    /** Creates pool workers whose allocations count toward {@link #training()}. */
+    static final ForkJoinPool.ForkJoinWorkerThreadFactory WORKERS = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            return new Worker(pool);
+        }
+    };
+
+    static {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean supported = null;
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            supported = (com.sun.management.ThreadMXBean) threads;
+            if (!supported.isThreadAllocatedMemorySupported()) supported = null;
+            else if (!supported.isThreadAllocatedMemoryEnabled()) supported.setThreadAllocatedMemoryEnabled(true);
+        }
+        THREADS = supported;
+    }
+
+    private Allocations() {
+    }
+
+    /**
+     * Bytes allocated so far by the calling thread and every worker of {@link #WORKERS}, -1 if not supported. The
+     * difference over a step is what the step allocated, if the calling thread trained.
+     */
+    static long training() {
+        if (THREADS == null) return -1;
+        long total = Math.max(0, THREADS.getThreadAllocatedBytes(Thread.currentThread().getId())) + EXITED.get();
+        Long[] ids = WORKER_IDS.toArray(new Long[0]);
+        long[] workers = new long[ids.length];
+        for (int k = 0; k < ids.length; ++k) workers[k] = ids[k];
+        for (long bytes : THREADS.getThreadAllocatedBytes(workers))
+            if (bytes > 0) total += bytes;
+        return total;
+    }
+
+    private static class Worker extends ForkJoinWorkerThread {
+        Worker(ForkJoinPool pool) {
+            super(pool);
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            WORKER_IDS.add(getId());
+        }
+
+        @Override
+        protected void onTermination(Throwable exception) {
+            // keep the bytes of a worker that exits, so a later reading never goes down
+            if (THREADS != null) EXITED.addAndGet(Math.max(0, THREADS.getThreadAllocatedBytes(getId())));
+            WORKER_IDS.remove(getId());
+            super.onTermination(exception);
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package com.matrix_factorization;
 
-public interface AlternatingLeastSquares<T> {
-    public void optimizeUser(T x, T y, T c, T p, int nUsers, int nFactor, double lambda);
-    public void optimizeItem(T x, T y, T c, T p, int nItems, int nFactor, double lambda);
-    public double[] loss(T x, T y, T c, T p, double lambda);
+/**
+ * @param <T> factor matrix type
+ * @param <R> rating matrix type; confidence (1 + alpha * r) and preference (r > 0) are derived from it on the fly
+ */
+public interface AlternatingLeastSquares<T, R> {
+    public void optimizeUser(T x, T y, R r, int nUsers, int nFactor, double lambda, double alpha);
+    public void optimizeItem(T x, T y, R r, int nItems, int nFactor, double lambda, double alpha);
+    public double[] loss(T x, T y, R r, double lambda, double alpha);
 }
@@ -0,0 +1,33 @@
+package com.matrix_factorization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** Reads packed little-endian records of (long user id, long item id, float rating), 20 bytes each. */
+public class BinaryInteractionLoader extends InteractionLoader<Long> {
+    public static final int RECORD_BYTES = 20;
+
+    public BinaryInteractionLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BinaryInteractionLoader(int nThreads) {
+        super(nThreads);
+    }
+
+    @Override
+    protected int boundary(ByteBuffer chunk) {
+        return chunk.limit() - chunk.limit() % RECORD_BYTES;
+    }
+
+    @Override
+    protected Chunk<Long> parse(ByteBuffer chunk, boolean first) throws IOException {
+        if (chunk.limit() % RECORD_BYTES != 0) throw new IOException("truncated record at the end of the file");
+        Chunk<Long> triples = new Chunk<Long>();
+        ByteBuffer records = chunk.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        while (records.hasRemaining())
+            triples.add(records.getLong(), records.getLong(), records.getFloat());
+        return triples;
+    }
+}
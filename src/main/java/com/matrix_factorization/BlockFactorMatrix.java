@@ -0,0 +1,116 @@
+package com.matrix_factorization;
+
+import java.util.BitSet;
+
+/**
+ * Read-only {@link FactorMatrix} split into blocks of BLOCK_ROWS rows, used by {@link ModelSnapshot}.
+ *
+ * A new version is built with {@link #copyOf} from the previous version and the live factors: blocks without changed
+ * rows are shared with the previous version and only the others are copied. Publishing after a fold-in therefore
+ * copies one block, not the whole matrix, and no version is ever modified once built.
+ */
+public class BlockFactorMatrix extends FactorMatrix {
+    public static final int BLOCK_ROWS = 128;
+
+    private final FactorMatrix[] blocks;
+    private final Precision precision;
+
+    private BlockFactorMatrix(FactorMatrix[] blocks, Precision precision, int rows, int cols) {
+        super(rows, cols);
+        this.blocks = blocks;
+        this.precision = precision;
+    }
+
+    /**
+     * Copies source, reusing the blocks of previous whose rows are all unchanged. Returns previous itself if no row
+     * changed, so callers can tell an unchanged matrix by identity.
+     *
+     * @param previous the last version built from source, or null to copy everything
+     * @param changed rows of source written since previous was built
+     */
+    public static BlockFactorMatrix copyOf(BlockFactorMatrix previous, FactorMatrix source, BitSet changed) {
+        int rows = source.rows(), cols = source.cols();
+        if (previous != null && (previous.cols != cols || previous.precision != source.precision())) previous = null;
+        FactorMatrix[] blocks = new FactorMatrix[(rows + BLOCK_ROWS - 1) / BLOCK_ROWS];
+        double[] row = new double[cols];
+        // first changed row at or after the current block, advanced only past set bits so the scan is linear
+        int next = changed.nextSetBit(0);
+        if (previous != null && previous.rows == rows && next < 0) return previous;
+        for (int b = 0; b < blocks.length; ++b) {
+            int start = b * BLOCK_ROWS, n = Math.min(BLOCK_ROWS, rows - start);
+            if (next >= 0 && next < start) next = changed.nextSetBit(start);
+            if (previous != null && b < previous.blocks.length && previous.blocks[b].rows() == n && (next < 0 || next >= start + n)) {
+                blocks[b] = previous.blocks[b];
+                continue;
+            }
+            blocks[b] = FactorMatrix.create(n, cols, source.precision());
+            for (int i = 0; i < n; ++i)
+                blocks[b].setRow(i, source.getRow(start + i, row));
+        }
+        return new BlockFactorMatrix(blocks, source.precision(), rows, cols);
+    }
+
+    @Override
+    public Precision precision() {
+        return this.precision;
+    }
+
+    @Override
+    public double get(int row, int col) {
+        return this.blocks[row / BLOCK_ROWS].get(row % BLOCK_ROWS, col);
+    }
+
+    @Override
+    public void set(int row, int col, double value) {
+        throw new UnsupportedOperationException("snapshot factors are read-only");
+    }
+
+    @Override
+    public double[] getRow(int row, double[] dst) {
+        return this.blocks[row / BLOCK_ROWS].getRow(row % BLOCK_ROWS, dst);
+    }
+
+    @Override
+    public void setRow(int row, double[] src) {
+        throw new UnsupportedOperationException("snapshot factors are read-only");
+    }
+
+    @Override
+    public void addRows(int n) {
+        throw new UnsupportedOperationException("snapshot factors are read-only");
+    }
+
+    @Override
+    public double dot(int row, double[] v) {
+        return this.blocks[row / BLOCK_ROWS].dot(row % BLOCK_ROWS, v);
+    }
+
+    @Override
+    public double dot(int row, FactorMatrix other, int otherRow) {
+        if (other instanceof BlockFactorMatrix)
+            return this.blocks[row / BLOCK_ROWS].dot(row % BLOCK_ROWS, ((BlockFactorMatrix) other).blocks[otherRow / BLOCK_ROWS], otherRow % BLOCK_ROWS);
+        return this.blocks[row / BLOCK_ROWS].dot(row % BLOCK_ROWS, other, otherRow);
+    }
+
+    @Override
+    public void axpy(int row, double w, double[] b) {
+        this.blocks[row / BLOCK_ROWS].axpy(row % BLOCK_ROWS, w, b);
+    }
+
+    @Override
+    public void addOuter(int row, double w, double[][] a) {
+        this.blocks[row / BLOCK_ROWS].addOuter(row % BLOCK_ROWS, w, a);
+    }
+
+    @Override
+    public void addGram(double[][] a) {
+        for (FactorMatrix block : this.blocks) block.addGram(a);
+    }
+
+    @Override
+    public double squaredNorm() {
+        double total = 0;
+        for (FactorMatrix block : this.blocks) total += block.squaredNorm();
+        return total;
+    }
+}
@@ -0,0 +1,85 @@
+package com.matrix_factorization;
+
+/**
+ * In-place solver for the symmetric positive definite normal equations (YtCuY + lambda * I) * x = YtCup of ALS.
+ *
+ * Only the diagonal and upper triangle of a are read. The factor is written into the strictly lower triangle and
+ * into the caller's d buffer, so the input survives a failed Cholesky factorization and is refactorized as LDLt,
+ * which tolerates the semi-definite systems left by lambda = 0 and empty rows. Nothing is allocated.
+ */
+public class CholeskySolver {
+    private static final double EPSILON = 1e-12;
+
+    /**
+     * Solves a * x = b.
+     *
+     * @param a: n * n, upper triangle and diagonal hold the system, strictly lower triangle is overwritten
+     * @param b: 1 * n, overwritten with x
+     * @param d: 1 * n, scratch
+     * */
+    public static void solve(double[][] a, double[] b, double[] d) {
+        if (cholesky(a, d, b.length)) {
+            // L * z = b, Lt * x = z with L = strictly lower(a) + diag(d)
+            for (int i = 0; i < b.length; ++i) {
+                double sum = b[i];
+                for (int k = 0; k < i; ++k) sum -= a[i][k] * b[k];
+                b[i] = sum / d[i];
+            }
+            for (int i = b.length - 1; i >= 0; --i) {
+                double sum = b[i];
+                for (int k = i + 1; k < b.length; ++k) sum -= a[k][i] * b[k];
+                b[i] = sum / d[i];
+            }
+        } else {
+            ldlt(a, d, b.length);
+            // L * z = b, D * w = z, Lt * x = w with L = I + strictly lower(a), D = diag(d)
+            for (int i = 0; i < b.length; ++i) {
+                double sum = b[i];
+                for (int k = 0; k < i; ++k) sum -= a[i][k] * b[k];
+                b[i] = sum;
+            }
+            for (int i = 0; i < b.length; ++i) b[i] /= d[i];
+            for (int i = b.length - 1; i >= 0; --i) {
+                double sum = b[i];
+                for (int k = i + 1; k < b.length; ++k) sum -= a[k][i] * b[k];
+                b[i] = sum;
+            }
+        }
+    }
+
+    /** a = L * Lt; returns false if a is not numerically positive definite. */
+    private static boolean cholesky(double[][] a, double[] d, int n) {
+        for (int j = 0; j < n; ++j) {
+            double sum = a[j][j];
+            for (int k = 0; k < j; ++k) sum -= a[j][k] * a[j][k];
+            if (!(sum > EPSILON * Math.abs(a[j][j]))) return false;
+            d[j] = Math.sqrt(sum);
+
+            for (int i = j + 1; i < n; ++i) {
+                double s = a[j][i];
+                for (int k = 0; k < j; ++k) s -= a[i][k] * a[j][k];
+                a[i][j] = s / d[j];
+            }
+        }
+        return true;
+    }
+
+    /** a = L * D * Lt with unit lower L; vanishing pivots are clamped so the solve stays finite. */
+    private static void ldlt(double[][] a, double[] d, int n) {
+        double scale = 0;
+        for (int j = 0; j < n; ++j) scale = Math.max(scale, Math.abs(a[j][j]));
+        double tiny = Math.max(scale, 1) * EPSILON;
+
+        for (int j = 0; j < n; ++j) {
+            double sum = a[j][j];
+            for (int k = 0; k < j; ++k) sum -= a[j][k] * a[j][k] * d[k];
+            d[j] = Math.abs(sum) < tiny || Double.isNaN(sum) ? (sum < 0 ? -tiny : tiny) : sum;
+
+            for (int i = j + 1; i < n; ++i) {
+                double s = a[j][i];
+                for (int k = 0; k < j; ++k) s -= a[i][k] * a[j][k] * d[k];
+                a[i][j] = s / d[j];
+            }
+        }
+    }
+}
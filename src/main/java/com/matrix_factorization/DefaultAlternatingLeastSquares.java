@@ -1,54 +1,270 @@
 package com.matrix_factorization;
 
-public class DefaultAlternatingLeastSquares implements AlternatingLeastSquares<double[][]> {
+import java.util.Arrays;
+
+public class DefaultAlternatingLeastSquares implements AlternatingLeastSquares<FactorMatrix, InteractionMatrix> {
+    private final ThreadLocal<SolverWorkspace> workspaces = new ThreadLocal<SolverWorkspace>();
+    private double[][] gram, xtx;
+    private long gramNanos;
+    // conjugate-gradient iterations per row solve, 0 for the exact Cholesky solve
+    private int cgSteps;
+
+    /**
+     * Switches the row solves of the following sweeps between the exact Cholesky solve (steps = 0) and steps
+     * warm-started conjugate-gradient iterations (Takacs, Pilaszy and Tikk). A CG iteration applies the normal
+     * matrix implicitly as (YtY + lambda * I) * v + sum over rated items of (c - 1) * (y_i . v) * y_i, so a row costs
+     * O(steps * (nFactor^2 + nnz_u * nFactor)) instead of O(nnz_u * nFactor^2 + nFactor^3). Starting from the row's
+     * previous value, two or three iterations per sweep are usually enough; fold-ins always solve exactly.
+     */
+    public void setConjugateGradientSteps(int steps) {
+        this.cgSteps = steps;
+    }
+
+    public int getConjugateGradientSteps() {
+        return this.cgSteps;
+    }
+
     /**
+     * Solves x_u = (YtY + Yt(Cu - I)Y + lambda * I)^-1 * Yt * Cu * p(u) for every user (Hu, Koren and Volinsky).
+     * YtY is computed once per sweep, and only the items user u interacted with contribute to the correction term
+     * because c - 1 = 0 and p = 0 everywhere else, so a user costs O(nnz_u * nFactor^2 + nFactor^3).
+     *
      * @param x: nUsers * factor
      * @param y: nItems * factor
-     * @param c: nUsers * nItems
-     * @param p: nUsers * nItems
+     * @param r: nUsers * nItems, compacted
      * */
-    public void optimizeUser(double[][] x, double[][] y, double[][] c, double[][] p, int nUsers, int nFactor, double lambda) {
-        // yt: nFactor * nItems
-        double[][] yt = MatrixUtil.transpose(y);
-        for (int u = 0; u < nUsers; ++u) {
-            // cu: nItems * nItems
-            double[][] cu = MatrixUtil.diagonal(c[u]);
-            // yt_cu: nFactor * nItems
-            double[][] yt_cu = MatrixUtil.product(yt, cu);
-            // yt_cu_y: nFactor * nFactor
-            double[][] yt_cu_y = MatrixUtil.product(yt_cu, y);
-            // li: nFactor * nFactor
-            double[][] li = MatrixUtil.diagonal(nFactor, nFactor, lambda);
-            // yt_cu_pu: 1 * nFactor
-            double[] yt_cu_pu = MatrixUtil.multiple(yt_cu, p[u]);
-            x[u] = MatrixUtil.solve(MatrixUtil.sum(yt_cu_y, li), yt_cu_pu);
+    public void optimizeUser(FactorMatrix x, FactorMatrix y, InteractionMatrix r, int nUsers, int nFactor, double lambda, double alpha) {
+        // yty: nFactor * nFactor
+        double[][] yty = gram(y, nFactor);
+        for (int u = 0; u < nUsers; ++u)
+            solveUser(x, y, yty, r, u, nFactor, lambda, alpha);
+    }
+
+    /**
+     * Same as {@link #optimizeUser} with the roles of users and items swapped, using XtX and the users of item i.
+     * */
+    public void optimizeItem(FactorMatrix x, FactorMatrix y, InteractionMatrix r, int nItems, int nFactor, double lambda, double alpha) {
+        // xtx: nFactor * nFactor
+        double[][] xtx = gram(x, nFactor);
+        for (int i = 0; i < nItems; ++i)
+            solveItem(x, y, xtx, r, i, nFactor, lambda, alpha);
+    }
+
+    /**
+     * Same as {@link #optimizeUser}, restricted to the given users; every other row of x keeps its value. Used by
+     * incremental training, which only re-solves rows touched since the last fit and their neighbors.
+     *
+     * @param users: user indexes to solve, ascending
+     * */
+    public void optimizeUsers(FactorMatrix x, FactorMatrix y, InteractionMatrix r, int[] users, int nFactor, double lambda, double alpha) {
+        double[][] yty = gram(y, nFactor);
+        for (int u : users)
+            solveUser(x, y, yty, r, u, nFactor, lambda, alpha);
+    }
+
+    /** Same as {@link #optimizeItem}, restricted to the given items, see {@link #optimizeUsers}. */
+    public void optimizeItems(FactorMatrix x, FactorMatrix y, InteractionMatrix r, int[] items, int nFactor, double lambda, double alpha) {
+        double[][] xtx = gram(x, nFactor);
+        for (int i : items)
+            solveItem(x, y, xtx, r, i, nFactor, lambda, alpha);
+    }
+
+    /**
+     * Solves one user's normal equation against fixed item factors and writes it into row u of x. Rows are
+     * independent of each other given y and yty, so subclasses may call this concurrently for different users; every
+     * thread works in its own {@link SolverWorkspace}.
+     */
+    protected void solveUser(FactorMatrix x, FactorMatrix y, double[][] yty, InteractionMatrix r, int u, int nFactor, double lambda, double alpha) {
+        SolverWorkspace workspace = workspace(nFactor);
+        if (this.cgSteps > 0) {
+            conjugateGradient(workspace, x, u, y, yty, r, true, lambda, alpha);
+            return;
         }
+        regularize(yty, lambda, workspace);
+        for (int k = r.rowStart(u); k < r.rowEnd(u); ++k)
+            accumulate(workspace, y, r.colIndex(k), r.rowValue(k), alpha);
+        CholeskySolver.solve(workspace.a, workspace.b, workspace.d);
+        x.setRow(u, workspace.b);
     }
 
-    public void optimizeItem(double[][] x, double[][] y, double[][] c, double[][] p, int nItems, int nFactor, double lambda) {
-        // yt: nFactor * nUsers
-        double[][] xt = MatrixUtil.transpose(x);
-        for (int i = 0; i < nItems; ++i) {
-            // ci: nUsers * nUsers
-            double[][] ci = MatrixUtil.diagonal(MatrixUtil.col(c, i));
-            // xt_ci: nFactor * nUsers
-            double[][] xt_ci = MatrixUtil.product(xt, ci);
-            // xt_ci_x: nFactor * nFactor
-            double[][] xt_ci_x = MatrixUtil.product(xt_ci, x);
-            // li: nFactor * nFactor
-            double[][] li = MatrixUtil.diagonal(nFactor, nFactor, lambda);
-            // yt_cu_pu: 1 * nFactor
-            double[] xt_ci_pi = MatrixUtil.multiple(xt_ci, MatrixUtil.col(p, i));
-            y[i] = MatrixUtil.solve(MatrixUtil.sum(xt_ci_x, li), xt_ci_pi);
+    /** Solves one item's normal equation against fixed user factors and writes it into row i of y, see {@link #solveUser}. */
+    protected void solveItem(FactorMatrix x, FactorMatrix y, double[][] xtx, InteractionMatrix r, int i, int nFactor, double lambda, double alpha) {
+        SolverWorkspace workspace = workspace(nFactor);
+        if (this.cgSteps > 0) {
+            conjugateGradient(workspace, y, i, x, xtx, r, false, lambda, alpha);
+            return;
         }
+        regularize(xtx, lambda, workspace);
+        for (int k = r.colStart(i); k < r.colEnd(i); ++k)
+            accumulate(workspace, x, r.rowIndex(k), r.colValue(k), alpha);
+        CholeskySolver.solve(workspace.a, workspace.b, workspace.d);
+        y.setRow(i, workspace.b);
+    }
+
+    /**
+     * Re-solves user u against fixed item factors, exactly one row of {@link #optimizeUser}, and writes it into row u
+     * of x. Reads u's ratings including writes not yet compacted, so a new rating can be folded in right after
+     * {@link InteractionMatrix#put} without compacting r or touching other users: O(nnz_u * nFactor^2 + nFactor^3).
+     *
+     * @param yty: nFactor * nFactor, yt * y of the current y
+     * */
+    public void foldInUser(FactorMatrix x, FactorMatrix y, double[][] yty, InteractionMatrix r, int u, int nFactor, double lambda, double alpha) {
+        SolverWorkspace workspace = workspace(nFactor);
+        workspace.reserve(r.rowEnd(u) - r.rowStart(u) + r.pending());
+        int n = r.row(u, workspace.index, workspace.value);
+        regularize(yty, lambda, workspace);
+        for (int k = 0; k < n; ++k)
+            accumulate(workspace, y, workspace.index[k], workspace.value[k], alpha);
+        CholeskySolver.solve(workspace.a, workspace.b, workspace.d);
+        x.setRow(u, workspace.b);
+    }
+
+    /** Same as {@link #foldInUser} for item i against fixed user factors. */
+    public void foldInItem(FactorMatrix x, FactorMatrix y, double[][] xtx, InteractionMatrix r, int i, int nFactor, double lambda, double alpha) {
+        SolverWorkspace workspace = workspace(nFactor);
+        workspace.reserve(r.colEnd(i) - r.colStart(i) + r.pending());
+        int n = r.col(i, workspace.index, workspace.value);
+        regularize(xtx, lambda, workspace);
+        for (int k = 0; k < n; ++k)
+            accumulate(workspace, x, workspace.index[k], workspace.value[k], alpha);
+        CholeskySolver.solve(workspace.a, workspace.b, workspace.d);
+        y.setRow(i, workspace.b);
+    }
+
+    /** Computes factorst * factors into a buffer reused across sweeps; valid until the next call. */
+    protected double[][] gram(FactorMatrix factors, int nFactor) {
+        long start = System.nanoTime();
+        if (this.gram == null || this.gram.length != nFactor) this.gram = new double[nFactor][nFactor];
+        MatrixUtil.gram(factors, this.gram);
+        this.gramNanos += System.nanoTime() - start;
+        return this.gram;
+    }
+
+    /** Total time spent in Gram matrix accumulation by this instance, for {@link TrainingStep#getGramNanos()}. */
+    public long getGramNanos() {
+        return this.gramNanos;
     }
 
-    public double[] loss(double[][] x, double[][] y, double[][] c, double[][] p, double lambda) {
-        double[][] predict = MatrixUtil.product(x, MatrixUtil.transpose(y));
-        double[][] predictError = MatrixUtil.square(MatrixUtil.subtract(p, predict));
-        double confidenceError = MatrixUtil.sum(MatrixUtil.elementWise(c, predictError));
-        double regularization = lambda * (MatrixUtil.sum(MatrixUtil.square(x)) + MatrixUtil.sum(MatrixUtil.square(y)));
+    private SolverWorkspace workspace(int nFactor) {
+        SolverWorkspace workspace = this.workspaces.get();
+        if (workspace == null || workspace.nFactor != nFactor) this.workspaces.set(workspace = new SolverWorkspace(nFactor));
+        return workspace;
+    }
+
+    /**
+     * Confidence-weighted squared error without visiting unobserved cells. Over every cell, sum((x_u . y_i)^2) =
+     * trace(XtX * YtY), and an unobserved cell has p = 0 and c = 1, so its error is exactly that square; the observed
+     * cells then only add their difference from it. Costs O((nUsers + nItems) * nFactor^2 + nnz * nFactor) instead of
+     * O(nUsers * nItems * nFactor). r must be compacted.
+     *
+     * @return predict error, confidence error, regularization, total loss
+     * */
+    public double[] loss(FactorMatrix x, FactorMatrix y, InteractionMatrix r, double lambda, double alpha) {
+        int nFactor = x.cols();
+        double[][] yty = gram(y, nFactor);
+        if (this.xtx == null || this.xtx.length != nFactor) this.xtx = new double[nFactor][nFactor];
+        double[][] xtx = MatrixUtil.gram(x, this.xtx);
+        double squares = 0;
+        for (int f = 0; f < nFactor; ++f)
+            for (int g = 0; g < nFactor; ++g)
+                squares += xtx[f][g] * yty[f][g];
+        double[] observed = observedLoss(x, y, r, alpha);
+        double predictError = squares + observed[0];
+        double confidenceError = predictError + observed[1];
+        double regularization = lambda * (x.squaredNorm() + y.squaredNorm());
         double totalLoss = confidenceError + regularization;
-        return new double[] { MatrixUtil.sum(predictError), confidenceError, regularization, totalLoss };
+        return new double[] { predictError, confidenceError, regularization, totalLoss };
+    }
+
+    /**
+     * Sums over the observed cells of (p - x_u . y_i)^2 - (x_u . y_i)^2 and (c - 1) * (p - x_u . y_i)^2, the terms
+     * {@link #loss} adds to the all-unobserved error.
+     */
+    protected double[] observedLoss(FactorMatrix x, FactorMatrix y, InteractionMatrix r, double alpha) {
+        double[] sums = new double[2];
+        observedLoss(x, y, r, 0, x.rows(), alpha, sums);
+        return sums;
+    }
+
+    /** Adds the {@link #observedLoss} terms of users [from, to) to sums. */
+    protected static void observedLoss(FactorMatrix x, FactorMatrix y, InteractionMatrix r, int from, int to, double alpha, double[] sums) {
+        double predictError = 0, confidenceError = 0;
+        for (int u = from; u < to; ++u)
+            for (int k = r.rowStart(u); k < r.rowEnd(u); ++k) {
+                double rating = r.rowValue(k), predict = x.dot(u, y, r.colIndex(k));
+                double error = rating > 0 ? (1 - predict) * (1 - predict) : predict * predict;
+                predictError += error - predict * predict;
+                confidenceError += alpha * rating * error;
+            }
+        sums[0] += predictError;
+        sums[1] += confidenceError;
+    }
+
+    /**
+     * Runs cgSteps conjugate-gradient iterations on the normal equation of one row of target, a user if user is true
+     * and an item otherwise, starting from its current value, and writes the result back; see
+     * {@link #setConjugateGradientSteps}. Stops early once the residual vanishes.
+     *
+     * @param factors the fixed opposite factors, gram their Gram matrix
+     */
+    private void conjugateGradient(SolverWorkspace workspace, FactorMatrix target, int row, FactorMatrix factors, double[][] gram,
+                                   InteractionMatrix r, boolean user, double lambda, double alpha) {
+        double[] x = target.getRow(row, workspace.x), residual = workspace.residual, direction = workspace.direction, product = workspace.product;
+        int start = user ? r.rowStart(row) : r.colStart(row), end = user ? r.rowEnd(row) : r.colEnd(row);
+        // residual = b - A * x, with b = sum of c * p * v over the rated rows
+        multiply(factors, gram, r, start, end, user, lambda, alpha, x, residual);
+        for (int f = 0; f < residual.length; ++f) residual[f] = -residual[f];
+        for (int k = start; k < end; ++k) {
+            double rating = user ? r.rowValue(k) : r.colValue(k);
+            if (rating > 0) factors.axpy(user ? r.colIndex(k) : r.rowIndex(k), 1 + alpha * rating, residual);
+        }
+        System.arraycopy(residual, 0, direction, 0, residual.length);
+        double norm = MatrixUtil.dot(residual, residual);
+        for (int step = 0; step < this.cgSteps && norm > 1e-20; ++step) {
+            multiply(factors, gram, r, start, end, user, lambda, alpha, direction, product);
+            double length = norm / MatrixUtil.dot(direction, product);
+            for (int f = 0; f < x.length; ++f) {
+                x[f] += length * direction[f];
+                residual[f] -= length * product[f];
+            }
+            double previous = norm;
+            norm = MatrixUtil.dot(residual, residual);
+            for (int f = 0; f < direction.length; ++f) direction[f] = residual[f] + norm / previous * direction[f];
+        }
+        target.setRow(row, x);
+    }
+
+    /** dst = (gram + lambda * I) * v + sum over the rated rows [start, end) of (c - 1) * (v_i . v) * v_i. */
+    private static void multiply(FactorMatrix factors, double[][] gram, InteractionMatrix r, int start, int end, boolean user,
+                                 double lambda, double alpha, double[] v, double[] dst) {
+        for (int f = 0; f < dst.length; ++f) {
+            double total = lambda * v[f];
+            for (int g = 0; g < v.length; ++g) total += gram[f][g] * v[g];
+            dst[f] = total;
+        }
+        for (int k = start; k < end; ++k) {
+            int other = user ? r.colIndex(k) : r.rowIndex(k);
+            double weight = alpha * (user ? r.rowValue(k) : r.colValue(k));
+            factors.axpy(other, weight * factors.dot(other, v), dst);
+        }
+    }
+
+    /** Resets the workspace to a = gram + lambda * I, b = 0. */
+    private static void regularize(double[][] gram, double lambda, SolverWorkspace workspace) {
+        for (int f = 0; f < gram.length; ++f) {
+            System.arraycopy(gram[f], 0, workspace.a[f], 0, gram.length);
+            workspace.a[f][f] += lambda;
+        }
+        Arrays.fill(workspace.b, 0);
+    }
+
+    /**
+     * Adds (c - 1) * v * vt to a and c * p * v to b for one observed rating, v being the given row of factors. Only
+     * the upper triangle of a is updated, which is all {@link CholeskySolver} reads.
+     */
+    private static void accumulate(SolverWorkspace workspace, FactorMatrix factors, int row, double rating, double alpha) {
+        double c = 1 + alpha * rating;
+        factors.addOuter(row, c - 1, workspace.a);
+        if (rating > 0) factors.axpy(row, c, workspace.b);
     }
 }
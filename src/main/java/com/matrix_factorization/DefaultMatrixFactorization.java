@@ -4,7 +4,12 @@ import org.apache.log4j.BasicConfigurator;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -14,19 +19,49 @@ public class DefaultMatrixFactorization implements MatrixFactorization {
         BasicConfigurator.configure();
     }
 
+    // seed of the holdout split of fitUntilConverged, so repeated runs on the same data hold out the same ratings
+    private static final long HOLDOUT_SEED = 0x5eedL;
+    // the index is rebuilt after training once more than this fraction of the items moved by more than INDEX_DRIFT
+    // times the largest item norm; searches rescore their candidates with the current factors, so drift costs recall only
+    private static final double INDEX_STALE_FRACTION = 0.1, INDEX_DRIFT = 0.05;
+
     private int nUsers, nItems, nFactor;
     private double lambda, alpha;
-    private double[][] r, x, y, p, c;
-
-    private boolean printLog = true;
+    private InteractionMatrix r;
+    private FactorMatrix x, y;
+    private Precision precision = Precision.DOUBLE;
+    private IdMapping<?> userIds, itemIds;
+    // Gram matrices of the current y and x for fold-in, null when stale
+    private double[][] yty, xtx;
+    // rows touched since the last training run, see fitIncremental
+    private final BitSet dirtyUsers = new BitSet(), dirtyItems = new BitSet();
+    // latest published version, null until publish() is called, and the factor rows written since
+    private final AtomicReference<ModelSnapshot> published = new AtomicReference<ModelSnapshot>();
+    private final BitSet changedUsers = new BitSet(), changedItems = new BitSet();
+    // put() from any thread lands here and is merged into r by the training thread
+    private final InteractionBuffer buffer = new InteractionBuffer(0, 0);
+    // cells drained while fitUntilConverged holds ratings out, so it does not restore one that was deleted meanwhile
+    private InteractionMatrix written;
+    // approximate item index, rebuilt after training once stale if buildIndex was called
+    private HnswIndex index;
+    private int indexM, indexEfConstruction;
+    // row norms for similarUsers/similarItems, null when stale, and the table of similar items
+    private double[] userNorms, itemNorms;
+    private NeighborCache similarItems;
+    private int similarItemCache;
+
+    // notified after every training step; printLog adds or removes the printer, which is on by default
+    private final TrainingListener printer = new PrintingTrainingListener();
+    private final List<TrainingListener> listeners = new CopyOnWriteArrayList<TrainingListener>(Collections.singletonList(this.printer));
 
     private DefaultAlternatingLeastSquares als;
 
     public DefaultMatrixFactorization(double[][] r, int nFactor, double lambda, double alpha) {
         this.lambda = lambda; this.alpha = alpha;
-        initWeights(this.x = new double[this.nUsers = (this.r = r).length][this.nFactor = nFactor]);
-        initWeights(this.y = new double[this.nItems = this.r[0].length][this.nFactor]);
-        init();
+        initWeights(this.x = FactorMatrix.create(this.nUsers = (this.r = InteractionMatrix.fromDense(r)).rows(), this.nFactor = nFactor, this.precision), 0);
+        initWeights(this.y = FactorMatrix.create(this.nItems = this.r.cols(), this.nFactor, this.precision), 0);
+        markAllDirty();
+        this.buffer.resize(this.nUsers, this.nItems);
 
         this.als = new DefaultAlternatingLeastSquares();
     }
@@ -36,14 +71,30 @@ public class DefaultMatrixFactorization implements MatrixFactorization {
         setPrintLog(printLog);
     }
 
+    /** Trains on an existing interaction store, e.g. one built by an {@link InteractionLoader}. */
+    public DefaultMatrixFactorization(InteractionMatrix r, int nFactor, double lambda, double alpha) {
+        this.lambda = lambda; this.alpha = alpha;
+        initWeights(this.x = FactorMatrix.create(this.nUsers = (this.r = r).rows(), this.nFactor = nFactor, this.precision), 0);
+        initWeights(this.y = FactorMatrix.create(this.nItems = this.r.cols(), this.nFactor, this.precision), 0);
+        markAllDirty();
+        this.buffer.resize(this.nUsers, this.nItems);
+
+        this.als = new DefaultAlternatingLeastSquares();
+    }
+
+    public DefaultMatrixFactorization(InteractionMatrix r, int nFactor, double lambda, double alpha, boolean printLog) {
+        this(r, nFactor, lambda, alpha);
+        setPrintLog(printLog);
+    }
+
     public DefaultMatrixFactorization(int nUsers, int nItems, int nFactor, double lambda, double alpha) {
-        this.r = new double[this.nUsers = nUsers][this.nItems = nItems];
-        for (double[] mat : this.r) Arrays.fill(mat, 0);
+        this.r = new InteractionMatrix(this.nUsers = nUsers, this.nItems = nItems);
 
         this.lambda = lambda; this.alpha = alpha;
-        initWeights(this.x = new double[this.nUsers][this.nFactor = nFactor]);
-        initWeights(this.y = new double[this.nItems][this.nFactor]);
-        init();
+        initWeights(this.x = FactorMatrix.create(this.nUsers, this.nFactor = nFactor, this.precision), 0);
+        initWeights(this.y = FactorMatrix.create(this.nItems, this.nFactor, this.precision), 0);
+        markAllDirty();
+        this.buffer.resize(this.nUsers, this.nItems);
 
         this.als = new DefaultAlternatingLeastSquares();
     }
@@ -58,43 +109,433 @@ public class DefaultMatrixFactorization implements MatrixFactorization {
         this.als = new DefaultAlternatingLeastSquares();
     }
 
+    /** Shorthand for adding or removing a {@link PrintingTrainingListener} on System.out. */
     @Override
     public void setPrintLog(boolean printLog) {
-        this.printLog = printLog;
+        if (!printLog) this.listeners.remove(this.printer);
+        else if (!this.listeners.contains(this.printer)) this.listeners.add(this.printer);
+    }
+
+    @Override
+    public void addTrainingListener(TrainingListener listener) {
+        this.listeners.add(listener);
+    }
+
+    @Override
+    public void removeTrainingListener(TrainingListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Switches the storage of X and Y, converting the current factors. {@link Precision#FLOAT} halves the resident
+     * model size; normal equations are still accumulated and solved in double.
+     */
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+        this.x = this.x.convert(precision);
+        this.y = this.y.convert(precision);
+        invalidateCaches();
+        republishAll();
+    }
+
+    public Precision getPrecision() {
+        return this.precision;
+    }
+
+    /**
+     * Solves the rows of the following fits with steps warm-started conjugate-gradient iterations instead of exactly,
+     * 0 to go back to the exact solve; see {@link DefaultAlternatingLeastSquares#setConjugateGradientSteps}. Pays off
+     * from about 100 factors, where the nFactor^3 solve dominates a sweep.
+     */
+    public void setConjugateGradientSteps(int steps) {
+        this.als.setConjugateGradientSteps(steps);
+    }
+
+    public int getConjugateGradientSteps() {
+        return this.als.getConjugateGradientSteps();
+    }
+
+    /**
+     * Attaches the external ids of users and items, e.g. {@link InteractionLoader#getUsers()} and
+     * {@link InteractionLoader#getItems()}, so binary models and serving exports carry them along.
+     */
+    public void setIdMappings(IdMapping<?> userIds, IdMapping<?> itemIds) {
+        this.userIds = userIds;
+        this.itemIds = itemIds;
+    }
+
+    /** Null unless set or loaded with the model. */
+    public IdMapping<?> getUserIds() {
+        return this.userIds;
+    }
+
+    public IdMapping<?> getItemIds() {
+        return this.itemIds;
     }
 
     @Override
     public void fit(int stepSize) {
+        invalidateCaches();
+        for (int step = 1; step <= stepSize; ++step) {
+            long start = System.nanoTime();
+            // ratings put while the previous sweep ran join at the sweep boundary
+            drain();
+            this.r.compact();
+            sweep(step, null, null, start);
+        }
+        this.dirtyUsers.clear();
+        this.dirtyItems.clear();
+        rebuildIndex();
+        republishAll();
+    }
+
+    /**
+     * Same as {@link #fit(int)}, but spreads the user and item solves of every sweep over nThreads workers.
+     * nThreads <= 1 trains serially.
+     */
+    public void fit(int stepSize, int nThreads) {
+        int current = this.als instanceof ParallelAlternatingLeastSquares ? ((ParallelAlternatingLeastSquares) this.als).getNThreads() : 1;
+        if (Math.max(nThreads, 1) != current) setEngine(nThreads);
+        fit(stepSize);
+    }
+
+    /**
+     * Shuts down the pool of the last {@link #fit(int, int)} with more than one thread; without it the workers live
+     * as long as the model. Later fits train serially until fit(int, int) asks for threads again.
+     */
+    @Override
+    public void shutdown() {
+        if (this.als instanceof ParallelAlternatingLeastSquares) setEngine(1);
+    }
+
+    /** Replaces the solver by a parallel one on nThreads workers, or a serial one, shutting down the old pool. */
+    private void setEngine(int nThreads) {
+        if (this.als instanceof ParallelAlternatingLeastSquares)
+            ((ParallelAlternatingLeastSquares) this.als).shutdown();
+        int cgSteps = this.als.getConjugateGradientSteps();
+        this.als = nThreads > 1 ? new ParallelAlternatingLeastSquares(nThreads) : new DefaultAlternatingLeastSquares();
+        this.als.setConjugateGradientSteps(cgSteps);
+    }
+
+    /** {@link #fitUntilConverged(int, int, double, long, double, int, RankingMetric)} on NDCG@10 of 10% of the ratings, every sweep. */
+    public Evaluation fitUntilConverged(int maxSteps, double minImprovement, long timeBudgetMillis) {
+        return fitUntilConverged(maxSteps, 1, minImprovement, timeBudgetMillis, 0.1, 10, RankingMetric.NDCG);
+    }
+
+    /**
+     * Trains like {@link #fit(int)} on all but a random holdoutFraction of every user's ratings, and every
+     * evalInterval sweeps ranks the held-out ratings with an {@link Evaluator}. Stops at the first evaluation whose
+     * metric improved by less than minImprovement since the previous one, once timeBudgetMillis has passed, or after
+     * maxSteps sweeps, whichever comes first. Evaluations are reported to the training listeners.
+     *
+     * The held-out ratings are put back at the end, except cells written by {@link #put} meanwhile, deletions
+     * included. The returned model is still the one trained without them: their rows are left dirty and are refit only
+     * by the next {@link #fitIncremental}, or by any other fit.
+     *
+     * @param timeBudgetMillis checked after every sweep, 0 for no limit
+     * @return the last evaluation, or null if none ran
+     */
+    public Evaluation fitUntilConverged(int maxSteps, int evalInterval, double minImprovement, long timeBudgetMillis,
+                                        double holdoutFraction, int k, RankingMetric metric) {
+        long start = System.nanoTime();
+        drain();
+        invalidateCaches();
+        InteractionMatrix holdout = Evaluator.holdout(this.r, holdoutFraction, HOLDOUT_SEED);
+        Evaluator evaluator = new Evaluator(holdout, k, 1000, 100, Runtime.getRuntime().availableProcessors(), HOLDOUT_SEED);
+        Evaluation last = null;
+        InteractionMatrix written = this.written = new InteractionMatrix(this.r.rows(), this.r.cols());
+        try {
+            for (int step = 1; step <= maxSteps; ++step) {
+                long stepStart = System.nanoTime();
+                drain();
+                this.r.compact();
+                sweep(step, null, null, stepStart);
+
+                if (step % evalInterval == 0 || step == maxSteps) {
+                    Evaluation evaluation = evaluator.evaluate(this.x, this.y, this.r);
+                    for (TrainingListener listener : this.listeners) listener.onEvaluation(step, evaluation);
+                    boolean converged = last != null && evaluation.get(metric) - last.get(metric) < minImprovement;
+                    last = evaluation;
+                    if (converged) break;
+                }
+                if (timeBudgetMillis > 0 && System.nanoTime() - start >= timeBudgetMillis * 1000000L) break;
+            }
+        } finally {
+            evaluator.shutdown();
+            this.written = null;
+        }
+
+        this.dirtyUsers.clear();
+        this.dirtyItems.clear();
+        written.compact();
+        for (int u = 0; u < holdout.rows(); ++u)
+            for (int n = holdout.rowStart(u); n < holdout.rowEnd(u); ++n) {
+                if (written.get(u, holdout.colIndex(n)) != 0) continue;
+                this.r.put(u, holdout.colIndex(n), holdout.rowValue(n));
+                this.dirtyUsers.set(u);
+                this.dirtyItems.set(holdout.colIndex(n));
+            }
+        this.r.compact();
+        rebuildIndex();
+        republishAll();
+        return last;
+    }
+
+    /**
+     * Trains only the rows touched by {@link #put}, {@link #addUsers} or the addEmpty methods since the last training
+     * run, plus their neighbors: the users who rated a dirty item and the items rated by a dirty user. Each step
+     * solves that user set against the fixed items and then that item set against the fixed users, so a step costs
+     * O(ratings of the affected rows) instead of O(nnz). Everything else keeps its factors, which drift from the
+     * optimum as the neighbors move; every fullSweepInterval-th step is therefore a full sweep like {@link #fit(int)}.
+     *
+     * @param fullSweepInterval 0 to never run a full sweep
+     */
+    public void fitIncremental(int stepSize, int fullSweepInterval) {
+        drain();
+        this.r.compact();
+        invalidateCaches();
+        BitSet users = (BitSet) this.dirtyUsers.clone(), items = (BitSet) this.dirtyItems.clone();
+        for (int u = this.dirtyUsers.nextSetBit(0); u >= 0; u = this.dirtyUsers.nextSetBit(u + 1))
+            for (int k = this.r.rowStart(u); k < this.r.rowEnd(u); ++k)
+                items.set(this.r.colIndex(k));
+        for (int i = this.dirtyItems.nextSetBit(0); i >= 0; i = this.dirtyItems.nextSetBit(i + 1))
+            for (int k = this.r.colStart(i); k < this.r.colEnd(i); ++k)
+                users.set(this.r.rowIndex(k));
+        int[] userRows = toArray(users), itemRows = toArray(items);
+        boolean full = false;
+
         for (int step = 1; step <= stepSize; ++step) {
-            this.als.optimizeUser(this.x, this.y, this.c, this.p, this.nUsers, this.nFactor, this.lambda);
-            this.als.optimizeItem(this.x, this.y, this.c, this.p, this.nItems, this.nFactor, this.lambda);
-
-            if (this.printLog) {
-                double[] loss = this.als.loss(this.x, this.y, this.c, this.p, this.lambda);
-                System.out.println("------------------------------Step " + step + "----------------------------");
-                System.out.println("predict error: " + loss[0]);
-                System.out.println("confidence error: " + loss[1]);
-                System.out.println("regularization: " + loss[2]);
-                System.out.println("total loss: " + loss[3]);
+            if (fullSweepInterval > 0 && step % fullSweepInterval == 0) {
+                full = true;
+                sweep(step, null, null, System.nanoTime());
+            } else {
+                sweep(step, userRows, itemRows, System.nanoTime());
             }
         }
+        this.dirtyUsers.clear();
+        this.dirtyItems.clear();
+        rebuildIndex();
+        if (full) {
+            republishAll();
+        } else {
+            this.changedUsers.or(users);
+            this.changedItems.or(items);
+            republish();
+        }
+    }
+
+    public int getDirtyUserCount() {
+        return this.dirtyUsers.cardinality();
+    }
+
+    public int getDirtyItemCount() {
+        return this.dirtyItems.cardinality();
+    }
+
+    /**
+     * Refreshes one user's factors from its current ratings against the fixed item factors, without a sweep. Call it
+     * after {@link #put} or {@link #addUser} to personalize a new or active user right away; items are unchanged.
+     */
+    public void foldInUser(int user) {
+        foldInUsers(new int[] { user });
+    }
+
+    /**
+     * Folds in a batch of users against one cached YtY, which is computed once after every change to Y. Queued
+     * writes are compacted first only when scanning them for every user would cost more than compacting.
+     */
+    public void foldInUsers(int[] users) {
+        drain();
+        heapFactors();
+        if ((long) this.r.pending() * users.length > this.r.nnz()) this.r.compact();
+        if (this.yty == null) this.yty = MatrixUtil.gram(this.y, new double[this.nFactor][this.nFactor]);
+        for (int u : users)
+            this.als.foldInUser(this.x, this.y, this.yty, this.r, u, this.nFactor, this.lambda, this.alpha);
+        this.xtx = null;
+        for (int u : users) {
+            this.changedUsers.set(u);
+            if (this.userNorms != null) this.userNorms[u] = Math.sqrt(this.x.dot(u, this.x, u));
+        }
+        republish();
+    }
+
+    /** Same as {@link #foldInUser} for an item against the fixed user factors. */
+    public void foldInItem(int item) {
+        foldInItems(new int[] { item });
+    }
+
+    public void foldInItems(int[] items) {
+        drain();
+        heapFactors();
+        if ((long) this.r.pending() * items.length > this.r.nnz()) this.r.compact();
+        if (this.xtx == null) this.xtx = MatrixUtil.gram(this.x, new double[this.nFactor][this.nFactor]);
+        for (int i : items)
+            this.als.foldInItem(this.x, this.y, this.xtx, this.r, i, this.nFactor, this.lambda, this.alpha);
+        this.yty = null;
+        for (int i : items) {
+            this.changedItems.set(i);
+            if (this.itemNorms != null) this.itemNorms[i] = Math.sqrt(this.y.dot(i, this.y, i));
+        }
+        clearSimilarItems();
+        republish();
     }
 
     @Override
     public double[][] predict() {
-        return MatrixUtil.product(this.x, MatrixUtil.transpose(this.y));
+        return MatrixUtil.productTranspose(this.x, this.y);
+    }
+
+    /**
+     * Scores the user against every item and keeps the best k in a bounded heap, without materializing
+     * {@link #predict()}.
+     *
+     * @return up to k item indexes ordered by descending score
+     */
+    @Override
+    public int[] recommend(int user, int k, boolean excludeSeen) {
+        return recommend(new int[] { user }, k, excludeSeen)[0];
+    }
+
+    /**
+     * Pending writes are replayed per user instead of compacted, like the fold-ins, unless replaying them for every
+     * user would cost more than one compaction.
+     */
+    @Override
+    public int[][] recommend(int[] users, int k, boolean excludeSeen) {
+        drain();
+        if ((long) this.r.pending() * users.length > this.r.nnz()) this.r.compact();
+        return ModelSnapshot.recommend(this.x, this.y, this.r, users, k, excludeSeen);
+    }
+
+    /** Items most similar to item by the cosine of their factors, best first, excluding item itself. */
+    @Override
+    public int[] similarItems(int item, int k) {
+        return similarItems(new int[] { item }, k)[0];
+    }
+
+    /**
+     * Scores a batch of items in one blocked pass over Y against cached item norms, see
+     * {@link ModelSnapshot#similar}. Items in the similar-item table are answered without scoring.
+     */
+    public int[][] similarItems(int[] items, int k) {
+        if (this.itemNorms == null) this.itemNorms = ModelSnapshot.norms(this.y);
+        return ModelSnapshot.similar(this.y, this.itemNorms, items, k, this.similarItems);
+    }
+
+    @Override
+    public int[] similarUsers(int user, int k) {
+        return similarUsers(new int[] { user }, k)[0];
+    }
+
+    public int[][] similarUsers(int[] users, int k) {
+        if (this.userNorms == null) this.userNorms = ModelSnapshot.norms(this.x);
+        return ModelSnapshot.similar(this.x, this.userNorms, users, k, null);
+    }
+
+    /**
+     * Keeps the similar items of up to capacity items, least recently used evicted first, so item pages of the
+     * hottest items are answered from the table. Snapshots keep their own table. The table is cleared whenever item
+     * factors change; to precompute it, call {@link #similarItems(int[], int)} with the hot items after training.
+     *
+     * @param capacity 0 to disable the table, the default
+     */
+    public void setSimilarItemCache(int capacity) {
+        this.similarItemCache = capacity;
+        clearSimilarItems();
+        republish();
+    }
+
+    public int[] recommendApproximate(int user, int k, boolean excludeSeen, int ef) {
+        return recommendApproximate(new int[] { user }, k, excludeSeen, ef)[0];
+    }
+
+    /**
+     * Recommends through the item index built by {@link #buildIndex}, see
+     * {@link ModelSnapshot#recommendApproximate(FactorMatrix, FactorMatrix, InteractionMatrix, HnswIndex, int[], int, boolean, int)}.
+     * Items folded in or added since the last training run are scored with their current factors.
+     *
+     * @param ef candidates examined per user, at least k; higher is slower and closer to {@link #recommend}
+     */
+    public int[][] recommendApproximate(int[] users, int k, boolean excludeSeen, int ef) {
+        if (this.index == null) throw new IllegalStateException("buildIndex() was not called");
+        drain();
+        if ((long) this.r.pending() * users.length > this.r.nnz()) this.r.compact();
+        return ModelSnapshot.recommendApproximate(this.x, this.y, this.r, this.index, users, k, excludeSeen, ef);
+    }
+
+    public void buildIndex() {
+        buildIndex(HnswIndex.DEFAULT_M, HnswIndex.DEFAULT_EF_CONSTRUCTION);
+    }
+
+    /**
+     * Builds an {@link HnswIndex} over the item factors for {@link #recommendApproximate}. From then on the index is
+     * published with the snapshots and checked at the end of every fit, incremental fit and load; it is rebuilt only
+     * once more than a tenth of the items have drifted from their indexed factors (see {@link HnswIndex#stale}).
+     */
+    public void buildIndex(int m, int efConstruction) {
+        this.indexM = m;
+        this.indexEfConstruction = efConstruction;
+        this.index = new HnswIndex(this.y, m, efConstruction, Runtime.getRuntime().availableProcessors());
+        republish();
+    }
+
+    public HnswIndex getIndex() {
+        return this.index;
+    }
+
+    /** Drops the index and stops rebuilding it. */
+    public void removeIndex() {
+        this.index = null;
+        republish();
+    }
+
+    /**
+     * Publishes the current factors and ratings, pending writes included, as a new {@link ModelSnapshot} for serving
+     * threads. The live model is not thread-safe: predict, recommend and every write must come from one training
+     * thread. Once publish has been called, the model republishes by itself at the end of every fit, fold-in, resize,
+     * precision change and load, so {@link #snapshot()} follows training without further calls; after plain
+     * {@link #put} calls, publish again to make the ratings visible.
+     *
+     * Unchanged row blocks are shared with the previous version (see {@link BlockFactorMatrix}), so publishing after
+     * a fold-in or an incremental fit copies only the blocks around the touched rows. A full fit copies X and Y once,
+     * which is small next to the sweep itself.
+     */
+    public ModelSnapshot publish() {
+        drain();
+        this.r.compact();
+        publish(this.published.get());
+        return this.published.get();
+    }
+
+    /** Latest published version; safe to call from any thread. Null until {@link #publish()} is first called. */
+    public ModelSnapshot snapshot() {
+        return this.published.get();
     }
 
     @Override
     public double[][] getR() {
-        return this.r;
+        drain();
+        return this.r.toDense();
     }
 
+    /**
+     * Safe to call from any thread, also while the model trains: ratings are buffered in an {@link InteractionBuffer}
+     * and merged by the training thread at the next sweep boundary, fold-in, recommend, publish or save, or by
+     * {@link #drain()}.
+     */
     @Override
     public void put(int user, int item, double rating) {
-        this.r[user][item] = rating;
-        this.p[user][item] = rating > 0 ? 1 : 0;
-        this.c[user][item] = 1 + this.alpha * rating;
+        this.buffer.put(user, item, rating);
+    }
+
+    /**
+     * Merges the ratings buffered by {@link #put} into the interaction store and marks their users and items dirty.
+     * Called by the training thread only.
+     *
+     * @return the number of merged ratings
+     */
+    public int drain() {
+        return this.buffer.drainTo(this.r, this.dirtyUsers, this.dirtyItems, this.written);
     }
 
     @Override
@@ -102,39 +543,40 @@ public class DefaultMatrixFactorization implements MatrixFactorization {
         addUsers(new double[][] { user });
     }
 
+    /**
+     * Appends users with the given dense rating rows. Storage grows geometrically and the ratings go through the same
+     * buffer as {@link #put}, so they keep their order relative to concurrent puts and are merged at the next drain;
+     * the cost is O(nItems + nFactor) per user. Called by the training thread only, like the addEmpty methods.
+     */
     @Override
     public void addUsers(double[][] users) {
-        double[][] r = new double[this.nUsers = this.r.length + users.length][this.nItems];
-        for (int i = 0; i < this.r.length; ++i)
-            System.arraycopy(this.r[i], 0, r[i], 0, this.nItems);
-        for (int i = 0; i < users.length; ++i)
-            System.arraycopy(users[i], 0, r[this.r.length + i], 0, this.nItems);
-        this.r = r;
-
-        double[][] x = new double[this.nUsers][this.nFactor];
-        for (int i = 0; i < this.x.length; ++i)
-            System.arraycopy(this.x[i], 0, x[i], 0, this.nFactor);
-        Random random = new Random();
-        for (int i = this.x.length; i < x.length; ++i)
-            for (int j = 0; j < x[i].length; ++j)
-                x[i][j] = random.nextDouble() * 0.01;
-        this.x = x;
-
-        init();
+        int offset = this.nUsers;
+        addEmptyUsers(users.length);
+        for (int u = 0; u < users.length; ++u)
+            for (int i = 0; i < this.nItems; ++i)
+                if (users[u][i] != 0) this.buffer.put(offset + u, i, users[u][i]);
     }
 
     @Override
     public void addEmptyUser() {
-        double[] user = new double[this.nItems];
-        Arrays.fill(user, 0);
-        addUser(user);
+        addEmptyUsers(1);
     }
 
+    /** Amortized O(nFactor) per user: only the new rows of X are initialized. */
     @Override
     public void addEmptyUsers(int nUsers) {
-        double[][] users = new double[nUsers][this.nItems];
-        for (double[] user : users) Arrays.fill(user, 0);
-        addUsers(users);
+        int offset = this.nUsers;
+        this.r.addRows(nUsers);
+        this.nUsers = this.r.rows();
+        this.buffer.resize(this.nUsers, this.nItems);
+        heapFactors();
+        this.x.addRows(nUsers);
+        initWeights(this.x, offset);
+        if (this.xtx != null) addGram(this.xtx, this.x, offset);
+        if (this.userNorms != null) this.userNorms = addNorms(this.userNorms, this.x, offset);
+        this.dirtyUsers.set(offset, this.nUsers);
+        this.changedUsers.set(offset, this.nUsers);
+        republish();
     }
 
     @Override
@@ -142,42 +584,32 @@ public class DefaultMatrixFactorization implements MatrixFactorization {
         addEmptyItems(1);
     }
 
+    /** Amortized O(nFactor) per item, like {@link #addEmptyUsers}. */
     @Override
     public void addEmptyItems(int nItems) {
-        double[][] r = new double[this.nUsers][this.nItems + nItems];
-        for (int i = 0; i < this.nUsers; ++i) {
-            System.arraycopy(this.r[i], 0, r[i], 0, this.nItems);
-            for (int j = this.r[i].length; j < r[i].length; ++j) r[i][j] = 0;
-        }
-        this.r = r;
-
-        double[][] y = new double[this.nItems + nItems][this.nFactor];
-        for (int i = 0; i < this.y.length; ++i)
-            System.arraycopy(this.y[i], 0, y[i], 0, this.nFactor);
-        Random random = new Random();
-        for (int i = this.y.length; i < y.length; ++i)
-            for (int j = 0; j < y[i].length; ++j)
-                y[i][j] = random.nextDouble() * 0.01;
-        this.y = y;
-
-        init();
-    }
-
-    private void init() {
-        this.c = new double[this.r.length][this.r[0].length];
-        this.p = new double[this.r.length][this.r[0].length];
-        for (int u = 0; u < this.r.length; ++u)
-            for (int i = 0; i < this.r[u].length; ++i) {
-                this.c[u][i] = 1 + this.alpha * this.r[u][i];
-                this.p[u][i] = this.r[u][i] > 0 ? 1 : 0;
-            }
+        this.r.addCols(nItems);
+        this.buffer.resize(this.nUsers, this.r.cols());
+        heapFactors();
+        this.y.addRows(nItems);
+        initWeights(this.y, this.nItems);
+        if (this.yty != null) addGram(this.yty, this.y, this.nItems);
+        if (this.itemNorms != null) this.itemNorms = addNorms(this.itemNorms, this.y, this.nItems);
+        // the new items may be closer to cached items than their cached neighbors
+        clearSimilarItems();
+        this.dirtyItems.set(this.nItems, this.r.cols());
+        this.changedItems.set(this.nItems, this.r.cols());
+        this.nItems = this.r.cols();
+        republish();
     }
 
+    /** Writes the binary {@link ModelFile} format, or the CSV-in-ZIP export format if fileName contains ".zip". */
     @Override
     public void saveModel(String fileName) {
+        drain();
         if (fileName.contains(".zip")) {
-            String[] confs = new String[]{"conf.csv", "r.csv", "x.csv", "y.csv", "c.csv", "p.csv"};
+            String[] confs = new String[]{"conf.csv", "r.csv", "x.csv", "y.csv"};
             try {
+                this.r.compact();
                 for (String conf : confs) {
                     BufferedWriter writer = new BufferedWriter(new FileWriter(conf));
                     if (conf.equals("conf.csv")) {
@@ -187,19 +619,20 @@ public class DefaultMatrixFactorization implements MatrixFactorization {
                                 + this.lambda + ","
                                 + this.alpha);
                     } else if (conf.equals("r.csv")) {
-                        writer.write(this.nUsers + "," + this.nItems);
+                        // observed interactions only, one user,item,rating triple per line
+                        writer.write(this.nUsers + "," + this.nItems + "," + this.r.nnz());
                         writer.newLine();
-                        for (double[] vec : this.r) {
-                            StringBuilder s = new StringBuilder().append(vec[0]);
-                            for (int j = 1; j < vec.length; ++j)
-                                s.append(",").append(vec[j]);
-                            writer.write(s.toString());
-                            writer.newLine();
-                        }
+                        for (int u = 0; u < this.nUsers; ++u)
+                            for (int k = this.r.rowStart(u); k < this.r.rowEnd(u); ++k) {
+                                writer.write(u + "," + this.r.colIndex(k) + "," + this.r.rowValue(k));
+                                writer.newLine();
+                            }
                     } else if (conf.equals("x.csv")) {
                         writer.write(this.nUsers + "," + this.nFactor);
                         writer.newLine();
-                        for (double[] vec : this.x) {
+                        double[] vec = new double[this.nFactor];
+                        for (int i = 0; i < this.x.rows(); ++i) {
+                            this.x.getRow(i, vec);
                             StringBuilder s = new StringBuilder().append(vec[0]);
                             for (int j = 1; j < vec.length; ++j)
                                 s.append(",").append(vec[j]);
@@ -209,27 +642,9 @@ public class DefaultMatrixFactorization implements MatrixFactorization {
                     } else if (conf.equals("y.csv")) {
                         writer.write(this.nItems + "," + this.nFactor);
                         writer.newLine();
-                        for (double[] vec : this.y) {
-                            StringBuilder s = new StringBuilder().append(vec[0]);
-                            for (int j = 1; j < vec.length; ++j)
-                                s.append(",").append(vec[j]);
-                            writer.write(s.toString());
-                            writer.newLine();
-                        }
-                    } else if (conf.equals("c.csv")) {
-                        writer.write(this.nUsers + "," + this.nItems);
-                        writer.newLine();
-                        for (double[] vec : this.c) {
-                            StringBuilder s = new StringBuilder().append(vec[0]);
-                            for (int j = 1; j < vec.length; ++j)
-                                s.append(",").append(vec[j]);
-                            writer.write(s.toString());
-                            writer.newLine();
-                        }
-                    } else if (conf.equals("p.csv")) {
-                        writer.write(this.nUsers + "," + this.nItems);
-                        writer.newLine();
-                        for (double[] vec : this.p) {
+                        double[] vec = new double[this.nFactor];
+                        for (int i = 0; i < this.y.rows(); ++i) {
+                            this.y.getRow(i, vec);
                             StringBuilder s = new StringBuilder().append(vec[0]);
                             for (int j = 1; j < vec.length; ++j)
                                 s.append(",").append(vec[j]);
@@ -259,11 +674,41 @@ public class DefaultMatrixFactorization implements MatrixFactorization {
             } catch (IOException e) {
                 e.printStackTrace();
             }
+        } else {
+            try {
+                this.r.compact();
+                new ModelFile(this.r, this.x, this.y, this.lambda, this.alpha, this.userIds, this.itemIds).write(fileName);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes X, Y and the id mappings only, in the binary {@link ModelFile} format. The result is a fraction of the
+     * size of {@link #saveModel} and serves predict and recommend once loaded, but holds no interactions to train on.
+     */
+    @Override
+    public void exportServingModel(String fileName) {
+        drain();
+        try {
+            new ModelFile(this.r, this.x, this.y, this.lambda, this.alpha, this.userIds, this.itemIds).writeServing(fileName);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
+    /**
+     * Reads a model written by {@link #saveModel}. X and Y of a binary model file are mapped, not parsed, and stay
+     * mapped until the first training step, fold-in or resize copies them onto the heap.
+     */
     @Override
     public void loadModel(String modelPath) {
+        invalidateCaches();
+        // a saved model is trained, so nothing is dirty until the next change, and buffered ratings were for the old one
+        this.dirtyUsers.clear();
+        this.dirtyItems.clear();
+        this.buffer.clear();
         if (modelPath.contains(".zip")) {
             try {
                 ZipInputStream zip = new ZipInputStream(new FileInputStream(modelPath));
@@ -291,58 +736,48 @@ public class DefaultMatrixFactorization implements MatrixFactorization {
                         shape = reader.readLine().split(",");
                         nUsers = Integer.parseInt(shape[0]);
                         nItems = Integer.parseInt(shape[1]);
-                        r = new double[nUsers][nItems];
-
-                        for (int i = 0; i < r.length && (line = reader.readLine()) != null; ++i) {
-                            String[] elements = line.split(",");
-                            for (int j = 0; j < r[i].length; ++j)
-                                r[i][j] = Double.parseDouble(elements[j]);
+                        r = new InteractionMatrix(nUsers, nItems);
+
+                        if (shape.length > 2) {
+                            while ((line = reader.readLine()) != null) {
+                                String[] elements = line.split(",");
+                                r.put(Integer.parseInt(elements[0]), Integer.parseInt(elements[1]), Double.parseDouble(elements[2]));
+                            }
+                        } else {
+                            // archives written before r.csv became sparse hold one dense row per user
+                            for (int i = 0; i < nUsers && (line = reader.readLine()) != null; ++i) {
+                                String[] elements = line.split(",");
+                                for (int j = 0; j < nItems; ++j) {
+                                    double rating = Double.parseDouble(elements[j]);
+                                    if (rating != 0) r.put(i, j, rating);
+                                }
+                            }
                         }
+                        r.compact();
                     } else if (fileName.equals("x.csv")) {
                         shape = reader.readLine().split(",");
                         nUsers = Integer.parseInt(shape[0]);
                         nFactor = Integer.parseInt(shape[1]);
-                        x = new double[nUsers][nFactor];
+                        x = FactorMatrix.create(nUsers, nFactor, precision);
 
-                        for (int i = 0; i < x.length && (line = reader.readLine()) != null; ++i) {
+                        for (int i = 0; i < x.rows() && (line = reader.readLine()) != null; ++i) {
                             String[] elements = line.split(",");
-                            for (int j = 0; j < x[i].length; ++j)
-                                x[i][j] = Double.parseDouble(elements[j]);
+                            for (int j = 0; j < x.cols(); ++j)
+                                x.set(i, j, Double.parseDouble(elements[j]));
                         }
                     } else if (fileName.equals("y.csv")) {
                         shape = reader.readLine().split(",");
                         nItems = Integer.parseInt(shape[0]);
                         nFactor = Integer.parseInt(shape[1]);
-                        y = new double[nItems][nFactor];
-
-                        for (int i = 0; i < y.length && (line = reader.readLine()) != null; ++i) {
-                            String[] elements = line.split(",");
-                            for (int j = 0; j < y[i].length; ++j)
-                                y[i][j] = Double.parseDouble(elements[j]);
-                        }
-                    } else if (fileName.equals("c.csv")) {
-                        shape = reader.readLine().split(",");
-                        nUsers = Integer.parseInt(shape[0]);
-                        nItems = Integer.parseInt(shape[1]);
-                        c = new double[nUsers][nItems];
+                        y = FactorMatrix.create(nItems, nFactor, precision);
 
-                        for (int i = 0; i < c.length && (line = reader.readLine()) != null; ++i) {
+                        for (int i = 0; i < y.rows() && (line = reader.readLine()) != null; ++i) {
                             String[] elements = line.split(",");
-                            for (int j = 0; j < c[i].length; ++j)
-                                c[i][j] = Double.parseDouble(elements[j]);
-                        }
-                    } else if (fileName.equals("p.csv")) {
-                        shape = reader.readLine().split(",");
-                        nUsers = Integer.parseInt(shape[0]);
-                        nItems = Integer.parseInt(shape[1]);
-                        p = new double[nUsers][nItems];
-
-                        for (int i = 0; i < p.length && (line = reader.readLine()) != null; ++i) {
-                            String[] elements = line.split(",");
-                            for (int j = 0; j < p[i].length; ++j)
-                                p[i][j] = Double.parseDouble(elements[j]);
+                            for (int j = 0; j < y.cols(); ++j)
+                                y.set(i, j, Double.parseDouble(elements[j]));
                         }
                     }
+                    // c.csv and p.csv of older archives are derived from r and alpha, so they are skipped
                     reader.close();
                     file.delete();
                 }
@@ -350,13 +785,148 @@ public class DefaultMatrixFactorization implements MatrixFactorization {
             } catch (IOException e) {
                 e.printStackTrace();
             }
+        } else {
+            try {
+                ModelFile model = ModelFile.read(modelPath);
+                this.r = model.getR();
+                this.x = model.getX();
+                this.y = model.getY();
+                this.nUsers = this.r.rows();
+                this.nItems = this.r.cols();
+                this.nFactor = this.x.cols();
+                this.lambda = model.getLambda();
+                this.alpha = model.getAlpha();
+                this.precision = this.x.precision();
+                this.userIds = model.getUserIds();
+                this.itemIds = model.getItemIds();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+        this.buffer.resize(this.nUsers, this.nItems);
+        rebuildIndex();
+        republishAll();
+    }
+
+    /**
+     * Solves the given users against the items and then the given items against the users, every row if null, and
+     * reports the step to the listeners. Measuring costs a few clock reads unless a listener is registered.
+     *
+     * @param start when the step began, before draining the buffer
+     */
+    private void sweep(int step, int[] userRows, int[] itemRows, long start) {
+        heapFactors();
+        boolean report = !this.listeners.isEmpty();
+        long allocated = report ? Allocations.training() : -1, gram = this.als.getGramNanos();
+        long userStart = System.nanoTime();
+        if (userRows == null) this.als.optimizeUser(this.x, this.y, this.r, this.nUsers, this.nFactor, this.lambda, this.alpha);
+        else this.als.optimizeUsers(this.x, this.y, this.r, userRows, this.nFactor, this.lambda, this.alpha);
+        long itemStart = System.nanoTime();
+        if (itemRows == null) this.als.optimizeItem(this.x, this.y, this.r, this.nItems, this.nFactor, this.lambda, this.alpha);
+        else this.als.optimizeItems(this.x, this.y, this.r, itemRows, this.nFactor, this.lambda, this.alpha);
+        long end = System.nanoTime();
+        if (!report) return;
+
+        if (allocated >= 0) allocated = Allocations.training() - allocated;
+        gram = this.als.getGramNanos() - gram;
+        boolean needsLoss = false;
+        for (TrainingListener listener : this.listeners) needsLoss |= listener.needsLoss();
+        double[] loss = needsLoss ? this.als.loss(this.x, this.y, this.r, this.lambda, this.alpha) : null;
+        TrainingStep metrics = new TrainingStep(step, userRows == null && itemRows == null,
+                userRows == null ? this.nUsers : userRows.length, itemRows == null ? this.nItems : itemRows.length,
+                ratings(userRows, true) + ratings(itemRows, false), userStart - start, itemStart - userStart, end - itemStart,
+                gram, needsLoss ? System.nanoTime() - end : 0, allocated, loss);
+        for (TrainingListener listener : this.listeners) listener.onStep(metrics);
+    }
+
+    /** Interactions of the given users or items, or nnz if rows is null. */
+    private long ratings(int[] rows, boolean users) {
+        if (rows == null) return this.r.nnz();
+        long total = 0;
+        for (int row : rows) total += users ? this.r.rowEnd(row) - this.r.rowStart(row) : this.r.colEnd(row) - this.r.colStart(row);
+        return total;
+    }
+
+    /** Drops every cache derived from X and Y after they changed as a whole. */
+    private void invalidateCaches() {
+        this.yty = this.xtx = null;
+        this.userNorms = this.itemNorms = null;
+        clearSimilarItems();
+    }
+
+    private void clearSimilarItems() {
+        this.similarItems = this.similarItemCache > 0 ? new NeighborCache(this.similarItemCache) : null;
+    }
+
+    /** Extends cached norms by the rows from offset on, growing the array geometrically. */
+    private static double[] addNorms(double[] norms, FactorMatrix factors, int offset) {
+        if (factors.rows() > norms.length) norms = Arrays.copyOf(norms, Math.max(factors.rows(), 2 * norms.length));
+        for (int i = offset; i < factors.rows(); ++i) norms[i] = Math.sqrt(factors.dot(i, factors, i));
+        return norms;
+    }
+
+    private void rebuildIndex() {
+        if (this.index != null && this.index.stale(this.y, INDEX_DRIFT) > INDEX_STALE_FRACTION * this.nItems)
+            this.index = new HnswIndex(this.y, this.indexM, this.indexEfConstruction, Runtime.getRuntime().availableProcessors());
+    }
+
+    private void republishAll() {
+        this.changedUsers.set(0, this.nUsers);
+        this.changedItems.set(0, this.nItems);
+        republish();
+    }
+
+    /** Publishes a new version if publish() was ever called. */
+    private void republish() {
+        ModelSnapshot last = this.published.get();
+        if (last != null) publish(last);
+    }
+
+    /** Builds the next version from last, sharing the blocks without changed rows, or copies everything if null. */
+    private void publish(ModelSnapshot last) {
+        BlockFactorMatrix x = BlockFactorMatrix.copyOf(last == null ? null : (BlockFactorMatrix) last.getX(), this.x, this.changedUsers);
+        BlockFactorMatrix y = BlockFactorMatrix.copyOf(last == null ? null : (BlockFactorMatrix) last.getY(), this.y, this.changedItems);
+        this.published.set(new ModelSnapshot(last == null ? 1 : last.getVersion() + 1, x, y, this.r.snapshot(), this.index, last, this.similarItemCache));
+        this.changedUsers.clear();
+        this.changedItems.clear();
+    }
+
+    /**
+     * Copies X and Y still mapped from a loaded {@link ModelFile} onto the heap before their first write, so training
+     * runs on one contiguous array instead of writing through segments copied out of the mapping. A model that is
+     * only served never copies them.
+     */
+    private void heapFactors() {
+        if (this.x instanceof MappedDoubleFactorMatrix || this.x instanceof MappedFloatFactorMatrix) this.x = this.x.copy(this.precision);
+        if (this.y instanceof MappedDoubleFactorMatrix || this.y instanceof MappedFloatFactorMatrix) this.y = this.y.copy(this.precision);
+    }
+
+    private void markAllDirty() {
+        this.dirtyUsers.set(0, this.nUsers);
+        this.dirtyItems.set(0, this.nItems);
+    }
+
+    private static int[] toArray(BitSet rows) {
+        int[] array = new int[rows.cardinality()];
+        for (int row = rows.nextSetBit(0), k = 0; row >= 0; row = rows.nextSetBit(row + 1))
+            array[k++] = row;
+        return array;
+    }
+
+    /** Adds the rows from offset on to a cached Gram matrix, so appended users or items do not invalidate it. */
+    private static void addGram(double[][] gram, FactorMatrix factors, int offset) {
+        for (int i = offset; i < factors.rows(); ++i)
+            factors.addOuter(i, 1, gram);
+        for (int f = 0; f < gram.length; ++f)
+            for (int g = 0; g < f; ++g)
+                gram[f][g] = gram[g][f];
     }
 
-    private void initWeights(double[][] matrix) {
+    /** Randomly initializes the rows from offset on. */
+    private void initWeights(FactorMatrix matrix, int offset) {
         Random random = new Random();
-        for (int i = 0; i < matrix.length; ++i)
-            for (int j = 0; j < matrix[i].length; ++j)
-                matrix[i][j] = Math.abs(random.nextDouble() * 0.01);
+        for (int i = offset; i < matrix.rows(); ++i)
+            for (int j = 0; j < matrix.cols(); ++j)
+                matrix.set(i, j, Math.abs(random.nextDouble() * 0.01));
     }
 }
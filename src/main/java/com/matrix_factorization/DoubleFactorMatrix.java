@@ -0,0 +1,88 @@
+package com.matrix_factorization;
+
+import java.util.Arrays;
+
+/** {@link FactorMatrix} backed by a double[]. */
+public class DoubleFactorMatrix extends FactorMatrix {
+    private double[] data;
+
+    public DoubleFactorMatrix(int rows, int cols) {
+        super(rows, cols);
+        this.data = new double[length(rows, cols)];
+    }
+
+    public DoubleFactorMatrix(double[][] matrix) {
+        this(matrix.length, matrix.length == 0 ? 0 : matrix[0].length);
+        for (int i = 0; i < this.rows; ++i)
+            System.arraycopy(matrix[i], 0, this.data, i * this.cols, this.cols);
+    }
+
+    @Override
+    public Precision precision() {
+        return Precision.DOUBLE;
+    }
+
+    @Override
+    public double get(int row, int col) {
+        return this.data[row * this.cols + col];
+    }
+
+    @Override
+    public void set(int row, int col, double value) {
+        this.data[row * this.cols + col] = value;
+    }
+
+    @Override
+    public double[] getRow(int row, double[] dst) {
+        System.arraycopy(this.data, row * this.cols, dst, 0, this.cols);
+        return dst;
+    }
+
+    @Override
+    public void setRow(int row, double[] src) {
+        System.arraycopy(src, 0, this.data, row * this.cols, this.cols);
+    }
+
+    /** Grows the backing array geometrically, so appending rows one at a time costs amortized O(cols) per row. */
+    @Override
+    public void addRows(int n) {
+        int size = length((long) this.rows + n, this.cols);
+        if (size > this.data.length) this.data = Arrays.copyOf(this.data, grow(this.data.length, size));
+        this.rows += n;
+    }
+
+    @Override
+    public double dot(int row, double[] v) {
+        return Kernels.INSTANCE.dot(this.data, row * this.cols, v, 0, this.cols);
+    }
+
+    @Override
+    public double dot(int row, FactorMatrix other, int otherRow) {
+        if (!(other instanceof DoubleFactorMatrix)) return other.dot(otherRow, this, row);
+        return Kernels.INSTANCE.dot(this.data, row * this.cols, ((DoubleFactorMatrix) other).data, otherRow * other.cols, this.cols);
+    }
+
+    @Override
+    public void axpy(int row, double w, double[] b) {
+        Kernels.INSTANCE.axpy(w, this.data, row * this.cols, b, 0, this.cols);
+    }
+
+    @Override
+    public void addOuter(int row, double w, double[][] a) {
+        Kernels.INSTANCE.addOuter(w, this.data, row * this.cols, this.cols, a);
+    }
+
+    /** Rows are contiguous, so the whole matrix is one rank-k update. */
+    @Override
+    public void addGram(double[][] a) {
+        Kernels.INSTANCE.addGram(this.data, 0, this.rows, this.cols, a);
+    }
+
+    @Override
+    public double squaredNorm() {
+        double total = 0;
+        for (int k = 0; k < this.rows * this.cols; ++k)
+            total += this.data[k] * this.data[k];
+        return total;
+    }
+}
@@ -0,0 +1,60 @@
+package com.matrix_factorization;
+
+/** Ranking metrics of a model on held-out ratings, averaged over the evaluated users; see {@link Evaluator}. */
+public class Evaluation {
+    private final int users, k;
+    private final double precision, recall, ndcg, auc;
+
+    public Evaluation(int users, int k, double precision, double recall, double ndcg, double auc) {
+        this.users = users;
+        this.k = k;
+        this.precision = precision;
+        this.recall = recall;
+        this.ndcg = ndcg;
+        this.auc = auc;
+    }
+
+    /** Users with held-out ratings that were evaluated; every metric is 0 if none. */
+    public int getUsers() {
+        return this.users;
+    }
+
+    public int getK() {
+        return this.k;
+    }
+
+    /** Precision@k: held-out items among the top k, divided by k. */
+    public double getPrecision() {
+        return this.precision;
+    }
+
+    /** Recall@k: held-out items among the top k, divided by the user's held-out items. */
+    public double getRecall() {
+        return this.recall;
+    }
+
+    /** NDCG@k with binary relevance. */
+    public double getNdcg() {
+        return this.ndcg;
+    }
+
+    /** Probability that a held-out item outscores a sampled unrated one. */
+    public double getAuc() {
+        return this.auc;
+    }
+
+    public double get(RankingMetric metric) {
+        switch (metric) {
+            case PRECISION: return this.precision;
+            case RECALL: return this.recall;
+            case NDCG: return this.ndcg;
+            default: return this.auc;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("users %d, precision@%d %.4f, recall@%d %.4f, ndcg@%d %.4f, auc %.4f",
+                this.users, this.k, this.precision, this.k, this.recall, this.k, this.ndcg, this.auc);
+    }
+}
@@ -0,0 +1,206 @@
+package com.matrix_factorization;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Measures how well a model ranks held-out ratings, without materializing the prediction.
+ *
+ * Evaluation runs over a fixed random sample of the users with held-out ratings, so successive evaluations during
+ * training are comparable and cost O(sampleUsers * nItems * nFactor) however many users there are. Each sampled user
+ * is scored against every item they did not rate in training, keeping only the top k in a heap, for precision, recall
+ * and NDCG at k; AUC compares the held-out items with a sample of unrated items instead of ranking them all. Users are
+ * spread over a work-stealing pool, and each task accumulates its sums locally and merges them once.
+ */
+public class Evaluator {
+    private static final int CHUNK = 16;
+
+    private final InteractionMatrix holdout;
+    private final int k, negatives;
+    private final long seed;
+    private final int[] users;
+    private final ForkJoinPool pool;
+
+    /** Evaluates up to 1000 users with 100 sampled negatives each, on all processors. */
+    public Evaluator(InteractionMatrix holdout, int k) {
+        this(holdout, k, 1000, 100, Runtime.getRuntime().availableProcessors(), 0);
+    }
+
+    /**
+     * @param holdout held-out ratings, compacted; every stored rating counts as relevant
+     * @param sampleUsers users evaluated at most, drawn once from those with held-out ratings
+     * @param negatives unrated items sampled per user for AUC
+     */
+    public Evaluator(InteractionMatrix holdout, int k, int sampleUsers, int negatives, int nThreads, long seed) {
+        this.holdout = holdout;
+        this.k = k;
+        this.negatives = negatives;
+        this.seed = seed;
+        this.pool = new ForkJoinPool(Math.max(1, nThreads));
+
+        int[] users = new int[holdout.rows()];
+        int n = 0;
+        for (int u = 0; u < holdout.rows(); ++u)
+            if (holdout.rowEnd(u) > holdout.rowStart(u)) users[n++] = u;
+        // partial Fisher-Yates shuffle keeps a uniform sample in the leading positions
+        Random random = new Random(seed);
+        int size = Math.min(n, sampleUsers);
+        for (int s = 0; s < size; ++s) {
+            int other = s + random.nextInt(n - s), user = users[other];
+            users[other] = users[s];
+            users[s] = user;
+        }
+        this.users = Arrays.copyOf(users, size);
+        Arrays.sort(this.users);
+    }
+
+    /**
+     * Moves about fraction of every user's positive ratings from r into a new matrix of the same shape, at random
+     * but always leaving the user at least one rating in r. r is compacted before and after.
+     *
+     * @return the held-out ratings, compacted
+     */
+    public static InteractionMatrix holdout(InteractionMatrix r, double fraction, long seed) {
+        r.compact();
+        InteractionMatrix holdout = new InteractionMatrix(r.rows(), r.cols());
+        Random random = new Random(seed);
+        for (int u = 0; u < r.rows(); ++u) {
+            int kept = r.rowEnd(u) - r.rowStart(u);
+            for (int k = r.rowStart(u); k < r.rowEnd(u); ++k) {
+                if (kept <= 1 || r.rowValue(k) <= 0 || random.nextDouble() >= fraction) continue;
+                holdout.put(u, r.colIndex(k), r.rowValue(k));
+                --kept;
+            }
+        }
+        holdout.compact();
+        for (int u = 0; u < holdout.rows(); ++u)
+            for (int k = holdout.rowStart(u); k < holdout.rowEnd(u); ++k)
+                r.put(u, holdout.colIndex(k), 0);
+        r.compact();
+        return holdout;
+    }
+
+    /** Number of users each evaluation covers. */
+    public int getUsers() {
+        return this.users.length;
+    }
+
+    /**
+     * @param train ratings the model was trained on, compacted; their items are excluded from the ranking
+     */
+    public Evaluation evaluate(FactorMatrix x, FactorMatrix y, InteractionMatrix train) {
+        double[] sums = new double[4];
+        if (this.users.length > 0) this.pool.invoke(new Users(this, x, y, train, sums, 0, this.users.length));
+        int n = this.users.length;
+        return n == 0 ? new Evaluation(0, this.k, 0, 0, 0, 0)
+                : new Evaluation(n, this.k, sums[0] / n, sums[1] / n, sums[2] / n, sums[3] / n);
+    }
+
+    public void shutdown() {
+        this.pool.shutdown();
+    }
+
+    /** Adds the precision, recall, NDCG and AUC of users [from, to) of the sample to sums. */
+    private void evaluate(FactorMatrix x, FactorMatrix y, InteractionMatrix train, int from, int to, double[] sums) {
+        double[] vector = new double[x.cols()], negativeScores = new double[this.negatives];
+        TopK top = new TopK(this.k);
+        double precision = 0, recall = 0, ndcg = 0, auc = 0;
+        for (int s = from; s < to; ++s) {
+            int u = this.users[s];
+            x.getRow(u, vector);
+            top.clear();
+            int seen = train.rowStart(u), seenEnd = train.rowEnd(u);
+            for (int i = 0; i < y.rows(); ++i) {
+                if (seen < seenEnd && train.colIndex(seen) == i) {
+                    ++seen;
+                    continue;
+                }
+                top.offer(i, y.dot(i, vector));
+            }
+            int[] best = top.poll();
+
+            int relevant = this.holdout.rowEnd(u) - this.holdout.rowStart(u), hits = 0;
+            double dcg = 0, idcg = 0;
+            for (int j = 0; j < best.length; ++j)
+                if (contains(this.holdout, u, best[j])) {
+                    ++hits;
+                    dcg += 1 / log2(j + 2);
+                }
+            for (int j = 0; j < Math.min(relevant, this.k); ++j) idcg += 1 / log2(j + 2);
+            precision += (double) hits / this.k;
+            recall += (double) hits / relevant;
+            ndcg += dcg / idcg;
+
+            // the same negatives serve every held-out item of the user
+            Random random = new Random(this.seed * 31 + u);
+            int n = 0;
+            for (int attempt = 0; attempt < 2 * this.negatives && n < this.negatives; ++attempt) {
+                int i = random.nextInt(y.rows());
+                if (!contains(train, u, i) && !contains(this.holdout, u, i)) negativeScores[n++] = y.dot(i, vector);
+            }
+            double wins = 0;
+            for (int k = this.holdout.rowStart(u); k < this.holdout.rowEnd(u); ++k) {
+                double score = y.dot(this.holdout.colIndex(k), vector);
+                for (int j = 0; j < n; ++j)
+                    wins += score > negativeScores[j] ? 1 : score == negativeScores[j] ? 0.5 : 0;
+            }
+            auc += n > 0 ? wins / ((double) n * relevant) : 0.5;
+        }
+        synchronized (sums) {
+            sums[0] += precision;
+            sums[1] += recall;
+            sums[2] += ndcg;
+            sums[3] += auc;
+        }
+    }
+
+    /** Binary search of the compacted row; InteractionMatrix.get would compact, which is not safe from workers. */
+    private static boolean contains(InteractionMatrix r, int row, int col) {
+        int low = r.rowStart(row), high = r.rowEnd(row) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1, c = r.colIndex(mid);
+            if (c < col) low = mid + 1;
+            else if (c > col) high = mid - 1;
+            else return true;
+        }
+        return false;
+    }
+
+    private static double log2(int n) {
+        return Math.log(n) / Math.log(2);
+    }
+
+    /** Forks over positions [from, to) of the user sample by halves down to CHUNK users. */
+    private static class Users extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Evaluator evaluator;
+        private final FactorMatrix x, y;
+        private final InteractionMatrix train;
+        private final double[] sums;
+        private final int from, to;
+
+        Users(Evaluator evaluator, FactorMatrix x, FactorMatrix y, InteractionMatrix train, double[] sums, int from, int to) {
+            this.evaluator = evaluator;
+            this.x = x;
+            this.y = y;
+            this.train = train;
+            this.sums = sums;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= CHUNK) {
+                this.evaluator.evaluate(this.x, this.y, this.train, this.from, this.to, this.sums);
+                return;
+            }
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new Users(this.evaluator, this.x, this.y, this.train, this.sums, this.from, mid),
+                    new Users(this.evaluator, this.x, this.y, this.train, this.sums, mid, this.to));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.matrix_factorization;
+
+/**
+ * Dense rows * cols factor matrix (X or Y) stored row-major in one contiguous array, so row i occupies
+ * [i * cols, (i + 1) * cols). Dot products, rank-1 updates and row copies run over contiguous memory instead of
+ * chasing one heap object per row as a double[][] does.
+ *
+ * Elements are stored in double or float ({@link Precision}); all arithmetic results and accumulators are double.
+ */
+public abstract class FactorMatrix {
+    // longest array the JVM reliably allocates
+    private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+    protected int rows;
+    protected final int cols;
+
+    protected FactorMatrix(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /** rows * cols as an array length; IllegalArgumentException if it is negative or does not fit one array. */
+    protected static int length(long rows, int cols) {
+        long length = rows * cols;
+        if (rows < 0 || cols < 0 || length > MAX_LENGTH)
+            throw new IllegalArgumentException(rows + " * " + cols + " factors do not fit one array");
+        return (int) length;
+    }
+
+    /** New length of an array of the given length that must hold needed elements: at least double, within limits. */
+    protected static int grow(int length, int needed) {
+        return (int) Math.min(MAX_LENGTH, Math.max(needed, 2L * length));
+    }
+
+    public static FactorMatrix create(int rows, int cols, Precision precision) {
+        return precision == Precision.FLOAT ? new FloatFactorMatrix(rows, cols) : new DoubleFactorMatrix(rows, cols);
+    }
+
+    public static FactorMatrix create(double[][] matrix, Precision precision) {
+        FactorMatrix factors = create(matrix.length, matrix.length == 0 ? 0 : matrix[0].length, precision);
+        for (int i = 0; i < factors.rows; ++i) factors.setRow(i, matrix[i]);
+        return factors;
+    }
+
+    public int rows() {
+        return this.rows;
+    }
+
+    public int cols() {
+        return this.cols;
+    }
+
+    public abstract Precision precision();
+
+    public abstract double get(int row, int col);
+
+    public abstract void set(int row, int col, double value);
+
+    public abstract double[] getRow(int row, double[] dst);
+
+    public abstract void setRow(int row, double[] src);
+
+    /** Appends n zero rows. */
+    public abstract void addRows(int n);
+
+    /** row . v */
+    public abstract double dot(int row, double[] v);
+
+    /** row . other[otherRow] */
+    public abstract double dot(int row, FactorMatrix other, int otherRow);
+
+    /** b += w * row */
+    public abstract void axpy(int row, double w, double[] b);
+
+    /** Upper triangle of a += w * row * rowt. */
+    public abstract void addOuter(int row, double w, double[][] a);
+
+    /** Upper triangle of a += this t * this, one {@link #addOuter} per row unless overridden. */
+    public void addGram(double[][] a) {
+        for (int i = 0; i < this.rows; ++i) addOuter(i, 1, a);
+    }
+
+    /** Sum of the squares of all elements. */
+    public abstract double squaredNorm();
+
+    /** Returns this matrix in the given precision, or this if it already is. */
+    public FactorMatrix convert(Precision precision) {
+        return precision == precision() ? this : copy(precision);
+    }
+
+    /** Heap copy of this matrix in the given precision, one contiguous array as made by {@link #create}. */
+    public FactorMatrix copy(Precision precision) {
+        FactorMatrix factors = create(this.rows, this.cols, precision);
+        double[] row = new double[this.cols];
+        for (int i = 0; i < this.rows; ++i) factors.setRow(i, getRow(i, row));
+        return factors;
+    }
+
+    public double[][] toArray() {
+        double[][] matrix = new double[this.rows][this.cols];
+        for (int i = 0; i < this.rows; ++i) getRow(i, matrix[i]);
+        return matrix;
+    }
+}
@@ -0,0 +1,94 @@
+package com.matrix_factorization;
+
+import java.util.Arrays;
+
+/** {@link FactorMatrix} backed by a float[], half the memory of {@link DoubleFactorMatrix}. */
+public class FloatFactorMatrix extends FactorMatrix {
+    private float[] data;
+
+    public FloatFactorMatrix(int rows, int cols) {
+        super(rows, cols);
+        this.data = new float[length(rows, cols)];
+    }
+
+    public FloatFactorMatrix(double[][] matrix) {
+        this(matrix.length, matrix.length == 0 ? 0 : matrix[0].length);
+        for (int i = 0; i < this.rows; ++i) setRow(i, matrix[i]);
+    }
+
+    @Override
+    public Precision precision() {
+        return Precision.FLOAT;
+    }
+
+    @Override
+    public double get(int row, int col) {
+        return this.data[row * this.cols + col];
+    }
+
+    @Override
+    public void set(int row, int col, double value) {
+        this.data[row * this.cols + col] = (float) value;
+    }
+
+    @Override
+    public double[] getRow(int row, double[] dst) {
+        for (int f = 0, k = row * this.cols; f < this.cols; ++f, ++k)
+            dst[f] = this.data[k];
+        return dst;
+    }
+
+    @Override
+    public void setRow(int row, double[] src) {
+        for (int f = 0, k = row * this.cols; f < this.cols; ++f, ++k)
+            this.data[k] = (float) src[f];
+    }
+
+    /** Grows the backing array geometrically, so appending rows one at a time costs amortized O(cols) per row. */
+    @Override
+    public void addRows(int n) {
+        int size = length((long) this.rows + n, this.cols);
+        if (size > this.data.length) this.data = Arrays.copyOf(this.data, grow(this.data.length, size));
+        this.rows += n;
+    }
+
+    @Override
+    public double dot(int row, double[] v) {
+        return Kernels.INSTANCE.dot(this.data, row * this.cols, v, 0, this.cols);
+    }
+
+    @Override
+    public double dot(int row, FactorMatrix other, int otherRow) {
+        if (!(other instanceof FloatFactorMatrix)) {
+            double total = 0;
+            for (int f = 0, k = row * this.cols; f < this.cols; ++f, ++k)
+                total += this.data[k] * other.get(otherRow, f);
+            return total;
+        }
+        return Kernels.INSTANCE.dot(this.data, row * this.cols, ((FloatFactorMatrix) other).data, otherRow * other.cols, this.cols);
+    }
+
+    @Override
+    public void axpy(int row, double w, double[] b) {
+        Kernels.INSTANCE.axpy(w, this.data, row * this.cols, b, 0, this.cols);
+    }
+
+    @Override
+    public void addOuter(int row, double w, double[][] a) {
+        Kernels.INSTANCE.addOuter(w, this.data, row * this.cols, this.cols, a);
+    }
+
+    /** Rows are contiguous, so the whole matrix is one rank-k update. */
+    @Override
+    public void addGram(double[][] a) {
+        Kernels.INSTANCE.addGram(this.data, 0, this.rows, this.cols, a);
+    }
+
+    @Override
+    public double squaredNorm() {
+        double total = 0;
+        for (int k = 0; k < this.rows * this.cols; ++k)
+            total += (double) this.data[k] * this.data[k];
+        return total;
+    }
+}
@@ -0,0 +1,427 @@
+package com.matrix_factorization;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hierarchical navigable small world graph (Malkov and Yashunin) over item factors, for approximate maximum inner
+ * product search in O(ef * log nItems) dot products per query instead of O(nItems).
+ *
+ * Inner products are not a metric, so every item y is stored with one extra coordinate sqrt(M^2 - |y|^2), M being
+ * the largest item norm (Bachrach et al.). Every stored vector then has norm M, so nearness between items is
+ * well defined, and a query q extended with 0 keeps q . y unchanged: the nearest items to q are exactly the items of
+ * largest inner product. Vectors are stored in float, the graph in flat int arrays.
+ *
+ * An index is built once from a snapshot of Y, in parallel, and is immutable afterwards: any number of threads can
+ * search it without locks. It does not follow later changes of Y; {@link #stale} tells how far Y has moved since, so
+ * a new one can be built once that matters.
+ */
+public class HnswIndex {
+    public static final int DEFAULT_M = 16, DEFAULT_EF_CONSTRUCTION = 100;
+    private static final long SEED = 42;
+    private static final int LOCKS = 1 << 12, BATCH = 256;
+
+    private final int n, dim, m, efConstruction;
+    private final float[] vectors;
+    private final int[] levels;
+    // level 0: links0[node * (2m + 1)] holds the neighbor count, followed by up to 2m neighbors
+    private final int[] links0;
+    // level l >= 1: upper[node][(l - 1) * (m + 1)] holds the count, followed by up to m neighbors
+    private final int[][] upper;
+    // largest squared item norm, M^2
+    private final double maxNorm;
+    // scratch states of finished searches, reused by the next ones; they go with the index, unlike thread locals
+    private final ConcurrentLinkedQueue<Search> searches = new ConcurrentLinkedQueue<Search>();
+    // guard neighbor lists while the graph is built, null afterwards
+    private Object[] locks;
+    private int entry = -1, maxLevel = -1;
+
+    public HnswIndex(FactorMatrix y) {
+        this(y, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param m neighbors per node and level, 2m on the bottom level; more raise recall and memory
+     * @param efConstruction candidates examined per insertion; more raise graph quality and build time
+     */
+    public HnswIndex(FactorMatrix y, int m, int efConstruction, int nThreads) {
+        this.n = y.rows();
+        this.dim = y.cols() + 1;
+        this.m = Math.max(2, m);
+        this.efConstruction = Math.max(this.m, efConstruction);
+        this.vectors = new float[this.n * this.dim];
+        double[] row = new double[y.cols()], norms = new double[this.n];
+        double max = 0;
+        for (int i = 0; i < this.n; ++i) {
+            y.getRow(i, row);
+            for (int f = 0; f < row.length; ++f) this.vectors[i * this.dim + f] = (float) row[f];
+            max = Math.max(max, norms[i] = MatrixUtil.dot(row, row));
+        }
+        for (int i = 0; i < this.n; ++i)
+            this.vectors[i * this.dim + this.dim - 1] = (float) Math.sqrt(max - norms[i]);
+        this.maxNorm = max;
+
+        // level ~ floor(-ln(U) / ln(m)), so each level up holds about 1/m of the nodes below
+        Random random = new Random(SEED);
+        this.levels = new int[this.n];
+        this.upper = new int[this.n][];
+        for (int i = 0; i < this.n; ++i) {
+            this.levels[i] = Math.min(16, (int) (-Math.log(1 - random.nextDouble()) / Math.log(this.m)));
+            if (this.levels[i] > 0) this.upper[i] = new int[this.levels[i] * (this.m + 1)];
+        }
+        this.links0 = new int[this.n * (2 * this.m + 1)];
+
+        this.locks = new Object[LOCKS];
+        for (int k = 0; k < LOCKS; ++k) this.locks[k] = new Object();
+        Search search = acquire();
+        if (this.n > 0) insert(0, search);
+        if (nThreads > 1 && this.n > BATCH) {
+            ForkJoinPool pool = new ForkJoinPool(nThreads);
+            try {
+                pool.invoke(new Inserts(1, this.n));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (int i = 1; i < this.n; ++i) insert(i, search);
+        }
+        release(search);
+        this.locks = null;
+    }
+
+    /** Number of indexed items, the rows of Y when the index was built. */
+    public int size() {
+        return this.n;
+    }
+
+    /**
+     * Number of rows of y that moved by more than tolerance times the largest indexed item norm since the index was
+     * built, counting rows added since as moved. If y lost rows or its number of factors changed, every row counts,
+     * of y or of the index, whichever has more. O(nItems * nFactor).
+     */
+    public int stale(FactorMatrix y, double tolerance) {
+        if (y.cols() != this.dim - 1 || y.rows() < this.n) return Math.max(y.rows(), this.n);
+        double[] row = new double[y.cols()];
+        double limit = tolerance * tolerance * this.maxNorm;
+        int stale = Math.max(0, y.rows() - this.n);
+        for (int i = 0; i < this.n; ++i) {
+            y.getRow(i, row);
+            double distance = 0;
+            for (int f = 0, k = i * this.dim; f < row.length; ++f, ++k)
+                distance += (row[f] - this.vectors[k]) * (row[f] - this.vectors[k]);
+            if (distance > limit) ++stale;
+        }
+        return stale;
+    }
+
+    /**
+     * Returns up to ef items approximately maximizing query . y, best first by the indexed factors. Larger ef trades
+     * latency for recall. Safe to call from any thread.
+     */
+    public int[] search(double[] query, int ef) {
+        if (this.n == 0) return new int[0];
+        Search search = acquire();
+        try {
+            double[] q = search.query;
+            System.arraycopy(query, 0, q, 0, this.dim - 1);
+            q[this.dim - 1] = 0;
+            int ep = this.entry;
+            for (int level = this.maxLevel; level > 0; --level) ep = greedy(q, ep, level, false, search);
+            searchLayer(q, ep, Math.max(1, ef), 0, false, search);
+            return search.results.drainDescending(new int[search.results.size], null);
+        } finally {
+            release(search);
+        }
+    }
+
+    private void insert(int node, Search search) {
+        int level = this.levels[node], ep, top;
+        synchronized (this) {
+            ep = this.entry;
+            top = this.maxLevel;
+            if (ep < 0) {
+                this.entry = node;
+                this.maxLevel = level;
+                return;
+            }
+        }
+        double[] q = search.query;
+        for (int f = 0; f < this.dim; ++f) q[f] = this.vectors[node * this.dim + f];
+        for (int l = top; l > level; --l) ep = greedy(q, ep, l, true, search);
+
+        for (int l = Math.min(level, top); l >= 0; --l) {
+            searchLayer(q, ep, this.efConstruction, l, true, search);
+            int count = search.results.size;
+            search.results.drainDescending(search.ids, search.sims);
+            ep = search.ids[0];
+            int selected = select(search.ids, search.sims, count, this.m, search.selected);
+            int[] links = links(node, l);
+            int base = base(node, l);
+            synchronized (lock(node)) {
+                System.arraycopy(search.selected, 0, links, base + 1, selected);
+                links[base] = selected;
+            }
+            for (int k = 0; k < selected; ++k) connect(search.selected[k], node, l, search);
+        }
+        if (level > top)
+            synchronized (this) {
+                if (level > this.maxLevel) {
+                    this.maxLevel = level;
+                    this.entry = node;
+                }
+            }
+    }
+
+    /** Adds node to the neighbors of e, pruning them with the selection heuristic when the list is full. */
+    private void connect(int e, int node, int level, Search search) {
+        int max = level == 0 ? 2 * this.m : this.m;
+        int[] links = links(e, level), ids = search.neighbors;
+        double[] sims = search.neighborSims;
+        int base = base(e, level);
+        synchronized (lock(e)) {
+            int count = links[base];
+            if (count < max) {
+                links[base + 1 + count] = node;
+                links[base] = count + 1;
+                return;
+            }
+            // candidates sorted by similarity to e, by insertion since the list is short
+            for (int k = 0; k <= count; ++k) {
+                int id = k < count ? links[base + 1 + k] : node;
+                double sim = similarity(e, id);
+                int j = k;
+                for (; j > 0 && sims[j - 1] < sim; --j) {
+                    ids[j] = ids[j - 1];
+                    sims[j] = sims[j - 1];
+                }
+                ids[j] = id;
+                sims[j] = sim;
+            }
+            links[base] = select(ids, sims, count + 1, max, search.pruned);
+            System.arraycopy(search.pruned, 0, links, base + 1, links[base]);
+        }
+    }
+
+    /**
+     * Keeps a candidate, taken best first, only if it is more similar to the base node than to every candidate kept
+     * so far, so neighbors spread in different directions instead of clustering (heuristic 2 of the paper).
+     */
+    private int select(int[] ids, double[] sims, int count, int max, int[] out) {
+        int selected = 0;
+        for (int c = 0; c < count && selected < max; ++c) {
+            boolean keep = true;
+            for (int k = 0; k < selected && keep; ++k)
+                keep = similarity(ids[c], out[k]) <= sims[c];
+            if (keep) out[selected++] = ids[c];
+        }
+        return selected;
+    }
+
+    /** Moves to the most similar neighbor on one level until no neighbor improves on the current node. */
+    private int greedy(double[] q, int ep, int level, boolean locked, Search search) {
+        double best = similarity(q, ep);
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            int count = neighbors(ep, level, locked, search.neighbors);
+            for (int k = 0; k < count; ++k) {
+                int e = search.neighbors[k];
+                double sim = similarity(q, e);
+                if (sim > best) {
+                    best = sim;
+                    ep = e;
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /** Best-first search of one level from ep, leaving the ef most similar nodes found in search.results. */
+    private void searchLayer(double[] q, int ep, int ef, int level, boolean locked, Search search) {
+        int epoch = search.next();
+        Heap candidates = search.candidates, results = search.results;
+        candidates.size = results.size = 0;
+        double sim = similarity(q, ep);
+        search.visited[ep] = epoch;
+        candidates.push(ep, -sim);
+        results.push(ep, sim);
+        while (candidates.size > 0) {
+            double best = -candidates.peekKey();
+            int c = candidates.pop();
+            if (results.size >= ef && best < results.peekKey()) break;
+            int count = neighbors(c, level, locked, search.neighbors);
+            for (int k = 0; k < count; ++k) {
+                int e = search.neighbors[k];
+                if (search.visited[e] == epoch) continue;
+                search.visited[e] = epoch;
+                sim = similarity(q, e);
+                if (results.size < ef || sim > results.peekKey()) {
+                    candidates.push(e, -sim);
+                    results.push(e, sim);
+                    if (results.size > ef) results.pop();
+                }
+            }
+        }
+    }
+
+    private int neighbors(int node, int level, boolean locked, int[] dst) {
+        int[] links = links(node, level);
+        int base = base(node, level);
+        if (!locked) {
+            System.arraycopy(links, base + 1, dst, 0, links[base]);
+            return links[base];
+        }
+        synchronized (lock(node)) {
+            System.arraycopy(links, base + 1, dst, 0, links[base]);
+            return links[base];
+        }
+    }
+
+    private int[] links(int node, int level) {
+        return level == 0 ? this.links0 : this.upper[node];
+    }
+
+    private int base(int node, int level) {
+        return level == 0 ? node * (2 * this.m + 1) : (level - 1) * (this.m + 1);
+    }
+
+    private Object lock(int node) {
+        return this.locks[node & (LOCKS - 1)];
+    }
+
+    private double similarity(double[] q, int node) {
+        double total = 0;
+        for (int f = 0, k = node * this.dim; f < this.dim; ++f, ++k)
+            total += q[f] * this.vectors[k];
+        return total;
+    }
+
+    private double similarity(int a, int b) {
+        double total = 0;
+        for (int f = 0, k = a * this.dim, l = b * this.dim; f < this.dim; ++f, ++k, ++l)
+            total += (double) this.vectors[k] * this.vectors[l];
+        return total;
+    }
+
+    /** A scratch state no other thread is using, at most one per concurrent search. */
+    private Search acquire() {
+        Search search = this.searches.poll();
+        return search != null ? search : new Search(this.n, this.dim, this.m, this.efConstruction);
+    }
+
+    private void release(Search search) {
+        this.searches.offer(search);
+    }
+
+    private class Inserts extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+
+        Inserts(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= BATCH) {
+                Search search = acquire();
+                for (int i = this.from; i < this.to; ++i) insert(i, search);
+                release(search);
+                return;
+            }
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new Inserts(this.from, mid), new Inserts(mid, this.to));
+        }
+    }
+
+    /** Scratch state of one search at a time: visit marks stamped with an epoch so they never need clearing, heaps and buffers. */
+    private static class Search {
+        final int[] visited;
+        int epoch;
+        final double[] query;
+        final Heap candidates = new Heap(), results = new Heap();
+        final int[] neighbors, pruned, selected;
+        final double[] neighborSims;
+        int[] ids;
+        double[] sims;
+
+        Search(int n, int dim, int m, int efConstruction) {
+            this.visited = new int[n];
+            this.query = new double[dim];
+            this.neighbors = new int[2 * m + 1];
+            this.neighborSims = new double[2 * m + 1];
+            this.pruned = new int[2 * m + 1];
+            this.selected = new int[m];
+            this.ids = new int[efConstruction + 1];
+            this.sims = new double[efConstruction + 1];
+        }
+
+        int next() {
+            if (++this.epoch == Integer.MAX_VALUE) {
+                Arrays.fill(this.visited, 0);
+                this.epoch = 1;
+            }
+            return this.epoch;
+        }
+    }
+
+    /** Binary min-heap of (id, key) primitives; a max-heap is kept with negated keys. */
+    private static class Heap {
+        int[] ids = new int[64];
+        double[] keys = new double[64];
+        int size;
+
+        void push(int id, double key) {
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+                this.keys = Arrays.copyOf(this.keys, this.size * 2);
+            }
+            int i = this.size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (this.keys[parent] <= key) break;
+                this.ids[i] = this.ids[parent];
+                this.keys[i] = this.keys[parent];
+                i = parent;
+            }
+            this.ids[i] = id;
+            this.keys[i] = key;
+        }
+
+        double peekKey() {
+            return this.keys[0];
+        }
+
+        int pop() {
+            int top = this.ids[0], id = this.ids[--this.size];
+            double key = this.keys[this.size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= this.size) break;
+                if (child + 1 < this.size && this.keys[child + 1] < this.keys[child]) ++child;
+                if (key <= this.keys[child]) break;
+                this.ids[i] = this.ids[child];
+                this.keys[i] = this.keys[child];
+                i = child;
+            }
+            this.ids[i] = id;
+            this.keys[i] = key;
+            return top;
+        }
+
+        /** Empties the heap into ids (and keys, if not null) ordered by descending key. */
+        int[] drainDescending(int[] ids, double[] keys) {
+            for (int k = this.size - 1; k >= 0; --k) {
+                if (keys != null) keys[k] = this.keys[0];
+                ids[k] = pop();
+            }
+            return ids;
+        }
+    }
+}
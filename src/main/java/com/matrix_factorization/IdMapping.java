@@ -0,0 +1,39 @@
+package com.matrix_factorization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns dense indexes 0, 1, 2, ... to external user or item ids in order of first appearance and maps them back.
+ * Ids are {@link String}s or {@link Long}s, the two kinds {@link ModelFile} can persist.
+ */
+public class IdMapping<K> {
+    private final Map<K, Integer> indexes = new HashMap<K, Integer>();
+    private final List<K> ids = new ArrayList<K>();
+
+    /** Index of id, assigning the next free one if id has not been seen. */
+    public int index(K id) {
+        Integer index = this.indexes.get(id);
+        if (index == null) {
+            this.indexes.put(id, index = this.ids.size());
+            this.ids.add(id);
+        }
+        return index;
+    }
+
+    /** Index of id, or -1 if id has not been seen. */
+    public int get(K id) {
+        Integer index = this.indexes.get(id);
+        return index == null ? -1 : index;
+    }
+
+    public K id(int index) {
+        return this.ids.get(index);
+    }
+
+    public int size() {
+        return this.ids.size();
+    }
+}
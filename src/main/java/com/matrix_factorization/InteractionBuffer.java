@@ -0,0 +1,113 @@
+package com.matrix_factorization;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Thread-safe write buffer in front of an {@link InteractionMatrix}: any number of threads {@link #put} ratings, and
+ * the single training thread merges them into the matrix with {@link #drainTo} between sweeps.
+ *
+ * Writes are appended to one of several stripes chosen by user, each a pair of growable logs behind its own monitor,
+ * so producers on different stripes never contend and the monitor is held only for an append. Draining swaps a
+ * stripe's active log for its empty spare and replays the full one outside the monitor, so producers are not blocked
+ * by the merge. All writes of one user go to the same stripe in order, so the last write to a cell still wins.
+ */
+public class InteractionBuffer {
+    private final Stripe[] stripes;
+    private final int mask;
+    private volatile int rows, cols;
+
+    public InteractionBuffer(int rows, int cols) {
+        this(rows, cols, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /** @param concurrency expected number of writing threads, rounded up to a power of two stripes */
+    public InteractionBuffer(int rows, int cols, int concurrency) {
+        int n = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+        this.stripes = new Stripe[n];
+        for (int s = 0; s < n; ++s) this.stripes[s] = new Stripe();
+        this.mask = n - 1;
+        resize(rows, cols);
+    }
+
+    /** Bounds checked by {@link #put}, kept in step with the matrix by its owner. */
+    public void resize(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /** Safe to call from any thread; putting a zero rating removes the interaction, as with InteractionMatrix. */
+    public void put(int row, int col, double value) {
+        if (row < 0 || row >= this.rows || col < 0 || col >= this.cols)
+            throw new IndexOutOfBoundsException("(" + row + ", " + col + ") is outside " + this.rows + " * " + this.cols);
+        Stripe stripe = this.stripes[row & this.mask];
+        synchronized (stripe) {
+            stripe.active.add(row, col, (float) value);
+        }
+    }
+
+    /**
+     * Moves every buffered write into r as a pending write, in the order of each user's writes, and marks the rows
+     * and columns they touch in dirtyRows and dirtyCols. Writes outside r, left over from a buffer that raced a
+     * shrinking {@link #resize}, are dropped. Must only be called by one thread at a time.
+     *
+     * @return the number of writes moved
+     */
+    public int drainTo(InteractionMatrix r, BitSet dirtyRows, BitSet dirtyCols) {
+        return drainTo(r, dirtyRows, dirtyCols, null);
+    }
+
+    /** Same as {@link #drainTo(InteractionMatrix, BitSet, BitSet)}, also marking every written cell with 1 in written if not null. */
+    public int drainTo(InteractionMatrix r, BitSet dirtyRows, BitSet dirtyCols, InteractionMatrix written) {
+        int total = 0;
+        for (Stripe stripe : this.stripes) {
+            Log log;
+            synchronized (stripe) {
+                if (stripe.active.size == 0) continue;
+                log = stripe.active;
+                stripe.active = stripe.spare;
+                stripe.spare = log;
+            }
+            for (int k = 0; k < log.size; ++k) {
+                int row = log.rows[k], col = log.cols[k];
+                if (row >= r.rows() || col >= r.cols()) continue;
+                r.put(row, col, log.values[k]);
+                if (written != null) written.put(row, col, 1);
+                dirtyRows.set(row);
+                dirtyCols.set(col);
+            }
+            total += log.size;
+            log.size = 0;
+        }
+        return total;
+    }
+
+    /** Discards every buffered write. */
+    public void clear() {
+        for (Stripe stripe : this.stripes)
+            synchronized (stripe) {
+                stripe.active.size = 0;
+            }
+    }
+
+    private static class Stripe {
+        private Log active = new Log(), spare = new Log();
+    }
+
+    private static class Log {
+        private int[] rows = new int[16], cols = new int[16];
+        private float[] values = new float[16];
+        private int size;
+
+        void add(int row, int col, float value) {
+            if (this.size == this.rows.length) {
+                this.rows = Arrays.copyOf(this.rows, this.size * 2);
+                this.cols = Arrays.copyOf(this.cols, this.size * 2);
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.rows[this.size] = row;
+            this.cols[this.size] = col;
+            this.values[this.size++] = value;
+        }
+    }
+}
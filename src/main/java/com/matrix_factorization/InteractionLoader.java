@@ -0,0 +1,152 @@
+package com.matrix_factorization;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Streams (user, item, rating) triples from a file into an {@link InteractionMatrix} without a dense r.
+ *
+ * The file is read in fixed-size chunks cut at record boundaries. Chunks are parsed in parallel, while at most
+ * 2 * nThreads chunks are in flight, so memory apart from the interactions themselves stays bounded regardless of
+ * the file size. Parsed chunks are merged in file order: external ids are mapped to dense indexes by first appearance
+ * in {@link #getUsers()} and {@link #getItems()}, so the result does not depend on thread scheduling. Mappings are
+ * kept across {@link #load} calls. Mapping is serial, as first appearance is defined by file order, but overlaps the
+ * parsing of the chunks behind it. The merged triples are then sorted and indexed on the same pool, see
+ * {@link InteractionMatrix#fromTriples(int, int, int[], int[], float[], int, ForkJoinPool)}.
+ *
+ * @param <K> external id type
+ */
+public abstract class InteractionLoader<K> {
+    private static final int CHUNK_BYTES = 1 << 23;
+
+    private final int nThreads;
+    private final IdMapping<K> users = new IdMapping<K>(), items = new IdMapping<K>();
+
+    private int[] rows = new int[16], cols = new int[16];
+    private float[] ratings = new float[16];
+    private int size;
+
+    protected InteractionLoader(int nThreads) {
+        this.nThreads = nThreads;
+    }
+
+    public IdMapping<K> getUsers() {
+        return this.users;
+    }
+
+    public IdMapping<K> getItems() {
+        return this.items;
+    }
+
+    /** Reads every triple of the file; users * items is the size of the id mappings afterwards. */
+    public InteractionMatrix load(String path) throws IOException {
+        FileInputStream stream = new FileInputStream(path);
+        ForkJoinPool pool = new ForkJoinPool(this.nThreads);
+        try {
+            // drop triples left behind by a load that failed
+            this.size = 0;
+            FileChannel channel = stream.getChannel();
+            LinkedList<Future<Chunk<K>>> parsing = new LinkedList<Future<Chunk<K>>>();
+            byte[] carry = new byte[0];
+            boolean first = true, eof = false;
+            while (!eof) {
+                final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+                chunk.put(carry);
+                while (chunk.hasRemaining() && !eof) eof = channel.read(chunk) < 0;
+                chunk.flip();
+                int end = eof ? chunk.limit() : boundary(chunk);
+                if (end <= 0 && chunk.limit() > 0 && !eof)
+                    throw new IOException(path + " has a record longer than " + CHUNK_BYTES + " bytes");
+                carry = Arrays.copyOfRange(chunk.array(), end, chunk.limit());
+                chunk.limit(end);
+
+                final boolean head = first;
+                first = false;
+                parsing.add(pool.submit(new Callable<Chunk<K>>() {
+                    public Chunk<K> call() throws IOException {
+                        return parse(chunk, head);
+                    }
+                }));
+                if (parsing.size() >= 2 * this.nThreads) merge(parsing.poll().get());
+            }
+            while (!parsing.isEmpty()) merge(parsing.poll().get());
+
+            InteractionMatrix r = InteractionMatrix.fromTriples(this.users.size(), this.items.size(), this.rows, this.cols, this.ratings, this.size, pool);
+            this.rows = new int[16];
+            this.cols = new int[16];
+            this.ratings = new float[16];
+            this.size = 0;
+            return r;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            // the pool wraps exceptions thrown by parse, possibly more than once
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause())
+                if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+            stream.close();
+        }
+    }
+
+    /** Length of the longest prefix of chunk, starting at 0, that consists of whole records. */
+    protected abstract int boundary(ByteBuffer chunk);
+
+    /**
+     * Parses whole records from chunk[0, limit).
+     *
+     * @param first whether the chunk starts the file
+     */
+    protected abstract Chunk<K> parse(ByteBuffer chunk, boolean first) throws IOException;
+
+    private void merge(Chunk<K> chunk) {
+        if (this.size + chunk.size > this.rows.length) {
+            int capacity = Math.max(this.size + chunk.size, this.rows.length * 2);
+            this.rows = Arrays.copyOf(this.rows, capacity);
+            this.cols = Arrays.copyOf(this.cols, capacity);
+            this.ratings = Arrays.copyOf(this.ratings, capacity);
+        }
+        for (int k = 0; k < chunk.size; ++k, ++this.size) {
+            this.rows[this.size] = this.users.index(chunk.user(k));
+            this.cols[this.size] = this.items.index(chunk.item(k));
+            this.ratings[this.size] = chunk.ratings[k];
+        }
+    }
+
+    /** Triples parsed from one chunk, with ids not yet mapped. */
+    protected static class Chunk<K> {
+        private Object[] users = new Object[16], items = new Object[16];
+        private float[] ratings = new float[16];
+        private int size;
+
+        public void add(K user, K item, float rating) {
+            if (this.size == this.users.length) {
+                this.users = Arrays.copyOf(this.users, this.size * 2);
+                this.items = Arrays.copyOf(this.items, this.size * 2);
+                this.ratings = Arrays.copyOf(this.ratings, this.size * 2);
+            }
+            this.users[this.size] = user;
+            this.items[this.size] = item;
+            this.ratings[this.size++] = rating;
+        }
+
+        @SuppressWarnings("unchecked")
+        K user(int k) {
+            return (K) this.users[k];
+        }
+
+        @SuppressWarnings("unchecked")
+        K item(int k) {
+            return (K) this.items[k];
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package com.matrix_factorization;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sparse nUsers * nItems rating matrix.
+ *
+ * Only observed (non-zero) ratings are stored, twice: compressed by user (CSR) so a user half-step can walk one
+ * user's items, and compressed by item (CSC) so an item half-step can walk one item's users. Memory is therefore
+ * proportional to the number of interactions rather than to nUsers * nItems.
+ *
+ * Writes through {@link #put(int, int, double)} are appended to a pending buffer and merged into both indexes by
+ * {@link #compact()}; the row/column accessors read the compacted indexes only, so callers must compact before
+ * iterating. Putting a zero rating removes the interaction.
+ */
+public class InteractionMatrix {
+    private int rows, cols;
+
+    // CSR: the items of user u are colIdx[rowPtr[u] .. rowPtr[u + 1]), sorted ascending
+    private int[] rowPtr, colIdx;
+    private float[] rowVal;
+
+    // CSC: the users of item i are rowIdx[colPtr[i] .. colPtr[i + 1]), sorted ascending
+    private int[] colPtr, rowIdx;
+    private float[] colVal;
+
+    private int[] pendingRow, pendingCol;
+    private float[] pendingVal;
+    private int pendingSize;
+
+    // result of the last snapshot(), until compact() or a resize changes the indexes
+    private InteractionMatrix snapshot;
+
+    public InteractionMatrix(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.rowPtr = new int[rows + 1];
+        this.colIdx = new int[0];
+        this.rowVal = new float[0];
+        this.colPtr = new int[cols + 1];
+        this.rowIdx = new int[0];
+        this.colVal = new float[0];
+        this.pendingRow = new int[16];
+        this.pendingCol = new int[16];
+        this.pendingVal = new float[16];
+    }
+
+    public static InteractionMatrix fromDense(double[][] r) {
+        InteractionMatrix matrix = new InteractionMatrix(r.length, r.length == 0 ? 0 : r[0].length);
+        int nnz = 0;
+        for (double[] row : r)
+            for (double v : row)
+                if (v != 0) ++nnz;
+
+        matrix.colIdx = new int[nnz];
+        matrix.rowVal = new float[nnz];
+        for (int u = 0, k = 0; u < r.length; ++u) {
+            for (int i = 0; i < r[u].length; ++i)
+                if (r[u][i] != 0) {
+                    matrix.colIdx[k] = i;
+                    matrix.rowVal[k++] = (float) r[u][i];
+                }
+            matrix.rowPtr[u + 1] = k;
+        }
+        matrix.buildColumns();
+        return matrix;
+    }
+
+    /** Wraps compacted CSR arrays without copying them: the items of user u are colIdx[rowPtr[u] .. rowPtr[u + 1]). */
+    public static InteractionMatrix fromCsr(int rows, int cols, int[] rowPtr, int[] colIdx, float[] rowVal) {
+        InteractionMatrix matrix = new InteractionMatrix(rows, cols);
+        matrix.rowPtr = rowPtr;
+        matrix.colIdx = colIdx;
+        matrix.rowVal = rowVal;
+        matrix.buildColumns();
+        return matrix;
+    }
+
+    /**
+     * Builds a matrix from the first n (row[k], col[k], value[k]) triples; the arrays are only read. Repeated
+     * cells resolve like repeated {@link #put} calls: the last one wins, and zero ratings are dropped.
+     */
+    public static InteractionMatrix fromTriples(int rows, int cols, int[] row, int[] col, float[] value, int n) {
+        return fromTriples(rows, cols, row, col, value, n, null);
+    }
+
+    /**
+     * Same as {@link #fromTriples(int, int, int[], int[], float[], int)}, sorting and indexing on pool. The triples are
+     * cut into blocks that are counted by row in parallel; a prefix sum over the per-block counts gives every block
+     * its own positions to scatter to, so the scatter runs in parallel too and stays stable. Rows are then sorted and
+     * merged in parallel, and the column index is built the same way by blocks of rows. The per-block counts take
+     * blocks * max(rows, cols) ints, so there are at most n / max(rows, cols) blocks: inputs with fewer triples than
+     * rows or columns are built serially, as they are when pool is null.
+     */
+    public static InteractionMatrix fromTriples(final int rows, final int cols, final int[] row, final int[] col, final float[] value, final int n,
+                                                ForkJoinPool pool) {
+        final int blocks = pool == null ? 1 : (int) Math.max(1, Math.min(pool.getParallelism(), (long) n / Math.max(1, Math.max(rows, cols))));
+        final int[][] counts = new int[blocks][];
+        forEach(pool, blocks, new Block() {
+            public void run(int b) {
+                int[] count = counts[b] = new int[rows];
+                for (int j = split(b, blocks, n), end = split(b + 1, blocks, n); j < end; ++j) {
+                    if (row[j] < 0 || row[j] >= rows || col[j] < 0 || col[j] >= cols)
+                        throw new IndexOutOfBoundsException("(" + row[j] + ", " + col[j] + ") is outside " + rows + " * " + cols);
+                    ++count[row[j]];
+                }
+            }
+        });
+        // block b writes the triples of row u after those of the same row in blocks before it
+        final int[] start = new int[rows + 1];
+        for (int u = 0, k = 0; u < rows; ++u) {
+            start[u] = k;
+            for (int b = 0; b < blocks; ++b) {
+                int count = counts[b][u];
+                counts[b][u] = k;
+                k += count;
+            }
+        }
+        start[rows] = n;
+        final long[] keys = new long[n];
+        forEach(pool, blocks, new Block() {
+            public void run(int b) {
+                int[] fill = counts[b];
+                // column in the high bits, write order in the low bits so sorting keeps the last write of a cell last
+                for (int j = split(b, blocks, n), end = split(b + 1, blocks, n); j < end; ++j)
+                    keys[fill[row[j]]++] = ((long) col[j] << 32) | j;
+            }
+        });
+
+        // sort every row and move its surviving writes, the last of each cell unless zero, to the front of its range
+        final int[] bounds = bounds(start, rows, blocks), length = new int[rows];
+        forEach(pool, blocks, new Block() {
+            public void run(int b) {
+                for (int u = bounds[b]; u < bounds[b + 1]; ++u) {
+                    int from = start[u], to = start[u + 1], k = from;
+                    Arrays.sort(keys, from, to);
+                    for (int j = from; j < to; ++j)
+                        if ((j + 1 == to || keys[j + 1] >>> 32 != keys[j] >>> 32) && value[(int) keys[j]] != 0) keys[k++] = keys[j];
+                    length[u] = k - from;
+                }
+            }
+        });
+        InteractionMatrix matrix = new InteractionMatrix(rows, cols);
+        final int[] rowPtr = matrix.rowPtr;
+        for (int u = 0; u < rows; ++u) rowPtr[u + 1] = rowPtr[u] + length[u];
+        final int[] colIdx = matrix.colIdx = new int[rowPtr[rows]];
+        final float[] rowVal = matrix.rowVal = new float[rowPtr[rows]];
+        forEach(pool, blocks, new Block() {
+            public void run(int b) {
+                for (int u = bounds[b]; u < bounds[b + 1]; ++u)
+                    for (int t = 0; t < length[u]; ++t) {
+                        long key = keys[start[u] + t];
+                        colIdx[rowPtr[u] + t] = (int) (key >>> 32);
+                        rowVal[rowPtr[u] + t] = value[(int) key];
+                    }
+            }
+        });
+        matrix.buildColumns(pool, blocks);
+        return matrix;
+    }
+
+    public int rows() {
+        return this.rows;
+    }
+
+    public int cols() {
+        return this.cols;
+    }
+
+    /** Number of stored interactions, excluding writes not yet compacted. */
+    public int nnz() {
+        return this.rowPtr[this.rows];
+    }
+
+    public int rowStart(int row) {
+        return this.rowPtr[row];
+    }
+
+    public int rowEnd(int row) {
+        return this.rowPtr[row + 1];
+    }
+
+    public int colIndex(int k) {
+        return this.colIdx[k];
+    }
+
+    public float rowValue(int k) {
+        return this.rowVal[k];
+    }
+
+    public int colStart(int col) {
+        return this.colPtr[col];
+    }
+
+    public int colEnd(int col) {
+        return this.colPtr[col + 1];
+    }
+
+    public int rowIndex(int k) {
+        return this.rowIdx[k];
+    }
+
+    public float colValue(int k) {
+        return this.colVal[k];
+    }
+
+    public double get(int row, int col) {
+        compact();
+        int k = Arrays.binarySearch(this.colIdx, this.rowPtr[row], this.rowPtr[row + 1], col);
+        return k >= 0 ? this.rowVal[k] : 0;
+    }
+
+    public void put(int row, int col, double value) {
+        if (row < 0 || row >= this.rows || col < 0 || col >= this.cols)
+            throw new IndexOutOfBoundsException("(" + row + ", " + col + ") is outside " + this.rows + " * " + this.cols);
+        if (this.pendingSize == this.pendingRow.length) {
+            int capacity = this.pendingSize * 2;
+            this.pendingRow = Arrays.copyOf(this.pendingRow, capacity);
+            this.pendingCol = Arrays.copyOf(this.pendingCol, capacity);
+            this.pendingVal = Arrays.copyOf(this.pendingVal, capacity);
+        }
+        this.pendingRow[this.pendingSize] = row;
+        this.pendingCol[this.pendingSize] = col;
+        this.pendingVal[this.pendingSize++] = (float) value;
+    }
+
+    /**
+     * Appends n users without interactions. The row index grows geometrically and pending writes stay pending, so
+     * adding users one at a time costs amortized O(1) each.
+     */
+    public void addRows(int n) {
+        int nnz = nnz();
+        if (this.rows + n + 1 > this.rowPtr.length)
+            this.rowPtr = Arrays.copyOf(this.rowPtr, Math.max(this.rows + n + 1, this.rowPtr.length * 2));
+        Arrays.fill(this.rowPtr, this.rows + 1, this.rows + n + 1, nnz);
+        this.rows += n;
+        this.snapshot = null;
+    }
+
+    /** Appends n items without interactions, see {@link #addRows}. */
+    public void addCols(int n) {
+        int nnz = this.colPtr[this.cols];
+        if (this.cols + n + 1 > this.colPtr.length)
+            this.colPtr = Arrays.copyOf(this.colPtr, Math.max(this.cols + n + 1, this.colPtr.length * 2));
+        Arrays.fill(this.colPtr, this.cols + 1, this.cols + n + 1, nnz);
+        this.cols += n;
+        this.snapshot = null;
+    }
+
+    /**
+     * Merges pending writes into the CSR and CSC indexes. The last write to a cell wins and zero ratings are dropped.
+     * Costs O(nnz + rows + cols), so batch writes before compacting.
+     */
+    public void compact() {
+        if (this.pendingSize == 0) return;
+        int n = this.pendingSize;
+
+        // stable counting sort of the pending writes by row
+        int[] start = new int[this.rows + 1];
+        for (int j = 0; j < n; ++j) ++start[this.pendingRow[j] + 1];
+        for (int u = 0; u < this.rows; ++u) start[u + 1] += start[u];
+        long[] keys = new long[n];
+        int[] fill = Arrays.copyOf(start, this.rows);
+        for (int j = 0; j < n; ++j) {
+            int k = fill[this.pendingRow[j]]++;
+            // column in the high bits, write order in the low bits so sorting keeps the last write of a cell last
+            keys[k] = ((long) this.pendingCol[j] << 32) | j;
+        }
+
+        int[] colIdx = new int[nnz() + n];
+        float[] rowVal = new float[colIdx.length];
+        int[] rowPtr = new int[this.rows + 1];
+        int k = 0;
+        for (int u = 0; u < this.rows; ++u) {
+            int a = this.rowPtr[u], aEnd = this.rowPtr[u + 1], b = start[u], bEnd = start[u + 1];
+            if (b < bEnd) Arrays.sort(keys, b, bEnd);
+            while (a < aEnd || b < bEnd) {
+                int col;
+                float value;
+                if (b == bEnd || (a < aEnd && this.colIdx[a] < (int) (keys[b] >>> 32))) {
+                    col = this.colIdx[a];
+                    value = this.rowVal[a++];
+                } else {
+                    col = (int) (keys[b] >>> 32);
+                    while (b + 1 < bEnd && (int) (keys[b + 1] >>> 32) == col) ++b;
+                    value = this.pendingVal[(int) keys[b++]];
+                    if (a < aEnd && this.colIdx[a] == col) ++a;
+                }
+                if (value != 0) {
+                    colIdx[k] = col;
+                    rowVal[k++] = value;
+                }
+            }
+            rowPtr[u + 1] = k;
+        }
+
+        this.rowPtr = rowPtr;
+        this.colIdx = colIdx;
+        this.rowVal = rowVal;
+        this.pendingSize = 0;
+        this.snapshot = null;
+        buildColumns();
+    }
+
+    /**
+     * Returns a copy of the compacted ratings, excluding pending writes, that later writes to this matrix do not
+     * change. compact() replaces the index arrays instead of modifying them, so the copy shares them and only the
+     * row and column pointers, which {@link #addRows} and {@link #addCols} extend in place, are copied. The result is
+     * reused until the indexes change, so repeated calls cost O(1).
+     */
+    public InteractionMatrix snapshot() {
+        if (this.snapshot != null) return this.snapshot;
+        InteractionMatrix matrix = new InteractionMatrix(this.rows, this.cols);
+        matrix.rowPtr = Arrays.copyOf(this.rowPtr, this.rows + 1);
+        matrix.colIdx = this.colIdx;
+        matrix.rowVal = this.rowVal;
+        matrix.colPtr = Arrays.copyOf(this.colPtr, this.cols + 1);
+        matrix.rowIdx = this.rowIdx;
+        matrix.colVal = this.colVal;
+        return this.snapshot = matrix;
+    }
+
+    /** Number of writes not yet merged by {@link #compact()}. */
+    public int pending() {
+        return this.pendingSize;
+    }
+
+    /**
+     * Copies the current ratings of one user, including writes not yet compacted, into items and values ordered by
+     * item, and returns their number. Both arrays need room for rowEnd(row) - rowStart(row) + pending() entries. Costs
+     * O(nnz_u + pending()), so a single user can be read right after a put without compacting the whole matrix.
+     */
+    public int row(int row, int[] items, float[] values) {
+        int n = this.rowPtr[row + 1] - this.rowPtr[row];
+        System.arraycopy(this.colIdx, this.rowPtr[row], items, 0, n);
+        System.arraycopy(this.rowVal, this.rowPtr[row], values, 0, n);
+        return apply(row, this.pendingRow, this.pendingCol, items, values, n);
+    }
+
+    /** Same as {@link #row(int, int[], float[])} for the users of one item. */
+    public int col(int col, int[] users, float[] values) {
+        int n = this.colPtr[col + 1] - this.colPtr[col];
+        System.arraycopy(this.rowIdx, this.colPtr[col], users, 0, n);
+        System.arraycopy(this.colVal, this.colPtr[col], values, 0, n);
+        return apply(col, this.pendingCol, this.pendingRow, users, values, n);
+    }
+
+    /** Replays the pending writes whose key is key onto the sorted vector (index, value)[0, n). */
+    private int apply(int key, int[] pendingKey, int[] pendingIndex, int[] index, float[] value, int n) {
+        for (int j = 0; j < this.pendingSize; ++j) {
+            if (pendingKey[j] != key) continue;
+            int k = Arrays.binarySearch(index, 0, n, pendingIndex[j]);
+            if (k >= 0 && this.pendingVal[j] != 0) {
+                value[k] = this.pendingVal[j];
+            } else if (k >= 0) {
+                System.arraycopy(index, k + 1, index, k, n - k - 1);
+                System.arraycopy(value, k + 1, value, k, n - k - 1);
+                --n;
+            } else if (this.pendingVal[j] != 0) {
+                k = -k - 1;
+                System.arraycopy(index, k, index, k + 1, n - k);
+                System.arraycopy(value, k, value, k + 1, n - k);
+                index[k] = pendingIndex[j];
+                value[k] = this.pendingVal[j];
+                ++n;
+            }
+        }
+        return n;
+    }
+
+    /** Writes one user's ratings into dst, a vector of length nItems. */
+    public double[] row(int row, double[] dst) {
+        Arrays.fill(dst, 0);
+        for (int k = this.rowPtr[row]; k < this.rowPtr[row + 1]; ++k)
+            dst[this.colIdx[k]] = this.rowVal[k];
+        return dst;
+    }
+
+    public double[][] toDense() {
+        compact();
+        double[][] matrix = new double[this.rows][this.cols];
+        for (int u = 0; u < this.rows; ++u) row(u, matrix[u]);
+        return matrix;
+    }
+
+    private void buildColumns() {
+        buildColumns(null, 1);
+    }
+
+    /** Builds the CSC index from the CSR one by blocks of rows of about equal nnz, counted and scattered on pool. */
+    private void buildColumns(ForkJoinPool pool, final int blocks) {
+        final int[] rowPtr = this.rowPtr, colIdx = this.colIdx, bounds = bounds(rowPtr, this.rows, blocks);
+        final float[] rowVal = this.rowVal;
+        final int cols = this.cols;
+        final int[][] counts = new int[blocks][];
+        forEach(pool, blocks, new Block() {
+            public void run(int b) {
+                int[] count = counts[b] = new int[cols];
+                for (int k = rowPtr[bounds[b]]; k < rowPtr[bounds[b + 1]]; ++k) ++count[colIdx[k]];
+            }
+        });
+        // blocks cover ascending rows, so scattering block by block keeps the users of every column sorted
+        final int[] colPtr = new int[cols + 1];
+        for (int i = 0, k = 0; i < cols; ++i) {
+            colPtr[i] = k;
+            for (int b = 0; b < blocks; ++b) {
+                int count = counts[b][i];
+                counts[b][i] = k;
+                k += count;
+            }
+        }
+        colPtr[cols] = nnz();
+
+        final int[] rowIdx = new int[nnz()];
+        final float[] colVal = new float[nnz()];
+        forEach(pool, blocks, new Block() {
+            public void run(int b) {
+                int[] fill = counts[b];
+                for (int u = bounds[b]; u < bounds[b + 1]; ++u)
+                    for (int k = rowPtr[u]; k < rowPtr[u + 1]; ++k) {
+                        int i = fill[colIdx[k]]++;
+                        rowIdx[i] = u;
+                        colVal[i] = rowVal[k];
+                    }
+            }
+        });
+
+        this.colPtr = colPtr;
+        this.rowIdx = rowIdx;
+        this.colVal = colVal;
+    }
+
+    /** Start of block b of [0, n) cut into blocks parts. */
+    private static int split(int b, int blocks, int n) {
+        return (int) ((long) n * b / blocks);
+    }
+
+    /** Cuts rows [0, rows) into blocks ranges of about equal entries; range b is [bounds[b], bounds[b + 1]). */
+    private static int[] bounds(int[] ptr, int rows, int blocks) {
+        int[] bounds = new int[blocks + 1];
+        for (int b = 1; b < blocks; ++b) {
+            // first row starting at or after the block's share of the entries
+            int target = split(b, blocks, ptr[rows]), low = bounds[b - 1], high = rows;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ptr[mid] < target) low = mid + 1;
+                else high = mid;
+            }
+            bounds[b] = low;
+        }
+        bounds[blocks] = rows;
+        return bounds;
+    }
+
+    private interface Block {
+        void run(int b);
+    }
+
+    /** Runs block for b in [0, blocks), on pool unless there is a single block. */
+    private static void forEach(ForkJoinPool pool, int blocks, Block block) {
+        if (blocks == 1) block.run(0);
+        else pool.invoke(new Blocks(block, 0, blocks));
+    }
+
+    private static class Blocks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Block block;
+        private final int from, to;
+
+        Blocks(Block block, int from, int to) {
+            this.block = block;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from == 1) {
+                this.block.run(this.from);
+                return;
+            }
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new Blocks(this.block, this.from, mid), new Blocks(this.block, mid, this.to));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.matrix_factorization;
+
+/**
+ * Inner loops over contiguous ranges of double[] shared by {@link DoubleFactorMatrix} and {@link MatrixUtil}: the
+ * dot products of top-k scoring and the rank-1 and rank-k updates of Gram accumulation. The float[] overloads serve
+ * {@link FloatFactorMatrix}; they widen every element to double, so products and sums are exactly those of the
+ * double kernels on the widened values.
+ *
+ * {@link #INSTANCE} is chosen once, when the class loads: {@link VectorKernels} on the Java Vector API if the
+ * jdk.incubator.vector module is present (java --add-modules jdk.incubator.vector) and the hardware has at least two
+ * double lanes, {@link ScalarKernels} otherwise or if -Dmatrix_factorization.kernels=scalar is set. Being final and
+ * implemented by one loaded class, the field lets the JIT inline the kernels at every call site.
+ */
+public abstract class Kernels {
+    public static final Kernels INSTANCE = select();
+
+    /** "scalar" or "vector". */
+    public abstract String name();
+
+    /** Sum of a[aOffset + f] * b[bOffset + f] for f < n. */
+    public abstract double dot(double[] a, int aOffset, double[] b, int bOffset, int n);
+
+    /** y[yOffset + f] += w * x[xOffset + f] for f < n. */
+    public abstract void axpy(double w, double[] x, int xOffset, double[] y, int yOffset, int n);
+
+    /** Upper triangle of a += w * v * vt, v being the n values of data from offset. */
+    public void addOuter(double w, double[] data, int offset, int n, double[][] a) {
+        for (int f = 0; f < n; ++f) {
+            double v = w * data[offset + f];
+            if (v != 0) axpy(v, data, offset + f, a[f], f, n - f);
+        }
+    }
+
+    /**
+     * Upper triangle of a += sum of v * vt over rows vectors v of n values each, stored back to back in data from
+     * offset. Rows are taken four at a time, so each element of a is loaded and stored once per four rows.
+     */
+    public abstract void addGram(double[] data, int offset, int rows, int n, double[][] a);
+
+    /** Sum of a[aOffset + f] * b[bOffset + f] for f < n, a widened to double. */
+    public abstract double dot(float[] a, int aOffset, double[] b, int bOffset, int n);
+
+    /** Sum of a[aOffset + f] * b[bOffset + f] for f < n, both widened to double. */
+    public abstract double dot(float[] a, int aOffset, float[] b, int bOffset, int n);
+
+    /** y[yOffset + f] += w * x[xOffset + f] for f < n, x widened to double. */
+    public abstract void axpy(double w, float[] x, int xOffset, double[] y, int yOffset, int n);
+
+    /** Same as {@link #addOuter(double, double[], int, int, double[][])} on float data. */
+    public void addOuter(double w, float[] data, int offset, int n, double[][] a) {
+        for (int f = 0; f < n; ++f) {
+            double v = w * data[offset + f];
+            if (v != 0) axpy(v, data, offset + f, a[f], f, n - f);
+        }
+    }
+
+    /** Same as {@link #addGram(double[], int, int, int, double[][])} on float data. */
+    public abstract void addGram(float[] data, int offset, int rows, int n, double[][] a);
+
+    /** The scalar kernels, e.g. as a baseline. */
+    public static Kernels scalar() {
+        return new ScalarKernels();
+    }
+
+    /** The Vector API kernels, or null if the module is not present or the hardware has no double SIMD lanes. */
+    public static Kernels vector() {
+        try {
+            if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) return null;
+            Kernels kernels = (Kernels) Class.forName("com.matrix_factorization.VectorKernels").getDeclaredConstructor().newInstance();
+            return ((VectorKernels) kernels).lanes() >= 2 ? kernels : null;
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    private static Kernels select() {
+        Kernels vector = "scalar".equals(System.getProperty("matrix_factorization.kernels")) ? null : vector();
+        return vector != null ? vector : scalar();
+    }
+}
@@ -0,0 +1,148 @@
+package com.matrix_factorization;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * {@link FactorMatrix} read in place from a memory-mapped model file (see {@link ModelFile}), so a loaded model is
+ * usable without parsing or copying X and Y onto the heap.
+ *
+ * A single mapping cannot exceed 2 GB, so rows are split into segments of rowsPerSegment rows, each its own
+ * read-only mapping. The first write into a segment copies it to the heap; the file itself is never modified.
+ */
+public class MappedDoubleFactorMatrix extends FactorMatrix {
+    private DoubleBuffer[] segments;
+    private final int rowsPerSegment;
+
+    public MappedDoubleFactorMatrix(DoubleBuffer[] segments, int rowsPerSegment, int rows, int cols) {
+        super(rows, cols);
+        this.segments = segments;
+        this.rowsPerSegment = rowsPerSegment;
+    }
+
+    @Override
+    public Precision precision() {
+        return Precision.DOUBLE;
+    }
+
+    @Override
+    public double get(int row, int col) {
+        return this.segments[row / this.rowsPerSegment].get(offset(row) + col);
+    }
+
+    @Override
+    public void set(int row, int col, double value) {
+        writable(row).put(offset(row) + col, value);
+    }
+
+    @Override
+    public double[] getRow(int row, double[] dst) {
+        DoubleBuffer segment = this.segments[row / this.rowsPerSegment];
+        for (int f = 0, k = offset(row); f < this.cols; ++f, ++k)
+            dst[f] = segment.get(k);
+        return dst;
+    }
+
+    @Override
+    public void setRow(int row, double[] src) {
+        DoubleBuffer segment = writable(row);
+        for (int f = 0, k = offset(row); f < this.cols; ++f, ++k)
+            segment.put(k, src[f]);
+    }
+
+    /**
+     * New rows live on the heap. A segment that is too small is reallocated with at least twice its capacity, up to
+     * rowsPerSegment rows, so appending rows one at a time costs amortized O(cols) per row.
+     */
+    @Override
+    public void addRows(int n) {
+        int rows = this.rows + n, count = (rows + this.rowsPerSegment - 1) / this.rowsPerSegment;
+        int first = this.rows / this.rowsPerSegment;
+        if (count > this.segments.length) this.segments = Arrays.copyOf(this.segments, Math.max(count, this.segments.length * 2));
+        for (int s = first; s < count; ++s) {
+            int capacity = Math.min(this.rowsPerSegment, rows - s * this.rowsPerSegment) * this.cols;
+            if (this.segments[s] != null && this.segments[s].capacity() >= capacity) continue;
+            if (this.segments[s] != null) capacity = Math.max(capacity, Math.min(this.rowsPerSegment * this.cols, 2 * this.segments[s].capacity()));
+            DoubleBuffer segment = DoubleBuffer.allocate(capacity);
+            if (this.segments[s] != null) {
+                DoubleBuffer old = this.segments[s].duplicate();
+                old.clear();
+                segment.put(old).clear();
+            }
+            this.segments[s] = segment;
+        }
+        this.rows = rows;
+    }
+
+    @Override
+    public double dot(int row, double[] v) {
+        DoubleBuffer segment = this.segments[row / this.rowsPerSegment];
+        double total = 0;
+        for (int f = 0, k = offset(row); f < this.cols; ++f, ++k)
+            total += segment.get(k) * v[f];
+        return total;
+    }
+
+    @Override
+    public double dot(int row, FactorMatrix other, int otherRow) {
+        DoubleBuffer segment = this.segments[row / this.rowsPerSegment];
+        double total = 0;
+        if (other instanceof MappedDoubleFactorMatrix) {
+            MappedDoubleFactorMatrix mapped = (MappedDoubleFactorMatrix) other;
+            DoubleBuffer data = mapped.segments[otherRow / mapped.rowsPerSegment];
+            for (int f = 0, k = offset(row), l = mapped.offset(otherRow); f < this.cols; ++f, ++k, ++l)
+                total += segment.get(k) * data.get(l);
+        } else {
+            for (int f = 0, k = offset(row); f < this.cols; ++f, ++k)
+                total += segment.get(k) * other.get(otherRow, f);
+        }
+        return total;
+    }
+
+    @Override
+    public void axpy(int row, double w, double[] b) {
+        DoubleBuffer segment = this.segments[row / this.rowsPerSegment];
+        for (int f = 0, k = offset(row); f < this.cols; ++f, ++k)
+            b[f] += w * segment.get(k);
+    }
+
+    @Override
+    public void addOuter(int row, double w, double[][] a) {
+        DoubleBuffer segment = this.segments[row / this.rowsPerSegment];
+        int offset = offset(row);
+        for (int f = 0; f < this.cols; ++f) {
+            double v = w * segment.get(offset + f);
+            if (v == 0) continue;
+            double[] af = a[f];
+            for (int g = f, k = offset + f; g < this.cols; ++g, ++k)
+                af[g] += v * segment.get(k);
+        }
+    }
+
+    @Override
+    public double squaredNorm() {
+        double total = 0;
+        for (int row = 0; row < this.rows; ++row) {
+            DoubleBuffer segment = this.segments[row / this.rowsPerSegment];
+            for (int f = 0, k = offset(row); f < this.cols; ++f, ++k)
+                total += segment.get(k) * segment.get(k);
+        }
+        return total;
+    }
+
+    private int offset(int row) {
+        return row % this.rowsPerSegment * this.cols;
+    }
+
+    /** Segment holding row, copied to the heap first if it is still mapped read-only. */
+    private DoubleBuffer writable(int row) {
+        int s = row / this.rowsPerSegment;
+        if (this.segments[s].isReadOnly()) {
+            DoubleBuffer mapped = this.segments[s].duplicate();
+            mapped.clear();
+            this.segments[s] = DoubleBuffer.allocate(mapped.capacity());
+            this.segments[s].put(mapped).clear();
+        }
+        return this.segments[s];
+    }
+}
@@ -0,0 +1,142 @@
+package com.matrix_factorization;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/** {@link MappedDoubleFactorMatrix} over a float model file. */
+public class MappedFloatFactorMatrix extends FactorMatrix {
+    private FloatBuffer[] segments;
+    private final int rowsPerSegment;
+
+    public MappedFloatFactorMatrix(FloatBuffer[] segments, int rowsPerSegment, int rows, int cols) {
+        super(rows, cols);
+        this.segments = segments;
+        this.rowsPerSegment = rowsPerSegment;
+    }
+
+    @Override
+    public Precision precision() {
+        return Precision.FLOAT;
+    }
+
+    @Override
+    public double get(int row, int col) {
+        return this.segments[row / this.rowsPerSegment].get(offset(row) + col);
+    }
+
+    @Override
+    public void set(int row, int col, double value) {
+        writable(row).put(offset(row) + col, (float) value);
+    }
+
+    @Override
+    public double[] getRow(int row, double[] dst) {
+        FloatBuffer segment = this.segments[row / this.rowsPerSegment];
+        for (int f = 0, k = offset(row); f < this.cols; ++f, ++k)
+            dst[f] = segment.get(k);
+        return dst;
+    }
+
+    @Override
+    public void setRow(int row, double[] src) {
+        FloatBuffer segment = writable(row);
+        for (int f = 0, k = offset(row); f < this.cols; ++f, ++k)
+            segment.put(k, (float) src[f]);
+    }
+
+    /**
+     * New rows live on the heap. A segment that is too small is reallocated with at least twice its capacity, up to
+     * rowsPerSegment rows, so appending rows one at a time costs amortized O(cols) per row.
+     */
+    @Override
+    public void addRows(int n) {
+        int rows = this.rows + n, count = (rows + this.rowsPerSegment - 1) / this.rowsPerSegment;
+        int first = this.rows / this.rowsPerSegment;
+        if (count > this.segments.length) this.segments = Arrays.copyOf(this.segments, Math.max(count, this.segments.length * 2));
+        for (int s = first; s < count; ++s) {
+            int capacity = Math.min(this.rowsPerSegment, rows - s * this.rowsPerSegment) * this.cols;
+            if (this.segments[s] != null && this.segments[s].capacity() >= capacity) continue;
+            if (this.segments[s] != null) capacity = Math.max(capacity, Math.min(this.rowsPerSegment * this.cols, 2 * this.segments[s].capacity()));
+            FloatBuffer segment = FloatBuffer.allocate(capacity);
+            if (this.segments[s] != null) {
+                FloatBuffer old = this.segments[s].duplicate();
+                old.clear();
+                segment.put(old).clear();
+            }
+            this.segments[s] = segment;
+        }
+        this.rows = rows;
+    }
+
+    @Override
+    public double dot(int row, double[] v) {
+        FloatBuffer segment = this.segments[row / this.rowsPerSegment];
+        double total = 0;
+        for (int f = 0, k = offset(row); f < this.cols; ++f, ++k)
+            total += segment.get(k) * v[f];
+        return total;
+    }
+
+    @Override
+    public double dot(int row, FactorMatrix other, int otherRow) {
+        FloatBuffer segment = this.segments[row / this.rowsPerSegment];
+        double total = 0;
+        if (other instanceof MappedFloatFactorMatrix) {
+            MappedFloatFactorMatrix mapped = (MappedFloatFactorMatrix) other;
+            FloatBuffer data = mapped.segments[otherRow / mapped.rowsPerSegment];
+            for (int f = 0, k = offset(row), l = mapped.offset(otherRow); f < this.cols; ++f, ++k, ++l)
+                total += (double) segment.get(k) * data.get(l);
+        } else {
+            for (int f = 0, k = offset(row); f < this.cols; ++f, ++k)
+                total += segment.get(k) * other.get(otherRow, f);
+        }
+        return total;
+    }
+
+    @Override
+    public void axpy(int row, double w, double[] b) {
+        FloatBuffer segment = this.segments[row / this.rowsPerSegment];
+        for (int f = 0, k = offset(row); f < this.cols; ++f, ++k)
+            b[f] += w * segment.get(k);
+    }
+
+    @Override
+    public void addOuter(int row, double w, double[][] a) {
+        FloatBuffer segment = this.segments[row / this.rowsPerSegment];
+        int offset = offset(row);
+        for (int f = 0; f < this.cols; ++f) {
+            double v = w * segment.get(offset + f);
+            if (v == 0) continue;
+            double[] af = a[f];
+            for (int g = f, k = offset + f; g < this.cols; ++g, ++k)
+                af[g] += v * segment.get(k);
+        }
+    }
+
+    @Override
+    public double squaredNorm() {
+        double total = 0;
+        for (int row = 0; row < this.rows; ++row) {
+            FloatBuffer segment = this.segments[row / this.rowsPerSegment];
+            for (int f = 0, k = offset(row); f < this.cols; ++f, ++k)
+                total += (double) segment.get(k) * segment.get(k);
+        }
+        return total;
+    }
+
+    private int offset(int row) {
+        return row % this.rowsPerSegment * this.cols;
+    }
+
+    /** Segment holding row, copied to the heap first if it is still mapped read-only. */
+    private FloatBuffer writable(int row) {
+        int s = row / this.rowsPerSegment;
+        if (this.segments[s].isReadOnly()) {
+            FloatBuffer mapped = this.segments[s].duplicate();
+            mapped.clear();
+            this.segments[s] = FloatBuffer.allocate(mapped.capacity());
+            this.segments[s].put(mapped).clear();
+        }
+        return this.segments[s];
+    }
+}
@@ -2,8 +2,14 @@ package com.matrix_factorization;
 
 public interface MatrixFactorization {
     void setPrintLog(boolean printLog);
+    void addTrainingListener(TrainingListener listener);
+    void removeTrainingListener(TrainingListener listener);
     void fit(int stepSize);
     double[][] predict();
+    int[] recommend(int user, int k, boolean excludeSeen);
+    int[][] recommend(int[] users, int k, boolean excludeSeen);
+    int[] similarItems(int item, int k);
+    int[] similarUsers(int user, int k);
     double[][] getR();
     void put(int user, int item, double rating);
     void addUser(double[] user);
@@ -13,5 +19,8 @@ public interface MatrixFactorization {
     void addEmptyItem();
     void addEmptyItems(int nItems);
     void saveModel(String fileName);
+    void exportServingModel(String fileName);
     void loadModel(String modelPath);
+    /** Releases the worker threads of parallel training; the model stays usable and trains serially until asked otherwise. */
+    void shutdown();
 }
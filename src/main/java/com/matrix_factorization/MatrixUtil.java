@@ -1,10 +1,23 @@
 package com.matrix_factorization;
 
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class MatrixUtil {
+    // product tiles: BLOCK_K rows by BLOCK_J columns of b are packed into one contiguous panel (256 KB)
+    private static final int BLOCK_K = 64, BLOCK_J = 512;
+    // productTranspose tiles: rows of b kept hot while every row of a streams past them
+    private static final int BLOCK_BYTES = 1 << 17;
+    // multiply-adds above which products are split into row bands on the shared pool
+    private static final long PARALLEL_THRESHOLD = 1L << 24;
+    private static final int MIN_BAND = 32;
+
     public static double[][] transpose(double[][] src) {
-        double[][] dst = new double[src[0].length][src.length];
+        return transpose(src, new double[src[0].length][src.length]);
+    }
+
+    public static double[][] transpose(double[][] src, double[][] dst) {
         for (int i = 0; i < src.length; ++i)
             for (int j = 0; j < src[i].length; ++j)
                 dst[j][i] = src[i][j];
@@ -18,7 +31,10 @@ public class MatrixUtil {
     }
 
     public static double[][] sum(double[][] a, double[][] b) {
-        double[][] matrix = new double[a.length][a[0].length];
+        return sum(a, b, new double[a.length][a[0].length]);
+    }
+
+    public static double[][] sum(double[][] a, double[][] b, double[][] matrix) {
         for (int i = 0; i < a.length; ++i)
             for (int j = 0; j < a[i].length; ++j)
                 matrix[i][j] = a[i][j] + b[i][j];
@@ -42,23 +58,151 @@ public class MatrixUtil {
     }
 
     public static double[][] product(double[][] a, double[][] b) {
-        double[][] dst = new double[a.length][b[0].length];
-        for (int i = 0; i < dst.length; ++i)
-            for (int j = 0; j < dst[i].length; ++j)
-                for (int k = 0; k < a[0].length; ++k)
-                    dst[i][j] += a[i][k] * b[k][j];
+        return product(a, b, new double[a.length][b[0].length]);
+    }
+
+    /**
+     * dst = a * b with a cache-blocked kernel: a BLOCK_K * BLOCK_J tile of b is packed into a contiguous panel, and
+     * four rows of a are streamed through it at a time so each panel element loaded feeds four multiply-adds. Large
+     * shapes are split into row bands computed in parallel.
+     */
+    public static double[][] product(final double[][] a, final double[][] b, final double[][] dst) {
+        for (double[] row : dst) Arrays.fill(row, 0);
+        parallelRows(dst.length, (long) dst.length * b.length * (b.length == 0 ? 0 : b[0].length), new Band() {
+            public void compute(int from, int to) {
+                productRows(a, b, dst, from, to);
+            }
+        });
+        return dst;
+    }
+
+    private static void productRows(double[][] a, double[][] b, double[][] dst, int from, int to) {
+        int depth = b.length, width = depth == 0 ? 0 : b[0].length;
+        double[] panel = new double[Math.min(BLOCK_K, depth) * Math.min(BLOCK_J, width)];
+        for (int kk = 0; kk < depth; kk += BLOCK_K) {
+            int kEnd = Math.min(kk + BLOCK_K, depth);
+            for (int jj = 0; jj < width; jj += BLOCK_J) {
+                int n = Math.min(jj + BLOCK_J, width) - jj;
+                for (int k = kk; k < kEnd; ++k)
+                    System.arraycopy(b[k], jj, panel, (k - kk) * n, n);
+
+                int i = from;
+                for (; i + 3 < to; i += 4) {
+                    double[] a0 = a[i], a1 = a[i + 1], a2 = a[i + 2], a3 = a[i + 3];
+                    double[] d0 = dst[i], d1 = dst[i + 1], d2 = dst[i + 2], d3 = dst[i + 3];
+                    for (int k = kk; k < kEnd; ++k) {
+                        double x0 = a0[k], x1 = a1[k], x2 = a2[k], x3 = a3[k];
+                        for (int j = 0, p = (k - kk) * n; j < n; ++j, ++p) {
+                            double v = panel[p];
+                            d0[jj + j] += x0 * v;
+                            d1[jj + j] += x1 * v;
+                            d2[jj + j] += x2 * v;
+                            d3[jj + j] += x3 * v;
+                        }
+                    }
+                }
+                for (; i < to; ++i) {
+                    double[] ai = a[i], di = dst[i];
+                    for (int k = kk; k < kEnd; ++k) {
+                        double x = ai[k];
+                        for (int j = 0, p = (k - kk) * n; j < n; ++j, ++p)
+                            di[jj + j] += x * panel[p];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * a * bt without materializing the transpose: every entry is a dot product of two contiguous rows. Rows of b are
+     * processed in blocks that stay in cache while all rows of a pass over them, four b rows per a row at a time.
+     */
+    public static double[][] productTranspose(final double[][] a, final double[][] b) {
+        final double[][] dst = new double[a.length][b.length];
+        final int depth = a.length == 0 ? 0 : a[0].length;
+        parallelRows(a.length, (long) a.length * b.length * depth, new Band() {
+            public void compute(int from, int to) {
+                int block = Math.max(4, BLOCK_BYTES / 8 / Math.max(1, depth));
+                for (int jj = 0; jj < b.length; jj += block) {
+                    int jEnd = Math.min(jj + block, b.length);
+                    for (int i = from; i < to; ++i) {
+                        double[] ai = a[i], di = dst[i];
+                        int j = jj;
+                        for (; j + 3 < jEnd; j += 4) {
+                            double[] b0 = b[j], b1 = b[j + 1], b2 = b[j + 2], b3 = b[j + 3];
+                            double t0 = 0, t1 = 0, t2 = 0, t3 = 0;
+                            for (int k = 0; k < depth; ++k) {
+                                double x = ai[k];
+                                t0 += x * b0[k];
+                                t1 += x * b1[k];
+                                t2 += x * b2[k];
+                                t3 += x * b3[k];
+                            }
+                            di[j] = t0;
+                            di[j + 1] = t1;
+                            di[j + 2] = t2;
+                            di[j + 3] = t3;
+                        }
+                        for (; j < jEnd; ++j) di[j] = dot(ai, b[j]);
+                    }
+                }
+            }
+        });
+        return dst;
+    }
+
+    /** at * a without materializing the transpose, see {@link #gram(double[][], double[][])}. */
+    public static double[][] gram(double[][] a) {
+        return gram(a, new double[a[0].length][a[0].length]);
+    }
+
+    /** dst = at * a without materializing the transpose. */
+    public static double[][] gram(double[][] a, double[][] dst) {
+        for (double[] row : dst) Arrays.fill(row, 0);
+        for (double[] v : a)
+            Kernels.INSTANCE.addOuter(1, v, 0, dst.length, dst);
+        for (int f = 0; f < dst.length; ++f)
+            for (int g = 0; g < f; ++g)
+                dst[f][g] = dst[g][f];
+        return dst;
+    }
+
+    /** dst = at * a, accumulated over a's contiguous storage, see {@link FactorMatrix#addGram}. */
+    public static double[][] gram(FactorMatrix a, double[][] dst) {
+        for (double[] row : dst) Arrays.fill(row, 0);
+        a.addGram(dst);
+        for (int f = 0; f < dst.length; ++f)
+            for (int g = 0; g < f; ++g)
+                dst[f][g] = dst[g][f];
+        return dst;
+    }
+
+    /** a * bt, i.e. every row of a dotted with every row of b, blocked over b like the double[][] version. */
+    public static double[][] productTranspose(final FactorMatrix a, final FactorMatrix b) {
+        final double[][] dst = new double[a.rows()][b.rows()];
+        parallelRows(a.rows(), (long) a.rows() * b.rows() * a.cols(), new Band() {
+            public void compute(int from, int to) {
+                int block = Math.max(4, BLOCK_BYTES / 8 / Math.max(1, b.cols()));
+                for (int jj = 0; jj < b.rows(); jj += block) {
+                    int jEnd = Math.min(jj + block, b.rows());
+                    for (int i = from; i < to; ++i)
+                        for (int j = jj; j < jEnd; ++j)
+                            dst[i][j] = a.dot(i, b, j);
+                }
+            }
+        });
         return dst;
     }
 
     public static double dot(double[] a, double[] b) {
-        double total = 0;
-        for (int i = 0; i < a.length; ++i)
-            total += a[i] * b[i];
-        return total;
+        return Kernels.INSTANCE.dot(a, 0, b, 0, a.length);
     }
 
     public static double[] multiple(double[][] a, double[] b) {
-        double[] vector = new double[a.length];
+        return multiple(a, b, new double[a.length]);
+    }
+
+    public static double[] multiple(double[][] a, double[] b, double[] vector) {
         for (int i = 0; i < vector.length; ++i)
             vector[i] = dot(a[i], b);
         return vector;
@@ -175,4 +319,41 @@ public class MatrixUtil {
             System.out.println();
         }
     }
+
+    private interface Band {
+        void compute(int from, int to);
+    }
+
+    /** Runs band over rows [0, rows), split into parallel bands when the work exceeds PARALLEL_THRESHOLD. */
+    private static void parallelRows(int rows, long work, Band band) {
+        if (work < PARALLEL_THRESHOLD || rows < 2 * MIN_BAND) band.compute(0, rows);
+        else Pool.INSTANCE.invoke(new Bands(band, 0, rows));
+    }
+
+    private static class Pool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), Allocations.WORKERS, null, false);
+    }
+
+    private static class Bands extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Band band;
+        private final int from, to;
+
+        Bands(Band band, int from, int to) {
+            this.band = band;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= MIN_BAND * 2) {
+                this.band.compute(this.from, this.to);
+                return;
+            }
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new Bands(this.band, this.from, mid), new Bands(this.band, mid, this.to));
+        }
+    }
 }
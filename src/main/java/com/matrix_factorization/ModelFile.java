@@ -0,0 +1,390 @@
+package com.matrix_factorization;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Versioned binary model format. All values are little-endian:
+ *
+ * <pre>
+ *  offset  size
+ *       0     4  magic "MFAC"
+ *       4     4  version
+ *       8     4  bytes per factor element, 8 (double) or 4 (float)
+ *      12     4  nUsers
+ *      16     4  nItems
+ *      20     4  nFactor
+ *      24     8  lambda
+ *      32     8  alpha
+ *      40     8  nnz
+ *      48     4  flags, {@link #SERVING} if r is omitted, {@link #ID_MAPPINGS} if user and item ids follow
+ *      52    12  reserved
+ *      64        X, nUsers * nFactor elements, row-major, padded to 8 bytes
+ *                Y, nItems * nFactor elements, row-major, padded to 8 bytes
+ *                r as CSR: nUsers + 1 int row pointers, nnz int item indexes, nnz float ratings
+ *                user ids, then item ids, each as int kind (0 String, 1 Long), int count and count ids; a String
+ *                is an int byte length and UTF-8 bytes, a Long 8 bytes
+ * </pre>
+ *
+ * Confidence and preference are functions of r and alpha and are never stored. A serving export keeps only X and Y,
+ * and the id mappings, which is all scoring needs; a model loaded from it has no interactions to resume training from.
+ *
+ * The factor blocks are written as raw elements through a {@link FileChannel} and read back as memory mappings
+ * ({@link MappedDoubleFactorMatrix}, {@link MappedFloatFactorMatrix}), so loading costs no parsing and no copy of X
+ * and Y no matter how large they are. The interactions are read into an {@link InteractionMatrix} with bulk copies.
+ */
+public class ModelFile {
+    public static final int VERSION = 1;
+    /** Header flag of a serving export without interactions. */
+    public static final int SERVING = 1;
+    /** Header flag of a file that ends with the {@link IdMapping}s of users and items. */
+    public static final int ID_MAPPINGS = 2;
+
+    private static final int MAGIC = 'M' | 'F' << 8 | 'A' << 16 | 'C' << 24;
+    private static final int HEADER_BYTES = 64;
+    // largest single mapping of a factor block; also the most a first write into a mapped model copies at once
+    private static final int SEGMENT_BYTES = 1 << 26;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final InteractionMatrix r;
+    private final FactorMatrix x, y;
+    private final double lambda, alpha;
+    private final IdMapping<?> userIds, itemIds;
+
+    public ModelFile(InteractionMatrix r, FactorMatrix x, FactorMatrix y, double lambda, double alpha) {
+        this(r, x, y, lambda, alpha, null, null);
+    }
+
+    /**
+     * userIds and itemIds are either both null or both {@link String} or {@link Long} keyed, with one id per row and
+     * column of r.
+     *
+     * @throws IllegalArgumentException if only one mapping is given or a mapping does not match the shape of r
+     */
+    public ModelFile(InteractionMatrix r, FactorMatrix x, FactorMatrix y, double lambda, double alpha, IdMapping<?> userIds, IdMapping<?> itemIds) {
+        if ((userIds == null) != (itemIds == null))
+            throw new IllegalArgumentException("userIds and itemIds must be both null or both set");
+        if (userIds != null && (userIds.size() != r.rows() || itemIds.size() != r.cols()))
+            throw new IllegalArgumentException("id mappings of " + userIds.size() + " users and " + itemIds.size()
+                    + " items do not match " + r.rows() + " x " + r.cols() + " interactions");
+        this.r = r;
+        this.x = x;
+        this.y = y;
+        this.lambda = lambda;
+        this.alpha = alpha;
+        this.userIds = userIds;
+        this.itemIds = itemIds;
+    }
+
+    public InteractionMatrix getR() {
+        return this.r;
+    }
+
+    public FactorMatrix getX() {
+        return this.x;
+    }
+
+    public FactorMatrix getY() {
+        return this.y;
+    }
+
+    public double getLambda() {
+        return this.lambda;
+    }
+
+    public double getAlpha() {
+        return this.alpha;
+    }
+
+    /** Null if the model was saved without id mappings. */
+    public IdMapping<?> getUserIds() {
+        return this.userIds;
+    }
+
+    public IdMapping<?> getItemIds() {
+        return this.itemIds;
+    }
+
+    /**
+     * Writes the model in the precision of x; r must be compacted. The file is written next to path and moved over it
+     * once complete, so path may be the file x and y are mapped from, and readers never see a partial model.
+     */
+    public void write(String path) throws IOException {
+        write(path, false);
+    }
+
+    /** Writes X, Y and the id mappings only, for scoring. */
+    public void writeServing(String path) throws IOException {
+        write(path, true);
+    }
+
+    private void write(String path, boolean serving) throws IOException {
+        File target = new File(path).getAbsoluteFile();
+        File tmp = File.createTempFile("." + target.getName() + ".", ".tmp", target.getParentFile());
+        boolean moved = false;
+        try {
+            write(tmp, serving);
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+        } finally {
+            if (!moved) tmp.delete();
+        }
+    }
+
+    private void write(File file, boolean serving) throws IOException {
+        int elementBytes = this.x.precision() == Precision.FLOAT ? 4 : 8;
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(elementBytes)
+                    .putInt(this.r.rows()).putInt(this.r.cols()).putInt(this.x.cols())
+                    .putDouble(this.lambda).putDouble(this.alpha).putLong(serving ? 0 : this.r.nnz())
+                    .putInt((serving ? SERVING : 0) | (this.userIds != null ? ID_MAPPINGS : 0));
+            while (buffer.position() < HEADER_BYTES) buffer.put((byte) 0);
+
+            writeFactors(channel, buffer, this.x, elementBytes);
+            writeFactors(channel, buffer, this.y, elementBytes);
+
+            if (!serving) {
+                for (int u = 0; u <= this.r.rows(); ++u)
+                    reserve(channel, buffer, 4).putInt(u < this.r.rows() ? this.r.rowStart(u) : this.r.nnz());
+                for (int k = 0; k < this.r.nnz(); ++k)
+                    reserve(channel, buffer, 4).putInt(this.r.colIndex(k));
+                for (int k = 0; k < this.r.nnz(); ++k)
+                    reserve(channel, buffer, 4).putFloat(this.r.rowValue(k));
+            }
+            if (this.userIds != null) {
+                writeIds(channel, buffer, this.userIds);
+                writeIds(channel, buffer, this.itemIds);
+            }
+            flush(channel, buffer);
+            channel.force(false);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /** Maps X and Y of the model file at path and reads its interactions. */
+    public static ModelFile read(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            if (header.getInt() != MAGIC) throw new IOException(path + " is not a model file");
+            int version = header.getInt();
+            if (version != VERSION) throw new IOException(path + " has unsupported model version " + version);
+            int elementBytes = header.getInt(), nUsers = header.getInt(), nItems = header.getInt(), nFactor = header.getInt();
+            double lambda = header.getDouble(), alpha = header.getDouble();
+            long nnz = header.getLong();
+            int flags = header.getInt();
+            if ((elementBytes != 4 && elementBytes != 8) || nUsers < 0 || nItems < 0 || nFactor < 0 || nnz < 0 || nnz > Integer.MAX_VALUE)
+                throw new IOException(path + " has a corrupt header");
+
+            long xOffset = HEADER_BYTES;
+            long yOffset = xOffset + align((long) nUsers * nFactor * elementBytes);
+            long rOffset = yOffset + align((long) nItems * nFactor * elementBytes);
+            long end = (flags & SERVING) != 0 ? rOffset : rOffset + 4L * (nUsers + 1) + 8 * nnz;
+            if (channel.size() < end) throw new IOException(path + " is truncated");
+
+            FactorMatrix x = mapFactors(channel, xOffset, nUsers, nFactor, elementBytes);
+            FactorMatrix y = mapFactors(channel, yOffset, nItems, nFactor, elementBytes);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+            InteractionMatrix r;
+            if ((flags & SERVING) != 0) {
+                r = new InteractionMatrix(nUsers, nItems);
+            } else {
+                int[] rowPtr = new int[nUsers + 1], colIdx = new int[(int) nnz];
+                float[] rowVal = new float[(int) nnz];
+                long position = readInts(channel, buffer, rOffset, rowPtr);
+                position = readInts(channel, buffer, position, colIdx);
+                readFloats(channel, buffer, position, rowVal);
+                if (rowPtr[0] != 0 || rowPtr[nUsers] != nnz) throw new IOException(path + " has corrupt interactions");
+                r = InteractionMatrix.fromCsr(nUsers, nItems, rowPtr, colIdx, rowVal);
+            }
+
+            IdMapping<?> userIds = null, itemIds = null;
+            if ((flags & ID_MAPPINGS) != 0) {
+                Input input = new Input(channel, buffer, end);
+                userIds = readIds(input);
+                itemIds = readIds(input);
+                if (userIds.size() != nUsers || itemIds.size() != nItems) throw new IOException(path + " has corrupt id mappings");
+            }
+            return new ModelFile(r, x, y, lambda, alpha, userIds, itemIds);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static FactorMatrix mapFactors(FileChannel channel, long offset, int rows, int cols, int elementBytes) throws IOException {
+        int rowBytes = Math.max(1, cols * elementBytes);
+        int rowsPerSegment = Math.max(1, SEGMENT_BYTES / rowBytes);
+        int count = (rows + rowsPerSegment - 1) / rowsPerSegment;
+        DoubleBuffer[] doubles = new DoubleBuffer[count];
+        FloatBuffer[] floats = new FloatBuffer[count];
+        for (int s = 0; s < count; ++s) {
+            int segmentRows = Math.min(rowsPerSegment, rows - s * rowsPerSegment);
+            ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, offset + (long) s * rowsPerSegment * cols * elementBytes,
+                    (long) segmentRows * cols * elementBytes).order(ByteOrder.LITTLE_ENDIAN);
+            if (elementBytes == 8) doubles[s] = segment.asDoubleBuffer();
+            else floats[s] = segment.asFloatBuffer();
+        }
+        return elementBytes == 8
+                ? new MappedDoubleFactorMatrix(doubles, rowsPerSegment, rows, cols)
+                : new MappedFloatFactorMatrix(floats, rowsPerSegment, rows, cols);
+    }
+
+    private static void writeFactors(FileChannel channel, ByteBuffer buffer, FactorMatrix factors, int elementBytes) throws IOException {
+        double[] row = new double[factors.cols()];
+        for (int i = 0; i < factors.rows(); ++i) {
+            factors.getRow(i, row);
+            for (double v : row) {
+                if (elementBytes == 8) reserve(channel, buffer, 8).putDouble(v);
+                else reserve(channel, buffer, 4).putFloat((float) v);
+            }
+        }
+        long size = (long) factors.rows() * factors.cols() * elementBytes;
+        for (long pad = align(size) - size; pad > 0; --pad) reserve(channel, buffer, 1).put((byte) 0);
+    }
+
+    private static void writeIds(FileChannel channel, ByteBuffer buffer, IdMapping<?> ids) throws IOException {
+        boolean longs = ids.size() > 0 && ids.id(0) instanceof Long;
+        reserve(channel, buffer, 8).putInt(longs ? 1 : 0).putInt(ids.size());
+        for (int k = 0; k < ids.size(); ++k) {
+            Object id = ids.id(k);
+            if (longs && id instanceof Long) {
+                reserve(channel, buffer, 8).putLong((Long) id);
+            } else if (!longs && id instanceof String) {
+                byte[] bytes = ((String) id).getBytes(UTF_8);
+                reserve(channel, buffer, 4).putInt(bytes.length);
+                for (int written = 0; written < bytes.length; ) {
+                    int n = Math.min(bytes.length - written, BUFFER_BYTES);
+                    reserve(channel, buffer, n).put(bytes, written, n);
+                    written += n;
+                }
+            } else {
+                throw new IllegalArgumentException("ids must be all String or all Long, found " + id.getClass().getName());
+            }
+        }
+    }
+
+    private static IdMapping<?> readIds(Input input) throws IOException {
+        int kind = input.getInt(), count = input.getInt();
+        if (kind == 1) {
+            IdMapping<Long> ids = new IdMapping<Long>();
+            for (int k = 0; k < count; ++k) ids.index(input.getLong());
+            return ids;
+        }
+        IdMapping<String> ids = new IdMapping<String>();
+        for (int k = 0; k < count; ++k) ids.index(new String(input.getBytes(input.getInt()), UTF_8));
+        return ids;
+    }
+
+    private static long readInts(FileChannel channel, ByteBuffer buffer, long position, int[] dst) throws IOException {
+        for (int n = 0; n < dst.length; ) {
+            buffer.clear().limit((int) Math.min(BUFFER_BYTES, (dst.length - n) * 4L));
+            readFully(channel, buffer, position);
+            int count = buffer.limit() / 4;
+            buffer.asIntBuffer().get(dst, n, count);
+            n += count;
+            position += buffer.limit();
+        }
+        return position;
+    }
+
+    private static long readFloats(FileChannel channel, ByteBuffer buffer, long position, float[] dst) throws IOException {
+        for (int n = 0; n < dst.length; ) {
+            buffer.clear().limit((int) Math.min(BUFFER_BYTES, (dst.length - n) * 4L));
+            readFully(channel, buffer, position);
+            int count = buffer.limit() / 4;
+            buffer.asFloatBuffer().get(dst, n, count);
+            n += count;
+            position += buffer.limit();
+        }
+        return position;
+    }
+
+    /** Fills buffer from position to its limit, then flips it for reading. */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) throw new IOException("unexpected end of model file");
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    private static ByteBuffer reserve(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) flush(channel, buffer);
+        return buffer;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /** Sequential little-endian reader over a channel from a given position. */
+    private static class Input {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long position;
+
+        Input(FileChannel channel, ByteBuffer buffer, long position) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.position = position;
+            buffer.clear().limit(0);
+        }
+
+        int getInt() throws IOException {
+            return require(4).getInt();
+        }
+
+        long getLong() throws IOException {
+            return require(8).getLong();
+        }
+
+        byte[] getBytes(int n) throws IOException {
+            byte[] bytes = new byte[n];
+            for (int read = 0; read < n; ) {
+                int count = Math.min(n - read, BUFFER_BYTES);
+                require(count).get(bytes, read, count);
+                read += count;
+            }
+            return bytes;
+        }
+
+        /** Refills the buffer so that at least n bytes are left to read. */
+        private ByteBuffer require(int n) throws IOException {
+            if (this.buffer.remaining() < n) {
+                this.buffer.compact();
+                while (this.buffer.position() < n) {
+                    int count = this.channel.read(this.buffer, this.position);
+                    if (count < 0) throw new IOException("unexpected end of model file");
+                    this.position += count;
+                }
+                this.buffer.flip();
+            }
+            return this.buffer;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.matrix_factorization;
+
+import java.util.Arrays;
+
+/**
+ * Immutable version of a trained model, published by {@link DefaultMatrixFactorization#publish()}.
+ *
+ * Nothing reachable from a snapshot is modified after it is built, so any number of threads can score against it
+ * without locks while the training thread keeps changing the live model and publishes newer versions. The only
+ * state filled in later are caches derived from the factors: row norms, computed on first use, and the similar-item
+ * table.
+ */
+public class ModelSnapshot {
+    // rows of x or y scored per pass of similar(), sized to stay in cache while every query passes over them
+    private static final int BLOCK_BYTES = 1 << 17;
+
+    private final long version;
+    private final FactorMatrix x, y;
+    private final InteractionMatrix r;
+    private final HnswIndex index;
+    private final NeighborCache similarItems;
+    private volatile double[] userNorms, itemNorms;
+
+    /** x, y and r must never be modified afterwards. */
+    public ModelSnapshot(long version, FactorMatrix x, FactorMatrix y, InteractionMatrix r) {
+        this(version, x, y, r, null);
+    }
+
+    /** @param index item index for {@link #recommendApproximate}, or null */
+    public ModelSnapshot(long version, FactorMatrix x, FactorMatrix y, InteractionMatrix r, HnswIndex index) {
+        this(version, x, y, r, index, null, 0);
+    }
+
+    /**
+     * @param previous earlier version, whose row norms and similar-item table are kept where x or y is the same
+     *                 object, or null
+     * @param similarItemCache rows of the similar-item table, 0 for none
+     */
+    public ModelSnapshot(long version, FactorMatrix x, FactorMatrix y, InteractionMatrix r, HnswIndex index, ModelSnapshot previous, int similarItemCache) {
+        this.version = version;
+        this.x = x;
+        this.y = y;
+        this.r = r;
+        this.index = index;
+        if (previous != null && previous.x == x) this.userNorms = previous.userNorms;
+        if (previous != null && previous.y == y) this.itemNorms = previous.itemNorms;
+        boolean keep = previous != null && previous.y == y && previous.similarItems != null && previous.similarItems.capacity() == similarItemCache;
+        this.similarItems = keep ? previous.similarItems : similarItemCache > 0 ? new NeighborCache(similarItemCache) : null;
+    }
+
+    /** Increases by one with every publication of the same model. */
+    public long getVersion() {
+        return this.version;
+    }
+
+    public FactorMatrix getX() {
+        return this.x;
+    }
+
+    public FactorMatrix getY() {
+        return this.y;
+    }
+
+    /** Ratings as of the publication, used to exclude seen items. */
+    public InteractionMatrix getR() {
+        return this.r;
+    }
+
+    /** Null if the model had no index when published. */
+    public HnswIndex getIndex() {
+        return this.index;
+    }
+
+    public int users() {
+        return this.x.rows();
+    }
+
+    public int items() {
+        return this.y.rows();
+    }
+
+    public double predict(int user, int item) {
+        return this.x.dot(user, this.y, item);
+    }
+
+    public double[][] predict() {
+        return MatrixUtil.productTranspose(this.x, this.y);
+    }
+
+    public int[] recommend(int user, int k, boolean excludeSeen) {
+        return recommend(new int[] { user }, k, excludeSeen)[0];
+    }
+
+    public int[][] recommend(int[] users, int k, boolean excludeSeen) {
+        return recommend(this.x, this.y, this.r, users, k, excludeSeen);
+    }
+
+    /** Items most similar to item by the cosine of their factors, best first, excluding item itself. */
+    public int[] similarItems(int item, int k) {
+        return similarItems(new int[] { item }, k)[0];
+    }
+
+    public int[][] similarItems(int[] items, int k) {
+        double[] norms = this.itemNorms;
+        if (norms == null) this.itemNorms = norms = norms(this.y);
+        return similar(this.y, norms, items, k, this.similarItems);
+    }
+
+    public int[] similarUsers(int user, int k) {
+        return similarUsers(new int[] { user }, k)[0];
+    }
+
+    public int[][] similarUsers(int[] users, int k) {
+        double[] norms = this.userNorms;
+        if (norms == null) this.userNorms = norms = norms(this.x);
+        return similar(this.x, norms, users, k, null);
+    }
+
+    public int[] recommendApproximate(int user, int k, boolean excludeSeen, int ef) {
+        return recommendApproximate(new int[] { user }, k, excludeSeen, ef)[0];
+    }
+
+    public int[][] recommendApproximate(int[] users, int k, boolean excludeSeen, int ef) {
+        if (this.index == null) throw new IllegalStateException("the model was published without an index");
+        return recommendApproximate(this.x, this.y, this.r, this.index, users, k, excludeSeen, ef);
+    }
+
+    /**
+     * Same as {@link #recommend(FactorMatrix, FactorMatrix, InteractionMatrix, int[], int, boolean)}, but scores only
+     * the ef candidates the index returns, and the items added after it was built, so a request costs about
+     * O((ef * log nItems + ef) * nFactor) instead of O(nItems * nFactor). Candidates are rescored with y, which may be
+     * newer than the index. When seen items leave fewer than k candidates, the search is repeated with twice the ef.
+     *
+     * @param ef candidates per search, at least k; the recall/latency knob
+     */
+    public static int[][] recommendApproximate(FactorMatrix x, FactorMatrix y, InteractionMatrix r, HnswIndex index, int[] users, int k, boolean excludeSeen, int ef) {
+        TopK top = new TopK(k);
+        Seen seen = new Seen();
+        double[] vector = new double[x.cols()];
+        int[][] items = new int[users.length][];
+        for (int n = 0; n < users.length; ++n) {
+            x.getRow(users[n], vector);
+            if (excludeSeen) seen.read(r, users[n]);
+            for (int width = Math.max(ef, k); ; width *= 2) {
+                top.clear();
+                for (int i : index.search(vector, width))
+                    if (!excludeSeen || !seen.contains(i)) top.offer(i, y.dot(i, vector));
+                if (top.size() >= k || width >= index.size()) break;
+            }
+            // items added after the index was built are not in the graph
+            for (int i = index.size(); i < y.rows(); ++i)
+                if (!excludeSeen || !seen.contains(i)) top.offer(i, y.dot(i, vector));
+            items[n] = top.poll();
+        }
+        return items;
+    }
+
+    /**
+     * Scores every user against every item and keeps the best k in a bounded heap, without materializing the full
+     * prediction. Writes to r not yet compacted are replayed per user, so r is only read, never compacted.
+     *
+     * @return up to k item indexes per user ordered by descending score
+     */
+    public static int[][] recommend(FactorMatrix x, FactorMatrix y, InteractionMatrix r, int[] users, int k, boolean excludeSeen) {
+        TopK top = new TopK(k);
+        Seen seen = new Seen();
+        double[] vector = new double[x.cols()];
+        int[][] items = new int[users.length][];
+        for (int n = 0; n < users.length; ++n) {
+            x.getRow(users[n], vector);
+            if (excludeSeen) seen.read(r, users[n]);
+            // the user's rated items are sorted, so skip them with a cursor that moves along with i
+            int cursor = 0, end = excludeSeen ? seen.size : 0;
+            for (int i = 0; i < y.rows(); ++i) {
+                if (cursor < end && seen.items[cursor] == i) {
+                    ++cursor;
+                    continue;
+                }
+                top.offer(i, y.dot(i, vector));
+            }
+            items[n] = top.poll();
+        }
+        return items;
+    }
+
+    /** Euclidean norm of every row. */
+    public static double[] norms(FactorMatrix factors) {
+        double[] norms = new double[factors.rows()];
+        for (int i = 0; i < norms.length; ++i) norms[i] = Math.sqrt(factors.dot(i, factors, i));
+        return norms;
+    }
+
+    /**
+     * Top k rows of factors by cosine similarity to each of the given rows, excluding the row itself. Queries are
+     * normalized once and scored together block by block: a block of rows stays in cache while every query passes
+     * over it, and each candidate costs one dot product plus a division by its cached norm. Answers found in cache
+     * are returned without scoring and those computed are added to it.
+     *
+     * @param norms {@link #norms} of factors
+     * @param cache neighbor table of factors, or null
+     */
+    public static int[][] similar(FactorMatrix factors, double[] norms, int[] rows, int k, NeighborCache cache) {
+        int[][] neighbors = new int[rows.length][];
+        int misses = 0, candidates = -1;
+        for (int n = 0; n < rows.length; ++n) {
+            int[] cached = cache == null ? null : cache.get(rows[n]);
+            // a short list is complete if it has every other row with a non-zero norm, the only rows ever scored
+            if (cached != null && cached.length < k && candidates < 0) candidates = candidates(norms);
+            // a longer cached list starts with the shorter answer
+            if (cached != null && (cached.length >= k || cached.length == candidates - (norms[rows[n]] > 0 ? 1 : 0)))
+                neighbors[n] = cached.length > k ? Arrays.copyOf(cached, k) : cached;
+            else
+                ++misses;
+        }
+        if (misses == 0) return neighbors;
+
+        int[] queries = new int[misses];
+        double[][] vectors = new double[misses][factors.cols()];
+        TopK[] tops = new TopK[misses];
+        for (int n = 0, q = 0; n < rows.length; ++n) {
+            if (neighbors[n] != null) continue;
+            factors.getRow(queries[q] = rows[n], vectors[q]);
+            double norm = norms[rows[n]];
+            if (norm > 0)
+                for (int f = 0; f < vectors[q].length; ++f) vectors[q][f] /= norm;
+            tops[q++] = new TopK(k);
+        }
+        int block = Math.max(4, BLOCK_BYTES / 8 / Math.max(1, factors.cols()));
+        for (int jj = 0; jj < factors.rows(); jj += block) {
+            int jEnd = Math.min(jj + block, factors.rows());
+            for (int q = 0; q < misses; ++q)
+                for (int j = jj; j < jEnd; ++j)
+                    if (j != queries[q] && norms[j] > 0) tops[q].offer(j, factors.dot(j, vectors[q]) / norms[j]);
+        }
+        for (int n = 0, q = 0; n < rows.length; ++n) {
+            if (neighbors[n] != null) continue;
+            neighbors[n] = tops[q].poll();
+            if (cache != null) cache.put(queries[q], neighbors[n]);
+            ++q;
+        }
+        return neighbors;
+    }
+
+    /** Number of rows with a non-zero norm. */
+    private static int candidates(double[] norms) {
+        int candidates = 0;
+        for (double norm : norms)
+            if (norm > 0) ++candidates;
+        return candidates;
+    }
+
+    /** The rated items of one user at a time, pending writes included, in buffers reused across users. */
+    private static class Seen {
+        private int[] items = new int[16];
+        private float[] values = new float[16];
+        private int size;
+
+        void read(InteractionMatrix r, int user) {
+            int n = r.rowEnd(user) - r.rowStart(user) + r.pending();
+            if (n > this.items.length) {
+                this.items = new int[Math.max(n, 2 * this.items.length)];
+                this.values = new float[this.items.length];
+            }
+            this.size = r.row(user, this.items, this.values);
+        }
+
+        boolean contains(int item) {
+            return Arrays.binarySearch(this.items, 0, this.size, item) >= 0;
+        }
+    }
+}
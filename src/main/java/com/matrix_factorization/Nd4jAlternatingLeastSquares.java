@@ -1,23 +1,27 @@
 package com.matrix_factorization;
 
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.inverse.InvertMatrix;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 import org.nd4j.linalg.ops.transforms.Transforms;
 
-public class Nd4jAlternatingLeastSquares implements AlternatingLeastSquares<INDArray> {
+public class Nd4jAlternatingLeastSquares implements AlternatingLeastSquares<INDArray, INDArray> {
+    // predictions per block of users in loss
+    private static final long BLOCK_CELLS = 1 << 20;
+
     /**
      * @param x: nUsers * factor
      * @param y: nItems * factor
-     * @param c: nUsers * nItems
-     * @param p: nUsers * nItems
+     * @param r: nUsers * nItems
      * */
-    public void optimizeUser(INDArray x, INDArray y, INDArray c, INDArray p, int nUsers, int nFactor, double lambda) {
+    public void optimizeUser(INDArray x, INDArray y, INDArray r, int nUsers, int nFactor, double lambda, double alpha) {
         // yt: nFactor * nItems
         INDArray yt = y.transpose();
         for (int u = 0; u < nUsers; ++u) {
             // cu: nItems * nItems
-            INDArray cu = Nd4j.diag(c.getRow(u));
+            INDArray cu = Nd4j.diag(confidence(r.getRow(u), alpha));
             // yt_cu: nFactor * nItems
             INDArray yt_cu = Nd4j.matmul(yt, cu);
             // yt_cu_y: nFactor * nFactor
@@ -25,18 +29,18 @@ public class Nd4jAlternatingLeastSquares implements AlternatingLeastSquares<INDA
             // li: nFactor * nFactor
             INDArray li = Nd4j.eye(nFactor).mul(lambda);
             // yt_cu_pu: nFactor * 1
-            INDArray yt_cu_pu = Nd4j.matmul(yt_cu, p.getRows(u).transpose());
+            INDArray yt_cu_pu = Nd4j.matmul(yt_cu, preference(r.getRows(u)).transpose());
 
-            x.putRow(u, Nd4j.matmul(InvertMatrix.invert(yt_cu_y.add(li), false), yt_cu_pu).transpose());
+            x.putRow(u, solve(yt_cu_y.add(li), yt_cu_pu, x.dataType()));
         }
     }
 
-    public void optimizeItem(INDArray x, INDArray y, INDArray c, INDArray p, int nItems, int nFactor, double lambda) {
+    public void optimizeItem(INDArray x, INDArray y, INDArray r, int nItems, int nFactor, double lambda, double alpha) {
         // yt: nFactor * nUsers
         INDArray xt = x.transpose();
         for (int i = 0; i < nItems; ++i) {
             // ci: nUsers * nUsers
-            INDArray ci = Nd4j.diag(c.getColumn(i));
+            INDArray ci = Nd4j.diag(confidence(r.getColumn(i), alpha));
             // xt_ci: nFactor * nUsers
             INDArray xt_ci = Nd4j.matmul(xt, ci);
             // xt_ci_x: nFactor * nFactor
@@ -44,18 +48,48 @@ public class Nd4jAlternatingLeastSquares implements AlternatingLeastSquares<INDA
             // li: nFactor * nFactor
             INDArray li = Nd4j.eye(nFactor).mul(lambda);
             // xt_ci_pi: nFactor * 1
-            INDArray xt_ci_pi = Nd4j.matmul(xt_ci, p.getColumns(i));
+            INDArray xt_ci_pi = Nd4j.matmul(xt_ci, preference(r.getColumns(i)));
 
-            y.putRow(i, Nd4j.matmul(InvertMatrix.invert(xt_ci_x.add(li), false), xt_ci_pi).transpose());
+            y.putRow(i, solve(xt_ci_x.add(li), xt_ci_pi, y.dataType()));
         }
     }
 
-    public double[] loss(INDArray x, INDArray y, INDArray c, INDArray p, double lambda) {
-        INDArray predict = Nd4j.matmul(x, y.transpose());
-        INDArray predictError = Transforms.pow(p.sub(predict), 2);
-        double confidenceError = c.mul(predictError).sumNumber().doubleValue();
-        double regularization = lambda * (Transforms.pow(x, 2).sumNumber().doubleValue() + Transforms.pow(y, 2).sumNumber().doubleValue());
+    /**
+     * Scores users in blocks of about BLOCK_CELLS predictions, so the temporaries stay a bounded slice of the
+     * nUsers * nItems prediction instead of four full copies of it.
+     */
+    public double[] loss(INDArray x, INDArray y, INDArray r, double lambda, double alpha) {
+        INDArray yt = y.transpose();
+        int block = (int) Math.max(1, BLOCK_CELLS / Math.max(1, r.columns()));
+        double predictError = 0, confidenceError = 0;
+        for (int from = 0; from < r.rows(); from += block) {
+            INDArrayIndex users = NDArrayIndex.interval(from, Math.min(from + block, r.rows()));
+            INDArray ratings = r.get(users, NDArrayIndex.all());
+            // error: block * nItems, (p - x * yt)^2
+            INDArray error = Transforms.pow(preference(ratings).subi(Nd4j.matmul(x.get(users, NDArrayIndex.all()), yt)), 2, false);
+            predictError += error.sumNumber().doubleValue();
+            confidenceError += error.muli(confidence(ratings, alpha)).sumNumber().doubleValue();
+        }
+        double xNorm = x.norm2Number().doubleValue(), yNorm = y.norm2Number().doubleValue();
+        double regularization = lambda * (xNorm * xNorm + yNorm * yNorm);
         double totalLoss = confidenceError + regularization;
-        return new double[] { predictError.sumNumber().doubleValue(), confidenceError, regularization, totalLoss };
+        return new double[] { predictError, confidenceError, regularization, totalLoss };
+    }
+
+    /** Solves the nFactor * nFactor normal equation a * x = b with {@link CholeskySolver} and returns x as a row. */
+    private static INDArray solve(INDArray a, INDArray b, DataType dataType) {
+        double[] x = b.toDoubleVector();
+        CholeskySolver.solve(a.toDoubleMatrix(), x, new double[x.length]);
+        return Nd4j.createFromArray(x).castTo(dataType);
+    }
+
+    /** c = 1 + alpha * r */
+    static INDArray confidence(INDArray r, double alpha) {
+        return r.castTo(Nd4j.defaultFloatingPointType()).mul(alpha).addi(1);
+    }
+
+    /** p = r > 0 ? 1 : 0 */
+    static INDArray preference(INDArray r) {
+        return r.gt(0).castTo(Nd4j.defaultFloatingPointType());
     }
 }
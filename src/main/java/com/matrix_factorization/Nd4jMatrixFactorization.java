@@ -3,9 +3,12 @@ package com.matrix_factorization;
 import org.apache.log4j.BasicConfigurator;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 
 import java.io.*;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -17,9 +20,15 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
 
     private int nUsers, nItems, nFactor;
     private double lambda, alpha;
-    private INDArray r, x, y, p, c;
+    private INDArray r, x, y;
+    // backing arrays with spare capacity, r, x and y are views of their leading rows and columns; null until the first add
+    private INDArray rStorage, xStorage, yStorage;
+    // row norms of x and y for similarUsers/similarItems, null when stale
+    private double[] userNorms, itemNorms;
 
-    private boolean printLog = true;
+    // notified after every training step; printLog adds or removes the printer, which is on by default
+    private final TrainingListener printer = new PrintingTrainingListener();
+    private final List<TrainingListener> listeners = new CopyOnWriteArrayList<TrainingListener>(Collections.singletonList(this.printer));
 
     private Nd4jAlternatingLeastSquares als;
 
@@ -27,7 +36,6 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
         this.lambda = lambda; this.alpha = alpha;
         this.x = Nd4j.rand(this.nUsers = (this.r = Nd4j.create(r)).rows(), this.nFactor = nFactor).mul(0.01);
         this.y = Nd4j.rand(this.nItems = this.r.columns(), this.nFactor).mul(0.01);
-        init();
 
         this.als = new Nd4jAlternatingLeastSquares();
     }
@@ -43,7 +51,6 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
         this.lambda = lambda; this.alpha = alpha;
         this.x = Nd4j.rand(this.nUsers, this.nFactor = nFactor).mul(0.01);
         this.y = Nd4j.rand(this.nItems, this.nFactor).mul(0.01);
-        init();
 
         this.als = new Nd4jAlternatingLeastSquares();
     }
@@ -58,26 +65,47 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
         this.als = new Nd4jAlternatingLeastSquares();
     }
 
+    /** Shorthand for adding or removing a {@link PrintingTrainingListener} on System.out. */
     @Override
     public void setPrintLog(boolean printLog) {
-        this.printLog = printLog;
+        if (!printLog) this.listeners.remove(this.printer);
+        else if (!this.listeners.contains(this.printer)) this.listeners.add(this.printer);
     }
 
+    @Override
+    public void addTrainingListener(TrainingListener listener) {
+        this.listeners.add(listener);
+    }
+
+    @Override
+    public void removeTrainingListener(TrainingListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /** Steps report no Gram time, and allocations on the JVM heap only, not ND4J's off-heap buffers. */
     @Override
     public void fit(int stepSize) {
         for (int step = 1; step <= stepSize; ++step) {
-            this.als.optimizeUser(this.x, this.y, this.c, this.p, this.nUsers, this.nFactor, this.lambda);
-            this.als.optimizeItem(this.x, this.y, this.c, this.p, this.nItems, this.nFactor, this.lambda);
-
-            if (this.printLog) {
-                double[] loss = this.als.loss(this.x, this.y, this.c, this.p, this.lambda);
-                System.out.println("------------------------------Step " + step + "----------------------------");
-                System.out.println("predict error: " + loss[0]);
-                System.out.println("confidence error: " + loss[1]);
-                System.out.println("regularization: " + loss[2]);
-                System.out.println("total loss: " + loss[3]);
-            }
+            boolean report = !this.listeners.isEmpty();
+            long allocated = report ? Allocations.training() : -1;
+            long userStart = System.nanoTime();
+            this.als.optimizeUser(this.x, this.y, this.r, this.nUsers, this.nFactor, this.lambda, this.alpha);
+            long itemStart = System.nanoTime();
+            this.als.optimizeItem(this.x, this.y, this.r, this.nItems, this.nFactor, this.lambda, this.alpha);
+            long end = System.nanoTime();
+            if (!report) continue;
+
+            if (allocated >= 0) allocated = Allocations.training() - allocated;
+            boolean needsLoss = false;
+            for (TrainingListener listener : this.listeners) needsLoss |= listener.needsLoss();
+            double[] loss = needsLoss ? this.als.loss(this.x, this.y, this.r, this.lambda, this.alpha) : null;
+            // every cell of the dense r enters the normal equations
+            long cells = 2L * this.nUsers * this.nItems;
+            TrainingStep metrics = new TrainingStep(step, true, this.nUsers, this.nItems, cells, 0, itemStart - userStart, end - itemStart,
+                    0, needsLoss ? System.nanoTime() - end : 0, allocated, loss);
+            for (TrainingListener listener : this.listeners) listener.onStep(metrics);
         }
+        this.userNorms = this.itemNorms = null;
     }
 
     @Override
@@ -85,6 +113,46 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
         return Nd4j.matmul(this.x, this.y.transpose()).toDoubleMatrix();
     }
 
+    @Override
+    public int[] recommend(int user, int k, boolean excludeSeen) {
+        return recommend(new int[] { user }, k, excludeSeen)[0];
+    }
+
+    @Override
+    public int[][] recommend(int[] users, int k, boolean excludeSeen) {
+        TopK top = new TopK(k);
+        int[][] items = new int[users.length][];
+        for (int n = 0; n < users.length; ++n) {
+            double[] scores = Nd4j.matmul(this.y, this.x.getRow(users[n], true).transpose()).toDoubleVector();
+            double[] ratings = excludeSeen ? this.r.getRow(users[n]).toDoubleVector() : null;
+            for (int i = 0; i < scores.length; ++i)
+                if (ratings == null || ratings[i] == 0) top.offer(i, scores[i]);
+            items[n] = top.poll();
+        }
+        return items;
+    }
+
+    @Override
+    public int[] similarItems(int item, int k) {
+        if (this.itemNorms == null) this.itemNorms = this.y.norm2(1).toDoubleVector();
+        return similar(this.y, this.itemNorms, item, k);
+    }
+
+    @Override
+    public int[] similarUsers(int user, int k) {
+        if (this.userNorms == null) this.userNorms = this.x.norm2(1).toDoubleVector();
+        return similar(this.x, this.userNorms, user, k);
+    }
+
+    /** Top k rows by cosine similarity to row, excluding row, from one matrix-vector product and cached norms. */
+    private static int[] similar(INDArray factors, double[] norms, int row, int k) {
+        double[] scores = Nd4j.matmul(factors, factors.getRow(row, true).transpose()).toDoubleVector();
+        TopK top = new TopK(k);
+        for (int i = 0; i < scores.length; ++i)
+            if (i != row && norms[i] > 0) top.offer(i, scores[i] / norms[i]);
+        return top.poll();
+    }
+
     @Override
     public double[][] getR() {
         return this.r.toDoubleMatrix();
@@ -93,8 +161,6 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
     @Override
     public void put(int user, int item, double rating) {
         this.r.put(user, item, rating);
-        this.p.put(user, item, rating > 0 ? 1 : 0);
-        this.c.put(user, item, 1 + this.alpha * rating);
     }
 
     @Override
@@ -104,25 +170,25 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
 
     @Override
     public void addUsers(double[][] _users) {
-        this.nUsers += _users.length;
-        this.r = Nd4j.concat(0, this.r, Nd4j.create(_users));
-        this.x = Nd4j.concat(0, this.x, Nd4j.rand(_users.length, this.nFactor).mul(0.01));
-
-        init();
+        int offset = this.nUsers;
+        addEmptyUsers(_users.length);
+        this.r.get(NDArrayIndex.interval(offset, this.nUsers), NDArrayIndex.all()).assign(Nd4j.create(_users));
     }
 
     @Override
     public void addEmptyUser() {
-        double[] user = new double[this.nItems];
-        Arrays.fill(user, 0);
-        addUser(user);
+        addEmptyUsers(1);
     }
 
+    /** Grows r and x into over-allocated storage instead of concatenating, so the cost is amortized per user. */
     @Override
     public void addEmptyUsers(int nUsers) {
-        double[][] users = new double[nUsers][this.nItems];
-        for (double[] user : users) Arrays.fill(user, 0);
-        addUsers(users);
+        int offset = this.nUsers;
+        this.nUsers += nUsers;
+        this.r = view(this.rStorage = reserve(this.rStorage, this.r, this.nUsers, this.nItems), this.nUsers, this.nItems);
+        this.x = view(this.xStorage = reserve(this.xStorage, this.x, this.nUsers, this.nFactor), this.nUsers, this.nFactor);
+        this.x.get(NDArrayIndex.interval(offset, this.nUsers), NDArrayIndex.all()).assign(Nd4j.rand(nUsers, this.nFactor).mul(0.01));
+        this.userNorms = null;
     }
 
     @Override
@@ -130,29 +196,40 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
         addEmptyItems(1);
     }
 
+    /** Grows r by columns and y by rows, see {@link #addEmptyUsers}. */
     @Override
     public void addEmptyItems(int nItems) {
+        int offset = this.nItems;
         this.nItems += nItems;
-        this.r = Nd4j.concat(0, this.r, Nd4j.zeros(this.nUsers, nItems));
-        this.y = Nd4j.concat(0, this.y, Nd4j.rand(nItems, this.nFactor).mul(0.01));
+        this.r = view(this.rStorage = reserve(this.rStorage, this.r, this.nUsers, this.nItems), this.nUsers, this.nItems);
+        this.y = view(this.yStorage = reserve(this.yStorage, this.y, this.nItems, this.nFactor), this.nItems, this.nFactor);
+        this.y.get(NDArrayIndex.interval(offset, this.nItems), NDArrayIndex.all()).assign(Nd4j.rand(nItems, this.nFactor).mul(0.01));
+        this.itemNorms = null;
+    }
 
-        init();
+    /**
+     * Returns storage if it holds at least rows * cols, otherwise a zero array with at least twice the rows or columns
+     * that ran out, holding a copy of current in its leading corner.
+     */
+    private static INDArray reserve(INDArray storage, INDArray current, int rows, int cols) {
+        if (storage == null) storage = current;
+        if (rows <= storage.rows() && cols <= storage.columns()) return storage;
+        INDArray grown = Nd4j.zeros(current.dataType(),
+                rows > storage.rows() ? Math.max(rows, 2 * storage.rows()) : storage.rows(),
+                cols > storage.columns() ? Math.max(cols, 2 * storage.columns()) : storage.columns());
+        view(grown, current.rows(), current.columns()).assign(current);
+        return grown;
     }
 
-    private void init() {
-        this.c = Nd4j.create(this.r.rows(), this.r.columns());
-        this.p = Nd4j.create(this.r.rows(), this.r.columns());
-        for (int u = 0; u < this.r.rows(); ++u)
-            for (int i = 0; i < this.r.columns(); ++i) {
-                this.c.put(u, i, 1 + this.alpha * this.r.getDouble(u, i));
-                this.p.put(u, i, this.r.getDouble(u, i) > 0 ? 1 : 0);
-            }
+    private static INDArray view(INDArray storage, int rows, int cols) {
+        return storage.get(NDArrayIndex.interval(0, rows), NDArrayIndex.interval(0, cols));
     }
 
+    /** Writes the binary {@link ModelFile} format, or the CSV-in-ZIP export format if fileName contains ".zip". */
     @Override
     public void saveModel(String fileName) {
         if (fileName.contains(".zip")) {
-            String[] confs = new String[]{"conf.csv", "r.csv", "x.csv", "y.csv", "c.csv", "p.csv"};
+            String[] confs = new String[]{"conf.csv", "r.csv", "x.csv", "y.csv"};
             try {
                 for (String conf : confs) {
                     BufferedWriter writer = new BufferedWriter(new FileWriter(conf));
@@ -163,15 +240,20 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
                                 + this.lambda + ","
                                 + this.alpha);
                     } else if (conf.equals("r.csv")) {
-                        writer.write(this.nUsers + "," + this.nItems);
+                        // observed interactions only, one user,item,rating triple per line
+                        double[][] ratings = this.r.toDoubleMatrix();
+                        int nnz = 0;
+                        for (double[] vec : ratings)
+                            for (double v : vec)
+                                if (v != 0) ++nnz;
+                        writer.write(this.nUsers + "," + this.nItems + "," + nnz);
                         writer.newLine();
-                        for (double[] vec : this.r.toDoubleMatrix()) {
-                            StringBuilder s = new StringBuilder().append(vec[0]);
-                            for (int j = 1; j < vec.length; ++j)
-                                s.append(",").append(vec[j]);
-                            writer.write(s.toString());
-                            writer.newLine();
-                        }
+                        for (int u = 0; u < ratings.length; ++u)
+                            for (int i = 0; i < ratings[u].length; ++i)
+                                if (ratings[u][i] != 0) {
+                                    writer.write(u + "," + i + "," + ratings[u][i]);
+                                    writer.newLine();
+                                }
                     } else if (conf.equals("x.csv")) {
                         writer.write(this.nUsers + "," + this.nFactor);
                         writer.newLine();
@@ -192,26 +274,6 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
                             writer.write(s.toString());
                             writer.newLine();
                         }
-                    } else if (conf.equals("c.csv")) {
-                        writer.write(this.nUsers + "," + this.nItems);
-                        writer.newLine();
-                        for (double[] vec : this.c.toDoubleMatrix()) {
-                            StringBuilder s = new StringBuilder().append(vec[0]);
-                            for (int j = 1; j < vec.length; ++j)
-                                s.append(",").append(vec[j]);
-                            writer.write(s.toString());
-                            writer.newLine();
-                        }
-                    } else if (conf.equals("p.csv")) {
-                        writer.write(this.nUsers + "," + this.nItems);
-                        writer.newLine();
-                        for (double[] vec : this.p.toDoubleMatrix()) {
-                            StringBuilder s = new StringBuilder().append(vec[0]);
-                            for (int j = 1; j < vec.length; ++j)
-                                s.append(",").append(vec[j]);
-                            writer.write(s.toString());
-                            writer.newLine();
-                        }
                     }
                     writer.flush();
                     writer.close();
@@ -235,11 +297,37 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
             } catch (IOException e) {
                 e.printStackTrace();
             }
+        } else {
+            try {
+                new ModelFile(InteractionMatrix.fromDense(this.r.toDoubleMatrix()),
+                        FactorMatrix.create(this.x.toDoubleMatrix(), Precision.DOUBLE),
+                        FactorMatrix.create(this.y.toDoubleMatrix(), Precision.DOUBLE), this.lambda, this.alpha).write(fileName);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
+    /**
+     * Writes X and Y only, in the binary {@link ModelFile} format. The result is a fraction of the size of
+     * {@link #saveModel} and serves predict and recommend once loaded, but holds no interactions to train on.
+     */
+    @Override
+    public void exportServingModel(String fileName) {
+        try {
+            new ModelFile(new InteractionMatrix(this.nUsers, this.nItems),
+                    FactorMatrix.create(this.x.toDoubleMatrix(), Precision.DOUBLE),
+                    FactorMatrix.create(this.y.toDoubleMatrix(), Precision.DOUBLE), this.lambda, this.alpha).writeServing(fileName);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Reads a model written by {@link #saveModel}; binary model files are read with bulk copies instead of parsing. */
     @Override
     public void loadModel(String modelPath) {
+        this.rStorage = this.xStorage = this.yStorage = null;
+        this.userNorms = this.itemNorms = null;
         if (modelPath.contains(".zip")) {
             try {
                 ZipInputStream zip = new ZipInputStream(new FileInputStream(modelPath));
@@ -269,10 +357,18 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
                         nItems = Integer.parseInt(shape[1]);
                         r = Nd4j.create(nUsers, nItems);
 
-                        for (int i = 0; i < r.rows() && (line = reader.readLine()) != null; ++i) {
-                            String[] elements = line.split(",");
-                            for (int j = 0; j < r.columns(); ++j)
-                                r.put(i, j, Double.parseDouble(elements[j]));
+                        if (shape.length > 2) {
+                            while ((line = reader.readLine()) != null) {
+                                String[] elements = line.split(",");
+                                r.put(Integer.parseInt(elements[0]), Integer.parseInt(elements[1]), Double.parseDouble(elements[2]));
+                            }
+                        } else {
+                            // archives written before r.csv became sparse hold one dense row per user
+                            for (int i = 0; i < r.rows() && (line = reader.readLine()) != null; ++i) {
+                                String[] elements = line.split(",");
+                                for (int j = 0; j < r.columns(); ++j)
+                                    r.put(i, j, Double.parseDouble(elements[j]));
+                            }
                         }
                     } else if (fileName.equals("x.csv")) {
                         shape = reader.readLine().split(",");
@@ -296,29 +392,8 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
                             for (int j = 0; j < y.columns(); ++j)
                                 y.put(i, j, Double.parseDouble(elements[j]));
                         }
-                    } else if (fileName.equals("c.csv")) {
-                        shape = reader.readLine().split(",");
-                        nUsers = Integer.parseInt(shape[0]);
-                        nItems = Integer.parseInt(shape[1]);
-                        c = Nd4j.create(nUsers, nItems);
-
-                        for (int i = 0; i < c.rows() && (line = reader.readLine()) != null; ++i) {
-                            String[] elements = line.split(",");
-                            for (int j = 0; j < c.columns(); ++j)
-                                c.put(i, j, Double.parseDouble(elements[j]));
-                        }
-                    } else if (fileName.equals("p.csv")) {
-                        shape = reader.readLine().split(",");
-                        nUsers = Integer.parseInt(shape[0]);
-                        nItems = Integer.parseInt(shape[1]);
-                        p = Nd4j.create(nUsers, nItems);
-
-                        for (int i = 0; i < p.rows() && (line = reader.readLine()) != null; ++i) {
-                            String[] elements = line.split(",");
-                            for (int j = 0; j < p.columns(); ++j)
-                                p.put(i, j, Double.parseDouble(elements[j]));
-                        }
                     }
+                    // c.csv and p.csv of older archives are derived from r and alpha, so they are skipped
                     reader.close();
                     file.delete();
                 }
@@ -326,6 +401,25 @@ public class Nd4jMatrixFactorization implements MatrixFactorization {
             } catch (IOException e) {
                 e.printStackTrace();
             }
+        } else {
+            try {
+                ModelFile model = ModelFile.read(modelPath);
+                this.r = Nd4j.create(model.getR().toDense());
+                this.x = Nd4j.create(model.getX().toArray());
+                this.y = Nd4j.create(model.getY().toArray());
+                this.nUsers = model.getR().rows();
+                this.nItems = model.getR().cols();
+                this.nFactor = model.getX().cols();
+                this.lambda = model.getLambda();
+                this.alpha = model.getAlpha();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
+
+    /** Training runs on ND4J's own threads, so there is nothing to release. */
+    @Override
+    public void shutdown() {
+    }
 }
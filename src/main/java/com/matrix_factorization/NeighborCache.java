@@ -0,0 +1,40 @@
+package com.matrix_factorization;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded table of precomputed nearest neighbors, evicting the least recently used row once full, so it converges
+ * on the hottest rows. Safe for concurrent use; the monitor is held for the map lookup only, never while scoring.
+ */
+public class NeighborCache {
+    private final int capacity;
+    private final LinkedHashMap<Integer, int[]> neighbors;
+
+    public NeighborCache(final int capacity) {
+        this.capacity = capacity;
+        this.neighbors = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    /** Neighbors of row best first, or null if not cached. The array must not be modified. */
+    public synchronized int[] get(int row) {
+        return this.neighbors.get(row);
+    }
+
+    public synchronized void put(int row, int[] neighbors) {
+        this.neighbors.put(row, neighbors);
+    }
+
+    public synchronized int size() {
+        return this.neighbors.size();
+    }
+}
@@ -0,0 +1,161 @@
+package com.matrix_factorization;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the row solves of {@link DefaultAlternatingLeastSquares} on a work-stealing pool. Within a half-sweep every
+ * user (or item) solve only reads the fixed opposite factor matrix, so rows can be solved in any order.
+ *
+ * Rows are grouped into chunks of roughly equal cost, estimated as nnz + nFactor per row, so a few heavy users do
+ * not end up in the same task; idle workers steal the remaining chunks.
+ */
+public class ParallelAlternatingLeastSquares extends DefaultAlternatingLeastSquares {
+    private static final int CHUNKS_PER_THREAD = 8;
+
+    private final ForkJoinPool pool;
+    private final int nThreads;
+    private final int[] bounds;
+
+    public ParallelAlternatingLeastSquares() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelAlternatingLeastSquares(int nThreads) {
+        this.pool = new ForkJoinPool(this.nThreads = nThreads, Allocations.WORKERS, null, false);
+        this.bounds = new int[nThreads * CHUNKS_PER_THREAD + 2];
+    }
+
+    public int getNThreads() {
+        return this.nThreads;
+    }
+
+    @Override
+    public void optimizeUser(final FactorMatrix x, final FactorMatrix y, final InteractionMatrix r, int nUsers, final int nFactor, final double lambda, final double alpha) {
+        // yty: nFactor * nFactor
+        final double[][] yty = gram(y, nFactor);
+        this.pool.invoke(new Chunks(this.bounds, 0, partition(r, null, nUsers, nFactor, true), new Rows() {
+            public void solve(int from, int to) {
+                for (int u = from; u < to; ++u)
+                    solveUser(x, y, yty, r, u, nFactor, lambda, alpha);
+            }
+        }));
+    }
+
+    @Override
+    public void optimizeItem(final FactorMatrix x, final FactorMatrix y, final InteractionMatrix r, int nItems, final int nFactor, final double lambda, final double alpha) {
+        // xtx: nFactor * nFactor
+        final double[][] xtx = gram(x, nFactor);
+        this.pool.invoke(new Chunks(this.bounds, 0, partition(r, null, nItems, nFactor, false), new Rows() {
+            public void solve(int from, int to) {
+                for (int i = from; i < to; ++i)
+                    solveItem(x, y, xtx, r, i, nFactor, lambda, alpha);
+            }
+        }));
+    }
+
+    /** Chunks are ranges of positions in users, balanced by the cost of the users they hold. */
+    @Override
+    public void optimizeUsers(final FactorMatrix x, final FactorMatrix y, final InteractionMatrix r, final int[] users, final int nFactor, final double lambda, final double alpha) {
+        final double[][] yty = gram(y, nFactor);
+        this.pool.invoke(new Chunks(this.bounds, 0, partition(r, users, users.length, nFactor, true), new Rows() {
+            public void solve(int from, int to) {
+                for (int k = from; k < to; ++k)
+                    solveUser(x, y, yty, r, users[k], nFactor, lambda, alpha);
+            }
+        }));
+    }
+
+    @Override
+    public void optimizeItems(final FactorMatrix x, final FactorMatrix y, final InteractionMatrix r, final int[] items, final int nFactor, final double lambda, final double alpha) {
+        final double[][] xtx = gram(x, nFactor);
+        this.pool.invoke(new Chunks(this.bounds, 0, partition(r, items, items.length, nFactor, false), new Rows() {
+            public void solve(int from, int to) {
+                for (int k = from; k < to; ++k)
+                    solveItem(x, y, xtx, r, items[k], nFactor, lambda, alpha);
+            }
+        }));
+    }
+
+    /** Users are split into the same cost-balanced chunks as a sweep; each chunk adds its partial sums once. */
+    @Override
+    protected double[] observedLoss(final FactorMatrix x, final FactorMatrix y, final InteractionMatrix r, final double alpha) {
+        final double[] sums = new double[2];
+        this.pool.invoke(new Chunks(this.bounds, 0, partition(r, null, x.rows(), x.cols(), true), new Rows() {
+            public void solve(int from, int to) {
+                double[] chunk = new double[2];
+                observedLoss(x, y, r, from, to, alpha, chunk);
+                synchronized (sums) {
+                    sums[0] += chunk[0];
+                    sums[1] += chunk[1];
+                }
+            }
+        }));
+        return sums;
+    }
+
+    public void shutdown() {
+        this.pool.shutdown();
+    }
+
+    /**
+     * Splits positions [0, n) into consecutive chunks of about equal cost; chunk c covers positions
+     * [bounds[c], bounds[c + 1]). Position k stands for row rows[k], or for row k if rows is null.
+     *
+     * @return number of chunks
+     */
+    private int partition(InteractionMatrix r, int[] rows, int n, int nFactor, boolean users) {
+        long total = (long) nFactor * n;
+        if (rows == null) total += r.nnz();
+        else for (int row : rows) total += length(r, row, users);
+        long target = Math.max(1, total / ((long) this.nThreads * CHUNKS_PER_THREAD));
+
+        int[] bounds = this.bounds;
+        int count = 1;
+        long cost = 0;
+        for (int k = 0; k < n; ++k) {
+            cost += nFactor + length(r, rows != null ? rows[k] : k, users);
+            if (cost >= target && k + 1 < n && count < bounds.length - 1) {
+                bounds[count++] = k + 1;
+                cost = 0;
+            }
+        }
+        bounds[count] = n;
+        return count;
+    }
+
+    /** Number of interactions of a user or an item. */
+    private static int length(InteractionMatrix r, int row, boolean users) {
+        return users ? r.rowEnd(row) - r.rowStart(row) : r.colEnd(row) - r.colStart(row);
+    }
+
+    private interface Rows {
+        void solve(int from, int to);
+    }
+
+    /** Forks over the chunk range [first, last) by halves until a single chunk is left. */
+    private static class Chunks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] bounds;
+        private final int first, last;
+        private final Rows rows;
+
+        Chunks(int[] bounds, int first, int last, Rows rows) {
+            this.bounds = bounds;
+            this.first = first;
+            this.last = last;
+            this.rows = rows;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.last - this.first <= 1) {
+                if (this.first < this.last) this.rows.solve(this.bounds[this.first], this.bounds[this.last]);
+                return;
+            }
+            int mid = (this.first + this.last) >>> 1;
+            invokeAll(new Chunks(this.bounds, this.first, mid, this.rows), new Chunks(this.bounds, mid, this.last, this.rows));
+        }
+    }
+}
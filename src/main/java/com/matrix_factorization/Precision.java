@@ -0,0 +1,6 @@
+package com.matrix_factorization;
+
+/** Storage precision of factor matrices; normal equations are always accumulated and solved in double. */
+public enum Precision {
+    DOUBLE, FLOAT
+}
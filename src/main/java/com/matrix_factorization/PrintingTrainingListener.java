@@ -0,0 +1,42 @@
+package com.matrix_factorization;
+
+import java.io.PrintStream;
+
+/** Default exporter: prints the loss and a one-line timing summary of every step, which is what printLog turns on. */
+public class PrintingTrainingListener implements TrainingListener {
+    private final PrintStream out;
+
+    public PrintingTrainingListener() {
+        this(System.out);
+    }
+
+    public PrintingTrainingListener(PrintStream out) {
+        this.out = out;
+    }
+
+    public boolean needsLoss() {
+        return true;
+    }
+
+    public void onStep(TrainingStep step) {
+        this.out.println("------------------------------Step " + step.getStep() + "----------------------------");
+        if (step.hasLoss()) {
+            this.out.println("predict error: " + step.getPredictError());
+            this.out.println("confidence error: " + step.getConfidenceError());
+            this.out.println("regularization: " + step.getRegularization());
+            this.out.println("total loss: " + step.getTotalLoss());
+        }
+        this.out.println(String.format("time: %d ms (drain %d, users %d, items %d, gram %d, loss %d), %.0f solves/s, %.0f ratings/s%s",
+                millis(step.getStepNanos()), millis(step.getDrainNanos()), millis(step.getUserNanos()), millis(step.getItemNanos()),
+                millis(step.getGramNanos()), millis(step.getLossNanos()), step.getSolvesPerSecond(), step.getRatingsPerSecond(),
+                step.getAllocatedBytes() >= 0 ? ", allocated " + (step.getAllocatedBytes() >> 10) + " KB" : ""));
+    }
+
+    public void onEvaluation(int step, Evaluation evaluation) {
+        this.out.println("evaluation at step " + step + ": " + evaluation);
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+}
@@ -0,0 +1,6 @@
+package com.matrix_factorization;
+
+/** Ranking quality measures computed by {@link Evaluator}, each averaged over the evaluated users. */
+public enum RankingMetric {
+    PRECISION, RECALL, NDCG, AUC
+}
@@ -0,0 +1,75 @@
+package com.matrix_factorization;
+
+/** Plain loops, left to the JIT's auto-vectorization; the fallback of {@link Kernels}. */
+public class ScalarKernels extends Kernels {
+    @Override
+    public String name() {
+        return "scalar";
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int n) {
+        double total = 0;
+        for (int f = 0; f < n; ++f)
+            total += a[aOffset + f] * b[bOffset + f];
+        return total;
+    }
+
+    @Override
+    public void axpy(double w, double[] x, int xOffset, double[] y, int yOffset, int n) {
+        for (int f = 0; f < n; ++f)
+            y[yOffset + f] += w * x[xOffset + f];
+    }
+
+    @Override
+    public void addGram(double[] data, int offset, int rows, int n, double[][] a) {
+        int r = 0;
+        for (; r + 3 < rows; r += 4) {
+            int o0 = offset + r * n, o1 = o0 + n, o2 = o1 + n, o3 = o2 + n;
+            for (int f = 0; f < n; ++f) {
+                double x0 = data[o0 + f], x1 = data[o1 + f], x2 = data[o2 + f], x3 = data[o3 + f];
+                double[] af = a[f];
+                for (int g = f; g < n; ++g)
+                    af[g] += x0 * data[o0 + g] + x1 * data[o1 + g] + x2 * data[o2 + g] + x3 * data[o3 + g];
+            }
+        }
+        for (; r < rows; ++r) addOuter(1, data, offset + r * n, n, a);
+    }
+
+    @Override
+    public double dot(float[] a, int aOffset, double[] b, int bOffset, int n) {
+        double total = 0;
+        for (int f = 0; f < n; ++f)
+            total += a[aOffset + f] * b[bOffset + f];
+        return total;
+    }
+
+    @Override
+    public double dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+        double total = 0;
+        for (int f = 0; f < n; ++f)
+            total += (double) a[aOffset + f] * b[bOffset + f];
+        return total;
+    }
+
+    @Override
+    public void axpy(double w, float[] x, int xOffset, double[] y, int yOffset, int n) {
+        for (int f = 0; f < n; ++f)
+            y[yOffset + f] += w * x[xOffset + f];
+    }
+
+    @Override
+    public void addGram(float[] data, int offset, int rows, int n, double[][] a) {
+        int r = 0;
+        for (; r + 3 < rows; r += 4) {
+            int o0 = offset + r * n, o1 = o0 + n, o2 = o1 + n, o3 = o2 + n;
+            for (int f = 0; f < n; ++f) {
+                double x0 = data[o0 + f], x1 = data[o1 + f], x2 = data[o2 + f], x3 = data[o3 + f];
+                double[] af = a[f];
+                for (int g = f; g < n; ++g)
+                    af[g] += x0 * data[o0 + g] + x1 * data[o1 + g] + x2 * data[o2 + g] + x3 * data[o3 + g];
+            }
+        }
+        for (; r < rows; ++r) addOuter(1, data, offset + r * n, n, a);
+    }
+}
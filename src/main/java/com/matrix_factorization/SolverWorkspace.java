@@ -0,0 +1,37 @@
+package com.matrix_factorization;
+
+/**
+ * Scratch buffers for one ALS row solve. Each worker thread keeps its own instance and reuses it for every row of
+ * every sweep, so the solver inner loop does not allocate after the first row.
+ */
+class SolverWorkspace {
+    final int nFactor;
+    // a: nFactor * nFactor normal-equation matrix
+    final double[][] a;
+    // b: right-hand side, overwritten with the solution; d: factor diagonal
+    final double[] b, d;
+    // conjugate-gradient iterate, residual, search direction and its product with a
+    final double[] x, residual, direction, product;
+    // one row of r read by a fold-in
+    int[] index = new int[16];
+    float[] value = new float[16];
+
+    SolverWorkspace(int nFactor) {
+        this.nFactor = nFactor;
+        this.a = new double[nFactor][nFactor];
+        this.b = new double[nFactor];
+        this.d = new double[nFactor];
+        this.x = new double[nFactor];
+        this.residual = new double[nFactor];
+        this.direction = new double[nFactor];
+        this.product = new double[nFactor];
+    }
+
+    /** Makes room for n entries in index and value. */
+    void reserve(int n) {
+        if (n > this.index.length) {
+            this.index = new int[Math.max(n, this.index.length * 2)];
+            this.value = new float[this.index.length];
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.matrix_factorization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads UTF-8 lines of "user, item[, rating]" separated by a delimiter, e.g. ',' for CSV or '\t' for TSV. Ids are
+ * taken verbatim as strings; a missing rating counts as 1, an implicit interaction. Blank lines are skipped.
+ */
+public class TextInteractionLoader extends InteractionLoader<String> {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte delimiter;
+    private final boolean header;
+
+    public TextInteractionLoader(char delimiter, boolean header) {
+        this(delimiter, header, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** @param header whether the first line of a file holds column names and is skipped */
+    public TextInteractionLoader(char delimiter, boolean header, int nThreads) {
+        super(nThreads);
+        this.delimiter = (byte) delimiter;
+        this.header = header;
+    }
+
+    @Override
+    protected int boundary(ByteBuffer chunk) {
+        byte[] bytes = chunk.array();
+        for (int k = chunk.limit() - 1; k >= 0; --k)
+            if (bytes[k] == '\n') return k + 1;
+        return 0;
+    }
+
+    @Override
+    protected Chunk<String> parse(ByteBuffer chunk, boolean first) throws IOException {
+        Chunk<String> triples = new Chunk<String>();
+        byte[] bytes = chunk.array();
+        int[] fields = new int[4];
+        for (int start = 0, end; start < chunk.limit(); start = end + 1) {
+            end = start;
+            while (end < chunk.limit() && bytes[end] != '\n') ++end;
+            int stop = end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+            if (first && this.header) {
+                first = false;
+                continue;
+            }
+            if (stop == start) continue;
+
+            // fields[0] = end of the user id, fields[1] = end of the item id, fields[2] = end of the rating
+            int n = 0;
+            for (int k = start; k < stop && n < 3; ++k)
+                if (bytes[k] == this.delimiter) fields[n++] = k;
+            fields[n++] = stop;
+            if (n < 2) throw new IOException("malformed line: " + new String(bytes, start, stop - start, UTF_8));
+
+            String user = new String(bytes, start, fields[0] - start, UTF_8);
+            String item = new String(bytes, fields[0] + 1, fields[1] - fields[0] - 1, UTF_8);
+            float rating = n > 2 ? parseFloat(bytes, fields[1] + 1, fields[2]) : 1;
+            triples.add(user, item, rating);
+        }
+        return triples;
+    }
+
+    /** Parses plain decimals such as "4" or "-0.5" directly from the bytes; anything else goes to Float.parseFloat. */
+    private static float parseFloat(byte[] bytes, int from, int to) throws IOException {
+        int k = from;
+        boolean negative = k < to && bytes[k] == '-';
+        if (negative) ++k;
+        long digits = 0;
+        int scale = 0, count = 0;
+        boolean point = false;
+        for (; k < to; ++k) {
+            byte b = bytes[k];
+            if (b >= '0' && b <= '9' && count < 18) {
+                digits = digits * 10 + (b - '0');
+                ++count;
+                if (point) ++scale;
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (k == to && count > 0) {
+            double value = digits;
+            for (; scale > 0; --scale) value /= 10;
+            return (float) (negative ? -value : value);
+        }
+        String text = new String(bytes, from, to - from, UTF_8).trim();
+        try {
+            return Float.parseFloat(text);
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed rating: " + text);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.matrix_factorization;
+
+/**
+ * Keeps the k highest-scoring items offered so far in a bounded min-heap of primitives, so selecting the best k of n
+ * candidates costs O(n log k) time and O(k) memory. Instances are reusable through {@link #clear()}.
+ */
+public class TopK {
+    private final int k;
+    private final int[] items;
+    private final double[] scores;
+    private int size;
+
+    public TopK(int k) {
+        this.k = k;
+        this.items = new int[k];
+        this.scores = new double[k];
+    }
+
+    public void clear() {
+        this.size = 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /** Lowest score still in the top k, or negative infinity while fewer than k items were offered. */
+    public double threshold() {
+        return this.size < this.k ? Double.NEGATIVE_INFINITY : this.scores[0];
+    }
+
+    public void offer(int item, double score) {
+        if (this.size < this.k) {
+            int i = this.size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (this.scores[parent] <= score) break;
+                this.items[i] = this.items[parent];
+                this.scores[i] = this.scores[parent];
+                i = parent;
+            }
+            this.items[i] = item;
+            this.scores[i] = score;
+        } else if (this.k > 0 && score > this.scores[0]) {
+            siftDown(item, score, this.size);
+        }
+    }
+
+    /** Returns the kept items ordered by descending score and empties the heap. */
+    public int[] poll() {
+        int[] sorted = new int[this.size];
+        // pop the minimum into the back of sorted, moving the last heap element to the root
+        for (int n = this.size - 1; n >= 0; --n) {
+            sorted[n] = this.items[0];
+            siftDown(this.items[n], this.scores[n], n);
+        }
+        this.size = 0;
+        return sorted;
+    }
+
+    /** Places (item, score) at the root of a heap of the given size and restores the heap order. */
+    private void siftDown(int item, double score, int size) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && this.scores[child + 1] < this.scores[child]) ++child;
+            if (this.scores[child] >= score) break;
+            this.items[i] = this.items[child];
+            this.scores[i] = this.scores[child];
+            i = child;
+        }
+        this.items[i] = item;
+        this.scores[i] = score;
+    }
+}
@@ -0,0 +1,14 @@
+package com.matrix_factorization;
+
+/**
+ * Receives the metrics of every training step, e.g. to export them to a dashboard. Registered with
+ * {@link MatrixFactorization#addTrainingListener}; called on the training thread right after the step, so a slow
+ * listener slows down training.
+ */
+public interface TrainingListener {
+    /** Whether steps should carry the loss, which costs an extra pass over the ratings when any listener asks. */
+    boolean needsLoss();
+    void onStep(TrainingStep step);
+    /** Called by {@link DefaultMatrixFactorization#fitUntilConverged} after evaluating the model at the given step. */
+    void onEvaluation(int step, Evaluation evaluation);
+}
@@ -0,0 +1,129 @@
+package com.matrix_factorization;
+
+/**
+ * Metrics of one training step: one user half-sweep followed by one item half-sweep. Times are wall-clock nanoseconds;
+ * the Gram time is part of the user and item times, not added to them.
+ */
+public class TrainingStep {
+    private final int step;
+    private final boolean full;
+    private final int users, items;
+    private final long ratings;
+    private final long drainNanos, userNanos, itemNanos, gramNanos, lossNanos;
+    private final long allocatedBytes;
+    private final double[] loss;
+
+    /**
+     * @param full whether every row was solved, as opposed to the rows of an incremental step
+     * @param ratings interactions accumulated into normal equations, counted once per half-sweep
+     * @param allocatedBytes heap allocated during the step by the training thread and the solver pool workers only,
+     * -1 if the JVM cannot tell
+     * @param loss predict error, confidence error, regularization and total loss, or null if not computed
+     */
+    public TrainingStep(int step, boolean full, int users, int items, long ratings, long drainNanos, long userNanos, long itemNanos,
+                        long gramNanos, long lossNanos, long allocatedBytes, double[] loss) {
+        this.step = step;
+        this.full = full;
+        this.users = users;
+        this.items = items;
+        this.ratings = ratings;
+        this.drainNanos = drainNanos;
+        this.userNanos = userNanos;
+        this.itemNanos = itemNanos;
+        this.gramNanos = gramNanos;
+        this.lossNanos = lossNanos;
+        this.allocatedBytes = allocatedBytes;
+        this.loss = loss;
+    }
+
+    /** 1-based within the fit call. */
+    public int getStep() {
+        return this.step;
+    }
+
+    public boolean isFull() {
+        return this.full;
+    }
+
+    /** Users solved. */
+    public int getUsers() {
+        return this.users;
+    }
+
+    /** Items solved. */
+    public int getItems() {
+        return this.items;
+    }
+
+    public long getRatings() {
+        return this.ratings;
+    }
+
+    /** Merging buffered writes and compacting the ratings before the solves. */
+    public long getDrainNanos() {
+        return this.drainNanos;
+    }
+
+    public long getUserNanos() {
+        return this.userNanos;
+    }
+
+    public long getItemNanos() {
+        return this.itemNanos;
+    }
+
+    /** Gram matrix accumulation within the user and item half-sweeps, 0 if the solver does not report it. */
+    public long getGramNanos() {
+        return this.gramNanos;
+    }
+
+    /** 0 if the loss was not computed. */
+    public long getLossNanos() {
+        return this.lossNanos;
+    }
+
+    /** Whole step including drain and loss. */
+    public long getStepNanos() {
+        return this.drainNanos + this.userNanos + this.itemNanos + this.lossNanos;
+    }
+
+    public long getAllocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    /** Row solves, users plus items, per second of the two half-sweeps. */
+    public double getSolvesPerSecond() {
+        return perSecond(this.users + this.items);
+    }
+
+    /** Ratings accumulated per second of the two half-sweeps. */
+    public double getRatingsPerSecond() {
+        return perSecond(this.ratings);
+    }
+
+    public boolean hasLoss() {
+        return this.loss != null;
+    }
+
+    /** NaN if the loss was not computed; likewise for the other components. */
+    public double getPredictError() {
+        return this.loss != null ? this.loss[0] : Double.NaN;
+    }
+
+    public double getConfidenceError() {
+        return this.loss != null ? this.loss[1] : Double.NaN;
+    }
+
+    public double getRegularization() {
+        return this.loss != null ? this.loss[2] : Double.NaN;
+    }
+
+    public double getTotalLoss() {
+        return this.loss != null ? this.loss[3] : Double.NaN;
+    }
+
+    private double perSecond(long count) {
+        long nanos = this.userNanos + this.itemNanos;
+        return nanos > 0 ? count * 1e9 / nanos : 0;
+    }
+}
@@ -0,0 +1,157 @@
+package com.matrix_factorization;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels on the incubating Java Vector API, at the widest double shape the hardware supports. Loops run whole
+ * vectors and finish the remainder of fewer than {@link #lanes()} elements with scalar code. Only loaded through
+ * {@link Kernels#vector()}, so the library still runs without the module.
+ *
+ * Float data is loaded at half the bit size, as many floats as a double vector has lanes, and converted to a double
+ * vector before any arithmetic.
+ */
+public class VectorKernels extends Kernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+    // as many float lanes as double lanes; null if that shape does not exist, in which case Kernels rejects the class
+    private static final VectorSpecies<Float> FLOATS = LANES < 2 ? null : VectorSpecies.of(float.class, VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+
+    @Override
+    public String name() {
+        return "vector";
+    }
+
+    /** Doubles per vector. */
+    public int lanes() {
+        return LANES;
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int n) {
+        int f = 0;
+        double total = 0;
+        if (n >= LANES) {
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            for (; f <= n - LANES; f += LANES)
+                sum = DoubleVector.fromArray(SPECIES, a, aOffset + f).fma(DoubleVector.fromArray(SPECIES, b, bOffset + f), sum);
+            total = sum.reduceLanes(VectorOperators.ADD);
+        }
+        for (; f < n; ++f)
+            total += a[aOffset + f] * b[bOffset + f];
+        return total;
+    }
+
+    @Override
+    public void axpy(double w, double[] x, int xOffset, double[] y, int yOffset, int n) {
+        int f = 0;
+        if (n >= LANES) {
+            DoubleVector weight = DoubleVector.broadcast(SPECIES, w);
+            for (; f <= n - LANES; f += LANES)
+                DoubleVector.fromArray(SPECIES, x, xOffset + f).fma(weight, DoubleVector.fromArray(SPECIES, y, yOffset + f))
+                        .intoArray(y, yOffset + f);
+        }
+        for (; f < n; ++f)
+            y[yOffset + f] += w * x[xOffset + f];
+    }
+
+    @Override
+    public void addGram(double[] data, int offset, int rows, int n, double[][] a) {
+        int r = 0;
+        for (; r + 3 < rows; r += 4) {
+            int o0 = offset + r * n, o1 = o0 + n, o2 = o1 + n, o3 = o2 + n;
+            for (int f = 0; f < n; ++f) {
+                double x0 = data[o0 + f], x1 = data[o1 + f], x2 = data[o2 + f], x3 = data[o3 + f];
+                double[] af = a[f];
+                int g = f;
+                if (n - f >= LANES) {
+                    DoubleVector v0 = DoubleVector.broadcast(SPECIES, x0), v1 = DoubleVector.broadcast(SPECIES, x1);
+                    DoubleVector v2 = DoubleVector.broadcast(SPECIES, x2), v3 = DoubleVector.broadcast(SPECIES, x3);
+                    for (; g <= n - LANES; g += LANES)
+                        DoubleVector.fromArray(SPECIES, data, o0 + g).fma(v0, DoubleVector.fromArray(SPECIES, af, g))
+                                .add(DoubleVector.fromArray(SPECIES, data, o1 + g).mul(v1))
+                                .add(DoubleVector.fromArray(SPECIES, data, o2 + g).fma(v2, DoubleVector.fromArray(SPECIES, data, o3 + g).mul(v3)))
+                                .intoArray(af, g);
+                }
+                for (; g < n; ++g)
+                    af[g] += x0 * data[o0 + g] + x1 * data[o1 + g] + x2 * data[o2 + g] + x3 * data[o3 + g];
+            }
+        }
+        for (; r < rows; ++r) addOuter(1, data, offset + r * n, n, a);
+    }
+
+    @Override
+    public double dot(float[] a, int aOffset, double[] b, int bOffset, int n) {
+        int f = 0;
+        double total = 0;
+        if (n >= LANES) {
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            for (; f <= n - LANES; f += LANES)
+                sum = widen(a, aOffset + f).fma(DoubleVector.fromArray(SPECIES, b, bOffset + f), sum);
+            total = sum.reduceLanes(VectorOperators.ADD);
+        }
+        for (; f < n; ++f)
+            total += a[aOffset + f] * b[bOffset + f];
+        return total;
+    }
+
+    @Override
+    public double dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+        int f = 0;
+        double total = 0;
+        if (n >= LANES) {
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            for (; f <= n - LANES; f += LANES)
+                sum = widen(a, aOffset + f).fma(widen(b, bOffset + f), sum);
+            total = sum.reduceLanes(VectorOperators.ADD);
+        }
+        for (; f < n; ++f)
+            total += (double) a[aOffset + f] * b[bOffset + f];
+        return total;
+    }
+
+    @Override
+    public void axpy(double w, float[] x, int xOffset, double[] y, int yOffset, int n) {
+        int f = 0;
+        if (n >= LANES) {
+            DoubleVector weight = DoubleVector.broadcast(SPECIES, w);
+            for (; f <= n - LANES; f += LANES)
+                widen(x, xOffset + f).fma(weight, DoubleVector.fromArray(SPECIES, y, yOffset + f)).intoArray(y, yOffset + f);
+        }
+        for (; f < n; ++f)
+            y[yOffset + f] += w * x[xOffset + f];
+    }
+
+    @Override
+    public void addGram(float[] data, int offset, int rows, int n, double[][] a) {
+        int r = 0;
+        for (; r + 3 < rows; r += 4) {
+            int o0 = offset + r * n, o1 = o0 + n, o2 = o1 + n, o3 = o2 + n;
+            for (int f = 0; f < n; ++f) {
+                double x0 = data[o0 + f], x1 = data[o1 + f], x2 = data[o2 + f], x3 = data[o3 + f];
+                double[] af = a[f];
+                int g = f;
+                if (n - f >= LANES) {
+                    DoubleVector v0 = DoubleVector.broadcast(SPECIES, x0), v1 = DoubleVector.broadcast(SPECIES, x1);
+                    DoubleVector v2 = DoubleVector.broadcast(SPECIES, x2), v3 = DoubleVector.broadcast(SPECIES, x3);
+                    for (; g <= n - LANES; g += LANES)
+                        widen(data, o0 + g).fma(v0, DoubleVector.fromArray(SPECIES, af, g))
+                                .add(widen(data, o1 + g).mul(v1))
+                                .add(widen(data, o2 + g).fma(v2, widen(data, o3 + g).mul(v3)))
+                                .intoArray(af, g);
+                }
+                for (; g < n; ++g)
+                    af[g] += x0 * data[o0 + g] + x1 * data[o1 + g] + x2 * data[o2 + g] + x3 * data[o3 + g];
+            }
+        }
+        for (; r < rows; ++r) addOuter(1, data, offset + r * n, n, a);
+    }
+
+    /** {@link #lanes()} floats of a from offset as a double vector. */
+    private static DoubleVector widen(float[] a, int offset) {
+        return (DoubleVector) FloatVector.fromArray(FLOATS, a, offset).convertShape(VectorOperators.F2D, SPECIES, 0);
+    }
+}
@@ -0,0 +1,56 @@
+package com.matrix_factorization;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AllocationsTest {
+    private static final int BYTES = 16 << 20;
+
+    // keeps the allocations from being optimized away
+    static volatile byte[] sink;
+
+    private static final Runnable ALLOCATE = new Runnable() {
+        public void run() {
+            for (int n = 0; n < 16; ++n) sink = new byte[BYTES / 16];
+        }
+    };
+
+    @Test
+    public void countsPoolWorkers() throws Exception {
+        Assume.assumeTrue(Allocations.training() >= 0);
+        ForkJoinPool pool = new ForkJoinPool(2, Allocations.WORKERS, null, false);
+        try {
+            long before = Allocations.training();
+            pool.submit(ALLOCATE).get();
+            assertTrue(Allocations.training() - before >= BYTES);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void ignoresOtherThreads() throws Exception {
+        Assume.assumeTrue(Allocations.training() >= 0);
+        long before = Allocations.training();
+        Thread thread = new Thread(ALLOCATE);
+        thread.start();
+        thread.join();
+        assertTrue(Allocations.training() - before < BYTES / 4);
+    }
+
+    @Test
+    public void keepsTheBytesOfExitedWorkers() throws Exception {
+        Assume.assumeTrue(Allocations.training() >= 0);
+        ForkJoinPool pool = new ForkJoinPool(1, Allocations.WORKERS, null, false);
+        long before = Allocations.training();
+        pool.submit(ALLOCATE).get();
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        assertTrue(Allocations.training() - before >= BYTES);
+    }
+}
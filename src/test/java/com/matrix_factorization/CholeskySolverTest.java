@@ -0,0 +1,122 @@
+package com.matrix_factorization;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CholeskySolverTest {
+    private static final double TOLERANCE = 1e-8;
+
+    private static double[][] copy(double[][] a) {
+        double[][] copy = new double[a.length][];
+        for (int i = 0; i < a.length; ++i) copy[i] = a[i].clone();
+        return copy;
+    }
+
+    /** bt * b + lambda * I for a random rows * n matrix b. */
+    private static double[][] spd(Random random, int rows, int n, double lambda) {
+        double[][] a = new double[n][n];
+        for (int k = 0; k < rows; ++k) {
+            double[] b = new double[n];
+            for (int f = 0; f < n; ++f) b[f] = random.nextGaussian();
+            for (int f = 0; f < n; ++f)
+                for (int g = 0; g < n; ++g) a[f][g] += b[f] * b[g];
+        }
+        for (int f = 0; f < n; ++f) a[f][f] += lambda;
+        return a;
+    }
+
+    private static double[] solve(double[][] a, double[] b, double[] d) {
+        double[] x = b.clone();
+        CholeskySolver.solve(a, x, d);
+        return x;
+    }
+
+    private static void assertSolves(double[][] a, double[] x, double[] b) {
+        for (int i = 0; i < a.length; ++i) {
+            double sum = 0;
+            for (int j = 0; j < a.length; ++j) sum += a[i][j] * x[j];
+            assertEquals(b[i], sum, TOLERANCE * (1 + Math.abs(b[i])));
+        }
+    }
+
+    @Test
+    public void solvesRandomPositiveDefiniteSystems() {
+        Random random = new Random(1);
+        for (int n : new int[] { 1, 2, 5, 10, 40 }) {
+            double[][] a = spd(random, 2 * n, n, 0.1), factored = copy(a);
+            double[] b = new double[n], d = new double[n];
+            for (int f = 0; f < n; ++f) b[f] = random.nextGaussian();
+            double[] x = solve(factored, b, d);
+            assertArrayEquals(MatrixUtil.solve(copy(a), b), x, TOLERANCE);
+
+            // the strictly lower triangle and d hold L with a = L * Lt, and the upper triangle is untouched
+            for (int i = 0; i < n; ++i)
+                for (int j = i; j < n; ++j) {
+                    double sum = 0;
+                    for (int k = 0; k <= i; ++k) sum += (k == i ? d[i] : factored[i][k]) * (k == j ? d[j] : factored[j][k]);
+                    assertEquals(a[i][j], sum, TOLERANCE * (1 + Math.abs(a[i][j])));
+                    assertEquals(a[i][j], factored[i][j], 0);
+                }
+        }
+    }
+
+    @Test
+    public void readsOnlyTheUpperTriangle() {
+        Random random = new Random(2);
+        double[][] a = spd(random, 12, 6, 0.5), garbage = copy(a);
+        for (int i = 0; i < 6; ++i)
+            for (int j = 0; j < i; ++j) garbage[i][j] = random.nextGaussian() * 100;
+        double[] b = { 1, -2, 3, -4, 5, -6 };
+        assertArrayEquals(solve(copy(a), b, new double[6]), solve(garbage, b, new double[6]), 0);
+    }
+
+    @Test
+    public void factorsIndefiniteSystemsAsLdlt() {
+        // Cholesky fails on the second pivot, 1 - 2 * 2 < 0
+        double[][] a = { { 1, 2, 0 }, { 2, 1, 1 }, { 0, 1, 3 } }, factored = copy(a);
+        double[] b = { 1, 2, 3 }, d = new double[3];
+        double[] x = solve(factored, b, d);
+        assertArrayEquals(MatrixUtil.solve(copy(a), b), x, TOLERANCE);
+        assertSolves(a, x, b);
+
+        // a = L * D * Lt with unit lower L
+        for (int i = 0; i < 3; ++i)
+            for (int j = i; j < 3; ++j) {
+                double sum = 0;
+                for (int k = 0; k <= i; ++k) sum += (k == i ? 1 : factored[i][k]) * d[k] * (k == j ? 1 : factored[j][k]);
+                assertEquals(a[i][j], sum, TOLERANCE);
+            }
+        assertTrue(d[1] < 0);
+    }
+
+    @Test
+    public void clampsVanishingPivotsOfSingularSystems() {
+        // rank 2 of 4, as left by lambda = 0 and two rated items
+        Random random = new Random(3);
+        double[][] a = spd(random, 2, 4, 0);
+        // b in the range of a, so a * x = b has solutions
+        double[] v = { 1, 2, 3, 4 }, b = new double[4];
+        for (int i = 0; i < 4; ++i)
+            for (int j = 0; j < 4; ++j) b[i] += a[i][j] * v[j];
+        double[] d = new double[4];
+        double[] x = solve(copy(a), b, d);
+        for (double value : x) assertFalse(Double.isNaN(value) || Double.isInfinite(value));
+        assertSolves(a, x, b);
+        // the clamped pivots stay tiny instead of becoming zero
+        int clamped = 0;
+        for (double pivot : d) {
+            assertTrue(pivot != 0);
+            if (Math.abs(pivot) < 1e-6) ++clamped;
+        }
+        assertEquals(2, clamped);
+    }
+
+    @Test
+    public void zeroMatrixYieldsZero() {
+        double[] x = solve(new double[3][3], new double[3], new double[3]);
+        assertArrayEquals(new double[3], x, 0);
+    }
+}
@@ -0,0 +1,68 @@
+package com.matrix_factorization;
+
+import org.junit.Test;
+
+import static com.matrix_factorization.TestData.*;
+import static org.junit.Assert.*;
+
+public class ConjugateGradientTest {
+    private static final int USERS = 60, ITEMS = 40, FACTORS = 8;
+    private static final double LAMBDA = 0.1, ALPHA = 40;
+
+    private static InteractionMatrix ratings() {
+        return TestData.ratings(USERS, ITEMS, 400, 1);
+    }
+
+    private static FactorMatrix factors(int rows, long seed) {
+        return TestData.factors(rows, FACTORS, Precision.DOUBLE, 0.1, seed);
+    }
+
+    @Test
+    public void enoughStepsReachTheCholeskySolution() {
+        InteractionMatrix r = ratings();
+        DefaultAlternatingLeastSquares exact = new DefaultAlternatingLeastSquares(), cg = new DefaultAlternatingLeastSquares();
+        // CG solves an n * n system exactly in n steps, up to rounding
+        cg.setConjugateGradientSteps(3 * FACTORS);
+        FactorMatrix x1 = factors(USERS, 2), y1 = factors(ITEMS, 3), x2 = factors(USERS, 2), y2 = factors(ITEMS, 3);
+        exact.optimizeUser(x1, y1, r, USERS, FACTORS, LAMBDA, ALPHA);
+        cg.optimizeUser(x2, y2, r, USERS, FACTORS, LAMBDA, ALPHA);
+        assertSameFactors(x1, x2, 1e-6);
+        exact.optimizeItem(x1, y1, r, ITEMS, FACTORS, LAMBDA, ALPHA);
+        cg.optimizeItem(x2, y2, r, ITEMS, FACTORS, LAMBDA, ALPHA);
+        assertSameFactors(y1, y2, 1e-6);
+    }
+
+    @Test
+    public void fewWarmStartedStepsTrainAlmostAsWell() {
+        InteractionMatrix r = ratings();
+        DefaultAlternatingLeastSquares exact = new DefaultAlternatingLeastSquares(), cg = new DefaultAlternatingLeastSquares();
+        cg.setConjugateGradientSteps(3);
+        FactorMatrix x1 = factors(USERS, 4), y1 = factors(ITEMS, 5), x2 = factors(USERS, 4), y2 = factors(ITEMS, 5);
+        double initial = exact.loss(x1, y1, r, LAMBDA, ALPHA)[3], previous = initial;
+        for (int step = 0; step < 10; ++step) {
+            exact.optimizeUser(x1, y1, r, USERS, FACTORS, LAMBDA, ALPHA);
+            exact.optimizeItem(x1, y1, r, ITEMS, FACTORS, LAMBDA, ALPHA);
+            cg.optimizeUser(x2, y2, r, USERS, FACTORS, LAMBDA, ALPHA);
+            cg.optimizeItem(x2, y2, r, ITEMS, FACTORS, LAMBDA, ALPHA);
+            double loss = cg.loss(x2, y2, r, LAMBDA, ALPHA)[3];
+            // a CG step from the previous value never increases the row's objective
+            assertTrue(loss <= previous * (1 + 1e-9));
+            previous = loss;
+        }
+        double exactLoss = exact.loss(x1, y1, r, LAMBDA, ALPHA)[3];
+        assertTrue(previous < initial);
+        assertEquals(exactLoss, previous, 0.05 * exactLoss);
+    }
+
+    @Test
+    public void foldInsSolveExactly() {
+        InteractionMatrix r = ratings();
+        DefaultAlternatingLeastSquares exact = new DefaultAlternatingLeastSquares(), cg = new DefaultAlternatingLeastSquares();
+        cg.setConjugateGradientSteps(1);
+        FactorMatrix x1 = factors(USERS, 6), y = factors(ITEMS, 7), x2 = factors(USERS, 6);
+        double[][] yty = MatrixUtil.gram(y, new double[FACTORS][FACTORS]);
+        exact.foldInUser(x1, y, yty, r, 5, FACTORS, LAMBDA, ALPHA);
+        cg.foldInUser(x2, y, yty, r, 5, FACTORS, LAMBDA, ALPHA);
+        assertSameFactors(x1, x2, 0);
+    }
+}
@@ -0,0 +1,138 @@
+package com.matrix_factorization;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static com.matrix_factorization.TestData.*;
+import static org.junit.Assert.*;
+
+public class DefaultAlternatingLeastSquaresTest {
+    private static final int USERS = 50, ITEMS = 30, FACTORS = 6;
+    private static final double LAMBDA = 0.1, ALPHA = 40;
+
+    private static FactorMatrix factors(int rows, long seed) {
+        return TestData.factors(rows, FACTORS, Precision.DOUBLE, 0.1, seed);
+    }
+
+    /** Rewrites, adds and deletes ratings of user 5 and item 3 without compacting. */
+    private static void write(InteractionMatrix r) {
+        for (int i = 0; i < ITEMS; i += 4) r.put(5, i, r.get(5, i) == 0 ? 2 : 0);
+        r.put(5, 1, 7);
+        for (int u = 0; u < USERS; u += 6) r.put(u, 3, 4);
+        r.put(1, 3, 0);
+    }
+
+    @Test
+    public void foldInMatchesARestrictedSweep() {
+        InteractionMatrix r = ratings(USERS, ITEMS, 300, 1);
+        DefaultAlternatingLeastSquares als = new DefaultAlternatingLeastSquares();
+        FactorMatrix x1 = factors(USERS, 2), x2 = factors(USERS, 2), y1 = factors(ITEMS, 3), y2 = factors(ITEMS, 3);
+        double[][] yty = MatrixUtil.gram(y1, new double[FACTORS][FACTORS]);
+        for (int u : new int[] { 0, 5, 49 }) {
+            als.foldInUser(x1, y1, yty, r, u, FACTORS, LAMBDA, ALPHA);
+            als.optimizeUsers(x2, y2, r, new int[] { u }, FACTORS, LAMBDA, ALPHA);
+        }
+        assertSameFactors(x2, x1, 1e-12);
+
+        double[][] xtx = MatrixUtil.gram(x1, new double[FACTORS][FACTORS]);
+        for (int i : new int[] { 0, 3, 29 }) {
+            als.foldInItem(x1, y1, xtx, r, i, FACTORS, LAMBDA, ALPHA);
+            als.optimizeItems(x2, y2, r, new int[] { i }, FACTORS, LAMBDA, ALPHA);
+        }
+        assertSameFactors(y2, y1, 1e-12);
+        assertSameFactors(x2, x1, 0);
+    }
+
+    @Test
+    public void foldInReadsPendingWrites() {
+        InteractionMatrix pending = ratings(USERS, ITEMS, 300, 4), compacted = ratings(USERS, ITEMS, 300, 4);
+        write(pending);
+        write(compacted);
+        compacted.compact();
+        assertTrue(pending.pending() > 0);
+
+        DefaultAlternatingLeastSquares als = new DefaultAlternatingLeastSquares();
+        FactorMatrix x1 = factors(USERS, 5), x2 = factors(USERS, 5), y1 = factors(ITEMS, 6), y2 = factors(ITEMS, 6);
+        als.foldInUser(x1, y1, MatrixUtil.gram(y1, new double[FACTORS][FACTORS]), pending, 5, FACTORS, LAMBDA, ALPHA);
+        als.optimizeUsers(x2, y2, compacted, new int[] { 5 }, FACTORS, LAMBDA, ALPHA);
+        assertSameFactors(x2, x1, 1e-12);
+        als.foldInItem(x1, y1, MatrixUtil.gram(x1, new double[FACTORS][FACTORS]), pending, 3, FACTORS, LAMBDA, ALPHA);
+        als.optimizeItems(x2, y2, compacted, new int[] { 3 }, FACTORS, LAMBDA, ALPHA);
+        assertSameFactors(y2, y1, 1e-12);
+        // fold-in only reads r
+        assertTrue(pending.pending() > 0);
+    }
+
+    /** Solves (Yt Cu Y + lambda I) x = Yt Cu p(u) for every row of x by the dense formula, without the YtY shortcut. */
+    private static double[][] denseSolve(double[][] y, double[][] r, double lambda, double alpha) {
+        int n = y[0].length;
+        double[][] x = new double[r.length][];
+        for (int u = 0; u < r.length; ++u) {
+            double[][] a = new double[n][n];
+            double[] b = new double[n];
+            for (int i = 0; i < y.length; ++i) {
+                double c = 1 + alpha * r[u][i], p = r[u][i] > 0 ? 1 : 0;
+                for (int f = 0; f < n; ++f) {
+                    b[f] += c * p * y[i][f];
+                    for (int g = 0; g < n; ++g) a[f][g] += c * y[i][f] * y[i][g];
+                }
+            }
+            for (int f = 0; f < n; ++f) a[f][f] += lambda;
+            x[u] = MatrixUtil.solve(a, b);
+        }
+        return x;
+    }
+
+    @Test
+    public void sweepsMatchTheDenseNormalEquations() {
+        InteractionMatrix r = ratings(USERS, ITEMS, 300, 7);
+        double[][] dense = r.toDense();
+        DefaultAlternatingLeastSquares als = new DefaultAlternatingLeastSquares();
+        FactorMatrix x = factors(USERS, 8), y = factors(ITEMS, 9);
+        als.optimizeUser(x, y, r, USERS, FACTORS, LAMBDA, ALPHA);
+        assertSameMatrix(denseSolve(y.toArray(), dense, LAMBDA, ALPHA), x.toArray(), 1e-8);
+        als.optimizeItem(x, y, r, ITEMS, FACTORS, LAMBDA, ALPHA);
+        assertSameMatrix(denseSolve(x.toArray(), MatrixUtil.transpose(dense), LAMBDA, ALPHA), y.toArray(), 1e-8);
+    }
+
+    @Test
+    public void warmSweepsAllocateNothingPerRow() {
+        Assume.assumeTrue(Allocations.training() >= 0);
+        InteractionMatrix r = ratings(USERS, ITEMS, 300, 10);
+        DefaultAlternatingLeastSquares als = new DefaultAlternatingLeastSquares();
+        FactorMatrix x = factors(USERS, 11), y = factors(ITEMS, 12);
+        // the first sweeps size the per-thread workspace and the Gram buffer
+        for (int step = 0; step < 3; ++step) {
+            als.optimizeUser(x, y, r, USERS, FACTORS, LAMBDA, ALPHA);
+            als.optimizeItem(x, y, r, ITEMS, FACTORS, LAMBDA, ALPHA);
+        }
+        long before = Allocations.training();
+        for (int step = 0; step < 10; ++step) {
+            als.optimizeUser(x, y, r, USERS, FACTORS, LAMBDA, ALPHA);
+            als.optimizeItem(x, y, r, ITEMS, FACTORS, LAMBDA, ALPHA);
+        }
+        long bytes = Allocations.training() - before;
+        // reading the counter itself allocates a little, nothing that grows with the rows solved
+        assertTrue(bytes + " bytes", bytes < 10 * (USERS + ITEMS));
+    }
+
+    @Test
+    public void floatStorageTrainsAsWellAsDouble() {
+        InteractionMatrix r = ratings(USERS, ITEMS, 300, 13);
+        DefaultAlternatingLeastSquares als = new DefaultAlternatingLeastSquares();
+        // both start from the same float-representable factors
+        FactorMatrix xFloat = TestData.factors(USERS, FACTORS, Precision.FLOAT, 0.1, 14), yFloat = TestData.factors(ITEMS, FACTORS, Precision.FLOAT, 0.1, 15);
+        FactorMatrix xDouble = xFloat.convert(Precision.DOUBLE), yDouble = yFloat.convert(Precision.DOUBLE);
+        double initial = als.loss(xDouble, yDouble, r, LAMBDA, ALPHA)[3];
+        for (int step = 0; step < 10; ++step) {
+            als.optimizeUser(xDouble, yDouble, r, USERS, FACTORS, LAMBDA, ALPHA);
+            als.optimizeItem(xDouble, yDouble, r, ITEMS, FACTORS, LAMBDA, ALPHA);
+            als.optimizeUser(xFloat, yFloat, r, USERS, FACTORS, LAMBDA, ALPHA);
+            als.optimizeItem(xFloat, yFloat, r, ITEMS, FACTORS, LAMBDA, ALPHA);
+        }
+        double lossDouble = als.loss(xDouble, yDouble, r, LAMBDA, ALPHA)[3], lossFloat = als.loss(xFloat, yFloat, r, LAMBDA, ALPHA)[3];
+        assertTrue(lossDouble < initial / 2);
+        assertEquals(lossDouble, lossFloat, 1e-3 * lossDouble);
+        assertSameMatrix(MatrixUtil.productTranspose(xDouble, yDouble), MatrixUtil.productTranspose(xFloat, yFloat), 1e-2);
+    }
+}
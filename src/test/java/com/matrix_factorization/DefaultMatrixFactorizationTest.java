@@ -0,0 +1,148 @@
+package com.matrix_factorization;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DefaultMatrixFactorizationTest {
+    private static double[][] ratings(int rows, int cols, long seed) {
+        Random random = new Random(seed);
+        double[][] r = new double[rows][cols];
+        for (int n = 0; n < rows * cols / 5; ++n) r[random.nextInt(rows)][random.nextInt(cols)] = 1 + random.nextInt(5);
+        return r;
+    }
+
+    /** Runs action on the training thread after the first step. */
+    private static abstract class AfterFirstStep implements TrainingListener {
+        private boolean done;
+
+        public boolean needsLoss() {
+            return false;
+        }
+
+        public void onStep(TrainingStep step) {
+            if (this.done) return;
+            this.done = true;
+            run();
+        }
+
+        public void onEvaluation(int step, Evaluation evaluation) {
+        }
+
+        abstract void run();
+    }
+
+    /** Records every step. */
+    private static class Steps implements TrainingListener {
+        private final List<TrainingStep> steps = new ArrayList<TrainingStep>();
+
+        public boolean needsLoss() {
+            return false;
+        }
+
+        public void onStep(TrainingStep step) {
+            this.steps.add(step);
+        }
+
+        public void onEvaluation(int step, Evaluation evaluation) {
+        }
+    }
+
+    @Test
+    public void fitIncrementalTrainsOnlyDirtyRowsAndTheirNeighbors() {
+        double[][] r = ratings(60, 40, 3);
+        DefaultMatrixFactorization model = new DefaultMatrixFactorization(r, 4, 0.1, 40, false);
+        model.fit(2);
+        assertEquals(0, model.getDirtyUserCount());
+        assertEquals(0, model.getDirtyItemCount());
+        ModelSnapshot before = model.publish();
+        double[][] x = before.getX().toArray(), y = before.getY().toArray();
+
+        model.put(3, 7, 5);
+        model.put(10, 2, 0);
+        model.put(10, 5, 2);
+        double[][] after = model.getR();
+        assertEquals(2, model.getDirtyUserCount());
+        assertEquals(3, model.getDirtyItemCount());
+        model.fitIncremental(1, 0);
+        assertEquals(0, model.getDirtyUserCount());
+
+        // users who rated a dirty item, and items rated by a dirty user, as of the writes
+        boolean[] users = new boolean[60], items = new boolean[40];
+        users[3] = users[10] = items[2] = items[5] = items[7] = true;
+        for (int u = 0; u < 60; ++u)
+            for (int i = 0; i < 40; ++i)
+                if (after[u][i] != 0) {
+                    users[u] |= i == 2 || i == 5 || i == 7;
+                    items[i] |= u == 3 || u == 10;
+                }
+        assertTrue(Arrays.toString(users).contains("false") && Arrays.toString(items).contains("false"));
+        ModelSnapshot trained = model.snapshot();
+        double[][] x2 = trained.getX().toArray(), y2 = trained.getY().toArray();
+        for (int u = 0; u < 60; ++u)
+            if (users[u]) assertFalse(Arrays.equals(x[u], x2[u]));
+            else assertArrayEquals(x[u], x2[u], 0);
+        for (int i = 0; i < 40; ++i)
+            if (items[i]) assertFalse(Arrays.equals(y[i], y2[i]));
+            else assertArrayEquals(y[i], y2[i], 0);
+    }
+
+    @Test
+    public void fitIncrementalRunsAFullSweepEveryInterval() {
+        DefaultMatrixFactorization model = new DefaultMatrixFactorization(ratings(60, 40, 4), 4, 0.1, 40, false);
+        model.fit(1);
+        model.put(0, 0, 3);
+        Steps steps = new Steps();
+        model.addTrainingListener(steps);
+        model.fitIncremental(7, 3);
+        assertEquals(7, steps.steps.size());
+        for (TrainingStep step : steps.steps) {
+            assertEquals(step.getStep() % 3 == 0, step.isFull());
+            if (step.isFull()) assertEquals(60, step.getUsers());
+            else assertTrue(step.getUsers() < 60);
+        }
+
+        steps.steps.clear();
+        model.put(0, 1, 3);
+        model.fitIncremental(4, 0);
+        for (TrainingStep step : steps.steps) assertFalse(step.isFull());
+    }
+
+    @Test
+    public void fitUntilConvergedPutsTheHoldoutBack() {
+        double[][] r = ratings(60, 40, 1);
+        DefaultMatrixFactorization model = new DefaultMatrixFactorization(r, 4, 0.1, 40, false);
+        model.fitUntilConverged(3, 1, -1, 0, 0.3, 5, RankingMetric.NDCG);
+        double[][] restored = model.getR();
+        for (int u = 0; u < r.length; ++u) assertArrayEquals(r[u], restored[u], 0);
+        assertTrue(model.getDirtyUserCount() > 0);
+    }
+
+    @Test
+    public void fitUntilConvergedKeepsWritesMadeDuringTheFit() {
+        final double[][] r = ratings(60, 40, 2);
+        final DefaultMatrixFactorization model = new DefaultMatrixFactorization(r, 4, 0.1, 40, false);
+        model.addTrainingListener(new AfterFirstStep() {
+            void run() {
+                // every rating of user 0 is deleted and user 1's are rewritten, held out or not
+                for (int i = 0; i < r[0].length; ++i)
+                    if (r[0][i] != 0) model.put(0, i, 0);
+                for (int i = 0; i < r[1].length; ++i)
+                    if (r[1][i] != 0) model.put(1, i, 9);
+            }
+        });
+        model.fitUntilConverged(3, 1, -1, 0, 0.3, 5, RankingMetric.NDCG);
+
+        double[][] after = model.getR();
+        for (int i = 0; i < r[0].length; ++i) {
+            assertEquals(0, after[0][i], 0);
+            assertEquals(r[1][i] != 0 ? 9 : 0, after[1][i], 0);
+        }
+        for (int u = 2; u < r.length; ++u) assertArrayEquals(r[u], after[u], 0);
+    }
+}
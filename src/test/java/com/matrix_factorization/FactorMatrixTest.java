@@ -0,0 +1,127 @@
+package com.matrix_factorization;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FactorMatrixTest {
+    private static final int ROWS = 3000, COLS = 16;
+
+    /** Appends rows one at a time after the first, writing each, and checks every row written so far. */
+    private static void appendOneAtATime(FactorMatrix factors, int rows, long seed) {
+        Random random = new Random(seed);
+        double[] row = new double[factors.cols()];
+        for (int i = factors.rows(); i < rows; ++i) {
+            factors.addRows(1);
+            for (int f = 0; f < row.length; ++f) row[f] = random.nextInt(1000);
+            factors.setRow(i, row);
+        }
+    }
+
+    private static void assertRows(FactorMatrix factors, int from, long seed) {
+        Random random = new Random(seed);
+        for (int i = from; i < factors.rows(); ++i)
+            for (int f = 0; f < factors.cols(); ++f) assertEquals(random.nextInt(1000), factors.get(i, f), 0);
+    }
+
+    @Test
+    public void appendingRowsKeepsEveryRow() {
+        for (Precision precision : Precision.values()) {
+            FactorMatrix factors = FactorMatrix.create(0, COLS, precision);
+            appendOneAtATime(factors, ROWS, 1);
+            assertEquals(ROWS, factors.rows());
+            assertRows(factors, 0, 1);
+        }
+    }
+
+    @Test
+    public void appendingRowsCostsAmortizedConstantBytes() {
+        Assume.assumeTrue(Allocations.training() >= 0);
+        for (Precision precision : Precision.values()) {
+            FactorMatrix factors = FactorMatrix.create(1, COLS, precision);
+            long before = Allocations.training();
+            for (int i = 1; i < ROWS; ++i) factors.addRows(1);
+            long bytes = Allocations.training() - before, last = (long) ROWS * COLS * (precision == Precision.FLOAT ? 4 : 8);
+            // doubling copies each element at most about twice, growing by one row copies ROWS / 2 times each
+            assertTrue(bytes + " bytes", bytes < 4 * last + (1 << 16));
+        }
+    }
+
+    @Test
+    public void appendingToMappedRowsGrowsTheirSegments() {
+        // two full read-only segments of 8 rows and a short one of 3
+        int rowsPerSegment = 8, rows = 19;
+        Random random = new Random(2);
+        DoubleBuffer[] doubles = new DoubleBuffer[3];
+        FloatBuffer[] floats = new FloatBuffer[3];
+        double[] last = null;
+        for (int s = 0; s < 3; ++s) {
+            int n = Math.min(rowsPerSegment, rows - s * rowsPerSegment) * COLS;
+            double[] d = last = new double[n];
+            float[] f = new float[n];
+            for (int k = 0; k < n; ++k) f[k] = (float) (d[k] = random.nextInt(1000));
+            doubles[s] = DoubleBuffer.wrap(d).asReadOnlyBuffer();
+            floats[s] = FloatBuffer.wrap(f).asReadOnlyBuffer();
+        }
+        double[] original = last.clone();
+        FactorMatrix[] mapped = { new MappedDoubleFactorMatrix(doubles, rowsPerSegment, rows, COLS), new MappedFloatFactorMatrix(floats, rowsPerSegment, rows, COLS) };
+        for (FactorMatrix factors : mapped) {
+            appendOneAtATime(factors, 200, 3);
+            assertEquals(200, factors.rows());
+            assertRows(factors, 19, 3);
+            random = new Random(2);
+            for (int i = 0; i < rows; ++i)
+                for (int f = 0; f < COLS; ++f) assertEquals(random.nextInt(1000), factors.get(i, f), 0);
+        }
+        // the read-only segments were copied, never written through
+        mapped[0].set(18, 0, -1);
+        assertEquals(-1, mapped[0].get(18, 0), 0);
+        assertArrayEquals(original, last, 0);
+    }
+
+    @Test
+    public void appendingToMappedRowsCostsAmortizedConstantBytes() {
+        Assume.assumeTrue(Allocations.training() >= 0);
+        int rowsPerSegment = 1 << 12;
+        FactorMatrix factors = new MappedDoubleFactorMatrix(new DoubleBuffer[] { DoubleBuffer.allocate(COLS).asReadOnlyBuffer() }, rowsPerSegment, 1, COLS);
+        long before = Allocations.training();
+        for (int i = 1; i < 3 * rowsPerSegment; ++i) factors.addRows(1);
+        long bytes = Allocations.training() - before;
+        assertTrue(bytes + " bytes", bytes < 4 * 3L * rowsPerSegment * COLS * 8 + (1 << 16));
+    }
+
+    @Test
+    public void rejectsMatricesLargerThanOneArray() {
+        for (Precision precision : Precision.values()) {
+            try {
+                FactorMatrix.create(1 << 16, 1 << 16, precision);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // 2^32 elements wrap to 0 in int arithmetic
+            }
+        }
+    }
+
+    @Test
+    public void keepsItsRowsWhenGrowingFails() {
+        for (Precision precision : Precision.values()) {
+            FactorMatrix factors = FactorMatrix.create(2, 1 << 20, precision);
+            factors.set(1, 5, 3);
+            try {
+                factors.addRows(1 << 12);
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertEquals(2, factors.rows());
+            }
+            assertEquals(3, factors.get(1, 5), 0);
+            factors.addRows(1);
+            assertEquals(3, factors.rows());
+            assertEquals(0, factors.get(2, 5), 0);
+        }
+    }
+}
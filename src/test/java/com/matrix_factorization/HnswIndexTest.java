@@ -0,0 +1,111 @@
+package com.matrix_factorization;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HnswIndexTest {
+    private static FactorMatrix factors(int rows, int cols, long seed) {
+        Random random = new Random(seed);
+        FactorMatrix factors = FactorMatrix.create(rows, cols, Precision.DOUBLE);
+        for (int i = 0; i < rows; ++i) {
+            // spread the norms so inner product and cosine rankings differ
+            double scale = 0.2 + random.nextDouble();
+            for (int j = 0; j < cols; ++j) factors.set(i, j, scale * random.nextGaussian());
+        }
+        return factors;
+    }
+
+    private static double recall(HnswIndex index, FactorMatrix y, FactorMatrix queries, int k, int ef) {
+        double[] query = new double[y.cols()];
+        int found = 0;
+        for (int q = 0; q < queries.rows(); ++q) {
+            queries.getRow(q, query);
+            TopK top = new TopK(k);
+            for (int i = 0; i < y.rows(); ++i) top.offer(i, y.dot(i, query));
+            int[] exact = top.poll(), approximate = index.search(query, ef);
+            for (int i : exact)
+                for (int j = 0; j < Math.min(k, approximate.length); ++j)
+                    if (approximate[j] == i) ++found;
+        }
+        return (double) found / (queries.rows() * k);
+    }
+
+    @Test
+    public void findsTheLargestInnerProducts() {
+        FactorMatrix y = factors(3000, 16, 1), queries = factors(100, 16, 2);
+        HnswIndex index = new HnswIndex(y, 16, 100, 4);
+        assertEquals(3000, index.size());
+        assertTrue(recall(index, y, queries, 10, 200) > 0.9);
+    }
+
+    @Test
+    public void serialAndParallelBuildsBothFindTheLargestInnerProducts() {
+        FactorMatrix y = factors(1000, 8, 3), queries = factors(50, 8, 4);
+        assertTrue(recall(new HnswIndex(y, 8, 50, 1), y, queries, 5, 50) > 0.9);
+        assertTrue(recall(new HnswIndex(y, 8, 50, 3), y, queries, 5, 50) > 0.9);
+    }
+
+    @Test
+    public void returnsBestFirst() {
+        FactorMatrix y = factors(500, 8, 5);
+        HnswIndex index = new HnswIndex(y);
+        double[] query = new double[8];
+        y.getRow(0, query);
+        int[] items = index.search(query, 20);
+        assertEquals(20, items.length);
+        for (int n = 1; n < items.length; ++n) assertTrue(y.dot(items[n - 1], query) >= y.dot(items[n], query) - 1e-5);
+    }
+
+    @Test
+    public void countsStaleItems() {
+        FactorMatrix y = factors(200, 8, 6);
+        HnswIndex index = new HnswIndex(y, 8, 50, 1);
+        assertEquals(0, index.stale(y, 0.01));
+        y.set(3, 0, y.get(3, 0) + 10);
+        y.addRows(5);
+        assertEquals(6, index.stale(y, 0.01));
+        assertEquals(205, index.stale(factors(205, 7, 7), 0.01));
+        assertEquals(200, index.stale(factors(50, 8, 8), 0.01));
+    }
+
+    @Test
+    public void modelRebuildsTheIndexOnlyOnceStale() {
+        Random random = new Random(11);
+        InteractionMatrix r = new InteractionMatrix(200, 100);
+        for (int n = 0; n < 2000; ++n) r.put(random.nextInt(200), random.nextInt(100), 1);
+        DefaultMatrixFactorization model = new DefaultMatrixFactorization(r, 8, 0.1, 40, false);
+        model.buildIndex();
+        HnswIndex initial = model.getIndex();
+        model.fit(3);
+        HnswIndex trained = model.getIndex();
+        assertNotSame(initial, trained);
+
+        model.put(0, 0, 1);
+        model.fitIncremental(1, 0);
+        assertSame(trained, model.getIndex());
+    }
+
+    @Test
+    public void searchesConcurrently() throws InterruptedException {
+        final FactorMatrix y = factors(2000, 8, 9), queries = factors(40, 8, 10);
+        final HnswIndex index = new HnswIndex(y, 8, 50, 2);
+        final double expected = recall(index, y, queries, 5, 40);
+        final double[] recalls = new double[4];
+        Thread[] threads = new Thread[recalls.length];
+        for (int t = 0; t < threads.length; ++t) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    recalls[thread] = recall(index, y, queries, 5, 40);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        for (double recall : recalls) assertEquals(expected, recall, 0);
+    }
+}
@@ -0,0 +1,100 @@
+package com.matrix_factorization;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class InteractionBufferTest {
+    private static final int THREADS = 6, ROWS = 60, COLS = 40, ROUNDS = 20;
+
+    /** The value put into (row, col) in round k, distinct per round. */
+    private static float value(int row, int col, int k) {
+        return 1 + k + (row * COLS + col) % 7 * 0.125f;
+    }
+
+    @Test
+    public void concurrentWritesLandExactlyOnceWithTheirLastValue() throws Exception {
+        // fewer stripes than writers, so writers share stripes and race the drain on them
+        final InteractionBuffer buffer = new InteractionBuffer(ROWS, COLS, 2);
+        final InteractionMatrix r = new InteractionMatrix(ROWS, COLS);
+        final BitSet dirtyRows = new BitSet(), dirtyCols = new BitSet();
+        final CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(THREADS);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread[] writers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; ++t) {
+            final int owner = t;
+            writers[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        // writer t owns the rows congruent to t, so no two writers share a cell
+                        for (int k = 0; k < ROUNDS; ++k)
+                            for (int u = owner; u < ROWS; u += THREADS)
+                                for (int i = (u + k) % 3; i < COLS; i += 3) buffer.put(u, i, value(u, i, k));
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            writers[t].start();
+        }
+
+        int drained = 0, drains = 0;
+        start.countDown();
+        while (done.getCount() > 0) {
+            drained += buffer.drainTo(r, dirtyRows, dirtyCols);
+            if (++drains % 8 == 0) r.compact();
+        }
+        for (Thread writer : writers) writer.join();
+        drained += buffer.drainTo(r, dirtyRows, dirtyCols);
+        assertNull(failure.get());
+        assertEquals(0, buffer.drainTo(r, dirtyRows, dirtyCols));
+
+        // every put was moved exactly once
+        long puts = 0;
+        double[][] expected = new double[ROWS][COLS];
+        for (int k = 0; k < ROUNDS; ++k)
+            for (int u = 0; u < ROWS; ++u)
+                for (int i = (u + k) % 3; i < COLS; i += 3) {
+                    expected[u][i] = value(u, i, k);
+                    ++puts;
+                }
+        assertEquals(puts, drained);
+
+        // and each cell holds its last write, once
+        r.compact();
+        assertEquals(ROWS * COLS, r.nnz());
+        for (int u = 0; u < ROWS; ++u) {
+            assertEquals(COLS, r.rowEnd(u) - r.rowStart(u));
+            for (int k = r.rowStart(u); k < r.rowEnd(u); ++k)
+                assertEquals(expected[u][r.colIndex(k)], r.rowValue(k), 0);
+        }
+        assertEquals(ROWS, dirtyRows.cardinality());
+        assertEquals(COLS, dirtyCols.cardinality());
+    }
+
+    @Test
+    public void dropsWritesOutsideAShrunkMatrix() {
+        InteractionBuffer buffer = new InteractionBuffer(4, 4, 1);
+        buffer.put(3, 3, 2);
+        buffer.put(1, 1, 3);
+        InteractionMatrix r = new InteractionMatrix(2, 2);
+        BitSet dirtyRows = new BitSet(), dirtyCols = new BitSet();
+        buffer.drainTo(r, dirtyRows, dirtyCols);
+        assertEquals(3, r.get(1, 1), 0);
+        assertEquals(1, r.nnz());
+        assertEquals(1, dirtyRows.cardinality());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsWritesOutOfBounds() {
+        new InteractionBuffer(2, 2).put(2, 0, 1);
+    }
+}
@@ -0,0 +1,183 @@
+package com.matrix_factorization;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class InteractionMatrixTest {
+    /** Checks the compacted CSR and CSC indexes of r against the dense reference. */
+    private static void assertMatches(double[][] expected, InteractionMatrix r) {
+        int nnz = 0;
+        for (int u = 0; u < expected.length; ++u) {
+            int k = r.rowStart(u);
+            for (int i = 0; i < expected[u].length; ++i) {
+                if (expected[u][i] == 0) continue;
+                ++nnz;
+                assertTrue(k < r.rowEnd(u));
+                assertEquals(i, r.colIndex(k));
+                assertEquals(expected[u][i], r.rowValue(k++), 0);
+            }
+            assertEquals(r.rowEnd(u), k);
+        }
+        assertEquals(nnz, r.nnz());
+        for (int i = 0; i < r.cols(); ++i) {
+            int k = r.colStart(i);
+            for (int u = 0; u < expected.length; ++u) {
+                if (expected[u][i] == 0) continue;
+                assertTrue(k < r.colEnd(i));
+                assertEquals(u, r.rowIndex(k));
+                assertEquals(expected[u][i], r.colValue(k++), 0);
+            }
+            assertEquals(r.colEnd(i), k);
+        }
+    }
+
+    @Test
+    public void randomWritesMatchADenseReference() {
+        Random random = new Random(2);
+        int rows = 40, cols = 25;
+        InteractionMatrix r = new InteractionMatrix(rows, cols);
+        double[][] expected = new double[rows][cols];
+        for (int round = 0; round < 50; ++round) {
+            for (int n = random.nextInt(60); n > 0; --n) {
+                int u = random.nextInt(rows), i = random.nextInt(cols);
+                double value = random.nextInt(4) == 0 ? 0 : random.nextInt(9) - 3;
+                r.put(u, i, value);
+                expected[u][i] = value;
+            }
+            // rows and columns replay the pending writes without compacting
+            int pending = r.pending();
+            for (int u = 0; u < rows; ++u) {
+                int[] items = new int[r.rowEnd(u) - r.rowStart(u) + pending];
+                float[] values = new float[items.length];
+                int n = r.row(u, items, values), k = 0;
+                for (int i = 0; i < cols; ++i) {
+                    if (expected[u][i] == 0) continue;
+                    assertEquals(i, items[k]);
+                    assertEquals(expected[u][i], values[k++], 0);
+                }
+                assertEquals(k, n);
+            }
+            for (int i = 0; i < cols; ++i) {
+                int[] users = new int[r.colEnd(i) - r.colStart(i) + pending];
+                float[] values = new float[users.length];
+                int n = r.col(i, users, values), k = 0;
+                for (int u = 0; u < rows; ++u) {
+                    if (expected[u][i] == 0) continue;
+                    assertEquals(u, users[k]);
+                    assertEquals(expected[u][i], values[k++], 0);
+                }
+                assertEquals(k, n);
+            }
+            assertEquals(pending, r.pending());
+
+            if (random.nextBoolean()) {
+                r.compact();
+                assertEquals(0, r.pending());
+                assertMatches(expected, r);
+            }
+            int u = random.nextInt(rows), i = random.nextInt(cols);
+            assertEquals(expected[u][i], r.get(u, i), 0);
+        }
+        double[][] dense = r.toDense();
+        for (int u = 0; u < rows; ++u) assertArrayEquals(expected[u], dense[u], 0);
+    }
+
+    @Test
+    public void growsAndSnapshots() {
+        InteractionMatrix r = InteractionMatrix.fromDense(new double[][] { { 1, 0 }, { 0, 2 } });
+        InteractionMatrix snapshot = r.snapshot();
+        r.addRows(2);
+        r.addCols(1);
+        r.put(3, 2, 5);
+        r.put(0, 0, 0);
+        r.compact();
+        assertMatches(new double[][] { { 0, 0, 0 }, { 0, 2, 0 }, { 0, 0, 0 }, { 0, 0, 5 } }, r);
+        // the snapshot keeps the ratings it was taken with
+        assertMatches(new double[][] { { 1, 0 }, { 0, 2 } }, snapshot);
+    }
+
+    @Test
+    public void growsOneRowAndColumnAtATime() {
+        Random random = new Random(5);
+        int n = 300;
+        double[][] expected = new double[n][n];
+        InteractionMatrix r = new InteractionMatrix(1, 1);
+        r.put(0, 0, expected[0][0] = 3);
+        for (int k = 1; k < n; ++k) {
+            r.addRows(1);
+            r.addCols(1);
+            // a few ratings of the new user and item, some still pending as the matrix grows further
+            for (int m = 0; m < 3; ++m) {
+                int i = random.nextInt(k + 1), u = random.nextInt(k + 1);
+                r.put(k, i, expected[k][i] = 1 + random.nextInt(5));
+                r.put(u, k, expected[u][k] = 1 + random.nextInt(5));
+            }
+            if (k % 50 == 0) r.compact();
+        }
+        assertEquals(n, r.rows());
+        assertEquals(n, r.cols());
+        r.compact();
+        assertMatches(expected, r);
+    }
+
+    @Test
+    public void growingCostsAmortizedConstantBytes() {
+        Assume.assumeTrue(Allocations.training() >= 0);
+        int n = 1 << 15;
+        InteractionMatrix r = InteractionMatrix.fromDense(new double[][] { { 1 } });
+        long before = Allocations.training();
+        for (int k = 1; k < n; ++k) {
+            r.addRows(1);
+            r.addCols(1);
+        }
+        long bytes = Allocations.training() - before;
+        // two int indexes, each copied about twice while doubling
+        assertTrue(bytes + " bytes", bytes < 4 * 2L * n * 4 + (1 << 16));
+        r.put(n - 1, n - 1, 2);
+        assertEquals(2, r.get(n - 1, n - 1), 0);
+        assertEquals(1, r.get(0, 0), 0);
+    }
+
+    @Test
+    public void buildsFromTriplesSeriallyAndInParallel() {
+        Random random = new Random(1);
+        int rows = 50, cols = 30, n = 20000;
+        int[] row = new int[n], col = new int[n];
+        float[] value = new float[n];
+        double[][] expected = new double[rows][cols];
+        for (int k = 0; k < n; ++k) {
+            row[k] = random.nextInt(rows);
+            col[k] = random.nextInt(cols);
+            // about one write in five deletes, and later writes to a cell win
+            value[k] = random.nextInt(5) == 0 ? 0 : 1 + random.nextInt(5);
+            expected[row[k]][col[k]] = value[k];
+        }
+        assertMatches(expected, InteractionMatrix.fromTriples(rows, cols, row, col, value, n));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertMatches(expected, InteractionMatrix.fromTriples(rows, cols, row, col, value, n, pool));
+            // fewer triples than rows fall back to one block
+            assertMatches(new double[100][cols], InteractionMatrix.fromTriples(100, cols, row, col, value, 0, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsTriplesOutsideTheMatrix() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            int[] row = new int[100], col = new int[100];
+            float[] value = new float[100];
+            col[77] = 3;
+            InteractionMatrix.fromTriples(2, 3, row, col, value, 100, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
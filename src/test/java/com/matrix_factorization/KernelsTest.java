@@ -0,0 +1,129 @@
+package com.matrix_factorization;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KernelsTest {
+    private static final double TOLERANCE = 1e-9;
+    // lengths around every vector width and its tails
+    private static final int[] LENGTHS = { 0, 1, 2, 3, 4, 5, 7, 8, 9, 15, 16, 17, 31, 33, 64, 100 };
+
+    private final Kernels scalar = Kernels.scalar(), vector = Kernels.vector();
+
+    private static double[] random(Random random, int n) {
+        double[] v = new double[n];
+        for (int f = 0; f < n; ++f) v[f] = random.nextGaussian();
+        return v;
+    }
+
+    @Test
+    public void instanceIsOneOfTheKernels() {
+        assertTrue(Kernels.INSTANCE.name().equals("scalar") || Kernels.INSTANCE.name().equals("vector"));
+        assertEquals("scalar", this.scalar.name());
+    }
+
+    @Test
+    public void scalarKernelsMatchPlainLoops() {
+        Random random = new Random(1);
+        for (int n : LENGTHS) {
+            double[] a = random(random, n + 3), b = random(random, n + 5);
+            double dot = 0;
+            for (int f = 0; f < n; ++f) dot += a[3 + f] * b[5 + f];
+            assertEquals(dot, this.scalar.dot(a, 3, b, 5, n), TOLERANCE);
+
+            double[] y = b.clone();
+            this.scalar.axpy(0.5, a, 3, y, 5, n);
+            for (int f = 0; f < n + 5; ++f) assertEquals(f < 5 ? b[f] : b[f] + 0.5 * a[f - 2], y[f], TOLERANCE);
+        }
+    }
+
+    @Test
+    public void vectorKernelsMatchScalarKernels() {
+        Assume.assumeNotNull(this.vector);
+        Random random = new Random(2);
+        for (int n : LENGTHS) {
+            double[] a = random(random, n + 3), b = random(random, n + 5);
+            assertEquals(this.scalar.dot(a, 3, b, 5, n), this.vector.dot(a, 3, b, 5, n), TOLERANCE * (n + 1));
+
+            double[] y = b.clone(), z = b.clone();
+            this.scalar.axpy(-1.25, a, 3, y, 5, n);
+            this.vector.axpy(-1.25, a, 3, z, 5, n);
+            assertArrayEquals(y, z, TOLERANCE);
+        }
+    }
+
+    @Test
+    public void gramsMatchAcrossKernelsAndRowCounts() {
+        Random random = new Random(3);
+        for (int n : LENGTHS) {
+            // row counts around the four-row blocking
+            for (int rows : new int[] { 0, 1, 3, 4, 5, 9 }) {
+                double[] data = random(random, 2 + rows * n);
+                double[][] expected = new double[n][n];
+                for (int row = 0; row < rows; ++row)
+                    for (int f = 0; f < n; ++f)
+                        for (int g = f; g < n; ++g) expected[f][g] += data[2 + row * n + f] * data[2 + row * n + g];
+
+                double[][] gram = new double[n][n], outer = new double[n][n];
+                this.scalar.addGram(data, 2, rows, n, gram);
+                for (int row = 0; row < rows; ++row) this.scalar.addOuter(1, data, 2 + row * n, n, outer);
+                assertUpperEquals(expected, gram);
+                assertUpperEquals(expected, outer);
+                if (this.vector != null) {
+                    gram = new double[n][n];
+                    this.vector.addGram(data, 2, rows, n, gram);
+                    assertUpperEquals(expected, gram);
+                }
+            }
+        }
+    }
+
+    private static float[] narrow(double[] v) {
+        float[] narrow = new float[v.length];
+        for (int f = 0; f < v.length; ++f) narrow[f] = (float) v[f];
+        return narrow;
+    }
+
+    private static double[] widen(float[] v) {
+        double[] wide = new double[v.length];
+        for (int f = 0; f < v.length; ++f) wide[f] = v[f];
+        return wide;
+    }
+
+    @Test
+    public void floatKernelsMatchDoubleKernelsOnWidenedValues() {
+        Random random = new Random(4);
+        Kernels[] all = this.vector == null ? new Kernels[] { this.scalar } : new Kernels[] { this.scalar, this.vector };
+        for (Kernels kernels : all)
+            for (int n : LENGTHS) {
+                float[] a = narrow(random(random, n + 3)), c = narrow(random(random, n + 5));
+                double[] b = random(random, n + 5), wideA = widen(a), wideC = widen(c);
+                assertEquals(this.scalar.dot(wideA, 3, b, 5, n), kernels.dot(a, 3, b, 5, n), TOLERANCE * (n + 1));
+                assertEquals(this.scalar.dot(wideA, 3, wideC, 5, n), kernels.dot(a, 3, c, 5, n), TOLERANCE * (n + 1));
+
+                double[] y = b.clone(), z = b.clone();
+                this.scalar.axpy(-1.25, wideA, 3, y, 5, n);
+                kernels.axpy(-1.25, a, 3, z, 5, n);
+                assertArrayEquals(y, z, TOLERANCE);
+
+                for (int rows : new int[] { 0, 1, 3, 4, 5, 9 }) {
+                    float[] data = narrow(random(random, 2 + rows * n));
+                    double[][] expected = new double[n][n], gram = new double[n][n], outer = new double[n][n];
+                    this.scalar.addGram(widen(data), 2, rows, n, expected);
+                    kernels.addGram(data, 2, rows, n, gram);
+                    for (int row = 0; row < rows; ++row) kernels.addOuter(1, data, 2 + row * n, n, outer);
+                    assertUpperEquals(expected, gram);
+                    assertUpperEquals(expected, outer);
+                }
+            }
+    }
+
+    private static void assertUpperEquals(double[][] expected, double[][] actual) {
+        for (int f = 0; f < expected.length; ++f)
+            for (int g = f; g < expected.length; ++g) assertEquals(expected[f][g], actual[f][g], TOLERANCE * (1 + Math.abs(expected[f][g])));
+    }
+}
@@ -0,0 +1,59 @@
+package com.matrix_factorization;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LossTest {
+    /** The loss over every cell of the dense matrix, as the Gram form must reproduce. */
+    private static double[] bruteForce(double[][] x, double[][] y, double[][] r, double lambda, double alpha) {
+        double predictError = 0, confidenceError = 0, regularization = 0;
+        for (int u = 0; u < r.length; ++u)
+            for (int i = 0; i < r[u].length; ++i) {
+                double predict = 0;
+                for (int f = 0; f < x[u].length; ++f) predict += x[u][f] * y[i][f];
+                double p = r[u][i] > 0 ? 1 : 0, c = 1 + alpha * r[u][i];
+                predictError += (p - predict) * (p - predict);
+                confidenceError += c * (p - predict) * (p - predict);
+            }
+        for (double[][] factors : new double[][][] { x, y })
+            for (double[] row : factors)
+                for (double v : row) regularization += lambda * v * v;
+        return new double[] { predictError, confidenceError, regularization, confidenceError + regularization };
+    }
+
+    private static double[][] random(Random random, int rows, int cols) {
+        double[][] m = new double[rows][cols];
+        for (int i = 0; i < rows; ++i)
+            for (int j = 0; j < cols; ++j) m[i][j] = random.nextGaussian() * 0.5;
+        return m;
+    }
+
+    private static void assertLoss(AlternatingLeastSquares<FactorMatrix, InteractionMatrix> als, Precision precision) {
+        Random random = new Random(1);
+        double[][] r = new double[40][25];
+        for (int n = 0; n < 200; ++n) r[random.nextInt(40)][random.nextInt(25)] = random.nextInt(4) == 0 ? -1 : 1 + random.nextInt(5);
+        double[][] x = random(random, 40, 6), y = random(random, 25, 6);
+        double[] expected = bruteForce(x, y, r, 0.1, 40);
+        double[] loss = als.loss(FactorMatrix.create(x, precision), FactorMatrix.create(y, precision), InteractionMatrix.fromDense(r), 0.1, 40);
+        double tolerance = precision == Precision.FLOAT ? 1e-4 : 1e-9;
+        for (int k = 0; k < 4; ++k) assertEquals(expected[k], loss[k], tolerance * Math.abs(expected[k]));
+    }
+
+    @Test
+    public void gramLossMatchesTheDenseSum() {
+        for (Precision precision : Precision.values()) assertLoss(new DefaultAlternatingLeastSquares(), precision);
+    }
+
+    @Test
+    public void parallelLossMatchesTheDenseSum() {
+        ParallelAlternatingLeastSquares als = new ParallelAlternatingLeastSquares(3);
+        try {
+            assertLoss(als, Precision.DOUBLE);
+        } finally {
+            als.shutdown();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.matrix_factorization;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static com.matrix_factorization.TestData.*;
+import static org.junit.Assert.*;
+
+public class ModelFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void assertSameRatings(InteractionMatrix expected, InteractionMatrix actual) {
+        assertEquals(expected.nnz(), actual.nnz());
+        assertSameMatrix(expected.toDense(), actual.toDense(), 0);
+    }
+
+    @Test
+    public void roundTripsDoubleAndFloatModels() throws IOException {
+        for (Precision precision : Precision.values()) {
+            InteractionMatrix r = ratings(30, 20, 150, 1);
+            FactorMatrix x = factors(30, 7, precision, 1, 2), y = factors(20, 7, precision, 1, 3);
+            String path = new File(this.folder.getRoot(), precision + ".mf").getPath();
+            new ModelFile(r, x, y, 0.1, 40).write(path);
+
+            ModelFile model = ModelFile.read(path);
+            assertEquals(precision, model.getX().precision());
+            assertSameFactors(x, model.getX(), 0);
+            assertSameFactors(y, model.getY(), 0);
+            assertSameRatings(r, model.getR());
+            assertEquals(0.1, model.getLambda(), 0);
+            assertEquals(40, model.getAlpha(), 0);
+            assertNull(model.getUserIds());
+            assertNull(model.getItemIds());
+        }
+    }
+
+    @Test
+    public void roundTripsIdMappings() throws IOException {
+        InteractionMatrix r = ratings(3, 2, 1, 4);
+        IdMapping<String> users = new IdMapping<String>();
+        users.index("alice");
+        users.index("böb");
+        users.index("");
+        IdMapping<Long> items = new IdMapping<Long>();
+        items.index(42L);
+        items.index(-7L);
+        String path = new File(this.folder.getRoot(), "ids.mf").getPath();
+        new ModelFile(r, factors(3, 2, Precision.DOUBLE, 1, 5), factors(2, 2, Precision.DOUBLE, 1, 6), 0.1, 40, users, items).writeServing(path);
+
+        ModelFile model = ModelFile.read(path);
+        assertEquals(0, model.getR().nnz());
+        assertEquals(3, model.getUserIds().size());
+        assertEquals("böb", model.getUserIds().id(1));
+        assertEquals("", model.getUserIds().id(2));
+        assertEquals(2, model.getItemIds().size());
+        assertEquals(-7L, model.getItemIds().id(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOneIdMapping() {
+        new ModelFile(ratings(3, 2, 1, 7), factors(3, 2, Precision.DOUBLE, 1, 8), factors(2, 2, Precision.DOUBLE, 1, 9), 0.1, 40,
+                new IdMapping<String>(), null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIdMappingOfOtherShape() {
+        IdMapping<String> users = new IdMapping<String>(), items = new IdMapping<String>();
+        users.index("a");
+        items.index("b");
+        items.index("c");
+        new ModelFile(ratings(3, 2, 1, 10), factors(3, 2, Precision.DOUBLE, 1, 11), factors(2, 2, Precision.DOUBLE, 1, 12), 0.1, 40, users, items);
+    }
+
+    @Test
+    public void savesOverTheFileTheModelWasLoadedFrom() {
+        String path = new File(this.folder.getRoot(), "model.mf").getPath();
+        DefaultMatrixFactorization trained = new DefaultMatrixFactorization(ratings(40, 25, 250, 13), 5, 0.1, 40, false);
+        trained.fit(3);
+        trained.saveModel(path);
+
+        DefaultMatrixFactorization loaded = new DefaultMatrixFactorization(path);
+        loaded.setPrintLog(false);
+        double[][] before = loaded.predict();
+        loaded.saveModel(path);
+        // the mapped factors of the loaded model stay readable
+        double[][] after = loaded.predict();
+        assertSameMatrix(before, after, 0);
+
+        double[][] reloaded = new DefaultMatrixFactorization(path).predict();
+        assertSameMatrix(before, reloaded, 0);
+        assertArrayEquals(new String[] { "model.mf" }, this.folder.getRoot().list());
+    }
+
+    private static void writeEntry(ZipOutputStream zip, String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes("UTF-8"));
+        zip.closeEntry();
+    }
+
+    private static String dense(double[][] matrix) {
+        StringBuilder csv = new StringBuilder();
+        for (double[] row : matrix) {
+            for (int j = 0; j < row.length; ++j) csv.append(j == 0 ? "" : ",").append(row[j]);
+            csv.append('\n');
+        }
+        return csv.toString();
+    }
+
+    private static List<String> entries(String path) throws IOException {
+        List<String> names = new ArrayList<String>();
+        ZipInputStream zip = new ZipInputStream(new FileInputStream(path));
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) names.add(entry.getName());
+        } finally {
+            zip.close();
+        }
+        return names;
+    }
+
+    @Test
+    public void readsDenseArchivesWithDerivedMatricesAndWritesSparseOnes() throws IOException {
+        double[][] r = denseRatings(6, 4, 10, 14), x = factors(6, 3, Precision.DOUBLE, 1, 15).toArray(), y = factors(4, 3, Precision.DOUBLE, 1, 16).toArray();
+        double[][] c = new double[6][4], p = new double[6][4];
+        for (int u = 0; u < 6; ++u)
+            for (int i = 0; i < 4; ++i) {
+                c[u][i] = 1 + 40 * r[u][i];
+                p[u][i] = r[u][i] > 0 ? 1 : 0;
+            }
+        // the archive layout before r.csv became sparse, with c.csv and p.csv
+        String legacy = new File(this.folder.getRoot(), "legacy.zip").getPath();
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(legacy));
+        try {
+            writeEntry(zip, "conf.csv", "6,4,3,0.1,40.0");
+            writeEntry(zip, "r.csv", "6,4\n" + dense(r));
+            writeEntry(zip, "c.csv", "6,4\n" + dense(c));
+            writeEntry(zip, "p.csv", "6,4\n" + dense(p));
+            writeEntry(zip, "x.csv", "6,3\n" + dense(x));
+            writeEntry(zip, "y.csv", "4,3\n" + dense(y));
+        } finally {
+            zip.close();
+        }
+
+        DefaultMatrixFactorization loaded = new DefaultMatrixFactorization(legacy);
+        loaded.setPrintLog(false);
+        double[][] predicted = MatrixUtil.productTranspose(FactorMatrix.create(x, Precision.DOUBLE), FactorMatrix.create(y, Precision.DOUBLE));
+        assertSameMatrix(r, loaded.getR(), 0);
+        assertSameMatrix(predicted, loaded.predict(), 0);
+
+        String saved = new File(this.folder.getRoot(), "saved.zip").getPath();
+        loaded.saveModel(saved);
+        List<String> expected = new ArrayList<String>();
+        for (String name : new String[] { "conf.csv", "r.csv", "x.csv", "y.csv" }) expected.add(name);
+        assertEquals(expected, entries(saved));
+        DefaultMatrixFactorization reloaded = new DefaultMatrixFactorization(saved);
+        assertSameMatrix(r, reloaded.getR(), 0);
+        assertSameMatrix(predicted, reloaded.predict(), 0);
+        // the entries were unpacked next to the working directory and removed again
+        for (String name : new String[] { "conf.csv", "r.csv", "c.csv", "p.csv", "x.csv", "y.csv" }) assertFalse(new File(name).exists());
+    }
+}
@@ -0,0 +1,215 @@
+package com.matrix_factorization;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static com.matrix_factorization.TestData.*;
+import static org.junit.Assert.*;
+
+public class ModelSnapshotTest {
+    private static FactorMatrix copy(FactorMatrix factors) {
+        return FactorMatrix.create(factors.toArray(), factors.precision());
+    }
+
+    private static int[] sorted(int[] a) {
+        int[] sorted = a.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    @Test
+    public void snapshotIsUnaffectedByLaterTraining() {
+        double[][] r = denseRatings(40, 30, 240, 1);
+        DefaultMatrixFactorization model = new DefaultMatrixFactorization(r, 5, 0.1, 40, false);
+        model.setSimilarItemCache(10);
+        model.fit(2);
+        ModelSnapshot snapshot = model.publish();
+
+        int[] users = new int[40], items = new int[30];
+        for (int u = 0; u < users.length; ++u) users[u] = u;
+        for (int i = 0; i < items.length; ++i) items[i] = i;
+        double[][] predicted = snapshot.predict();
+        int[][] recommended = snapshot.recommend(users, 5, true), all = snapshot.recommend(users, 5, false);
+        int[][] similarItems = snapshot.similarItems(items, 4), similarUsers = snapshot.similarUsers(users, 4);
+
+        // train, write, grow and republish the live model
+        model.fit(3);
+        for (int i = 0; i < 30; ++i) model.put(0, i, 5);
+        model.put(3, 7, 0);
+        model.addUsers(denseRatings(5, 30, 40, 2));
+        model.addEmptyItems(3);
+        model.fit(1);
+        ModelSnapshot latest = model.publish();
+
+        assertNotSame(snapshot, latest);
+        assertTrue(latest.getVersion() > snapshot.getVersion());
+        assertEquals(45, latest.users());
+        assertEquals(33, latest.items());
+        assertEquals(40, snapshot.users());
+        assertEquals(30, snapshot.items());
+        assertSameMatrix(predicted, snapshot.predict(), 0);
+        assertArrayEquals(recommended, snapshot.recommend(users, 5, true));
+        assertArrayEquals(all, snapshot.recommend(users, 5, false));
+        assertArrayEquals(similarItems, snapshot.similarItems(items, 4));
+        assertArrayEquals(similarUsers, snapshot.similarUsers(users, 4));
+        assertSameMatrix(r, snapshot.getR().toDense(), 0);
+        // user 0 rated every old item in the live model only
+        assertArrayEquals(new int[] { 30, 31, 32 }, sorted(latest.recommend(0, 5, true)));
+    }
+
+    @Test
+    public void keepsTheSimilarItemTableOnlyForTheSameFactors() {
+        FactorMatrix x = factors(20, 4, Precision.DOUBLE, 1, 1), y = factors(30, 4, Precision.DOUBLE, 1, 2);
+        InteractionMatrix r = ratings(20, 30, 100, 3);
+        ModelSnapshot first = new ModelSnapshot(1, x, y, r, null, null, 10);
+        int[] neighbors = first.similarItems(0, 3);
+
+        // item 7 becomes a copy of item 0, its nearest possible neighbor; x and y are modified in place to tell a
+        // kept table from a recomputed one, which a published snapshot never allows
+        for (int f = 0; f < 4; ++f) y.set(7, f, y.get(0, f));
+        assertNotEquals(7, neighbors[0]);
+        ModelSnapshot sameItems = new ModelSnapshot(2, copy(x), y, r, null, first, 10);
+        assertArrayEquals(neighbors, sameItems.similarItems(0, 3));
+
+        ModelSnapshot newItems = new ModelSnapshot(3, x, copy(y), r, null, sameItems, 10);
+        assertEquals(7, newItems.similarItems(0, 3)[0]);
+    }
+
+    @Test
+    public void keepsRowNormsOnlyForTheSameFactors() {
+        FactorMatrix x = factors(20, 4, Precision.DOUBLE, 1, 4), y = factors(30, 4, Precision.DOUBLE, 1, 5);
+        InteractionMatrix r = ratings(20, 30, 100, 6);
+        ModelSnapshot first = new ModelSnapshot(1, x, y, r);
+        int query = 0;
+        while (query == 5 || x.dot(query, x, 5) <= 0) ++query;
+        int[] neighbors = first.similarUsers(query, 3);
+
+        // scaling user 5 leaves every cosine unchanged, unless its stale norm is kept
+        for (int f = 0; f < 4; ++f) x.set(5, f, 100 * x.get(5, f));
+        ModelSnapshot sameUsers = new ModelSnapshot(2, x, copy(y), r, null, first, 0);
+        assertEquals(5, sameUsers.similarUsers(query, 3)[0]);
+
+        ModelSnapshot newUsers = new ModelSnapshot(3, copy(x), y, r, null, first, 0);
+        assertArrayEquals(neighbors, newUsers.similarUsers(query, 3));
+    }
+
+    /** Items by descending score of x[user] . y by a full sort, without the items rated in dense if not null. */
+    private static int[] sortedScores(FactorMatrix x, FactorMatrix y, double[] dense, int user) {
+        final double[] scores = new double[y.rows()];
+        Integer[] order = new Integer[y.rows()];
+        for (int i = 0; i < order.length; ++i) {
+            scores[i] = x.dot(user, y, i);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(scores[b], scores[a]);
+            }
+        });
+        int[] items = new int[order.length];
+        int n = 0;
+        for (int i : order)
+            if (dense == null || dense[i] == 0) items[n++] = i;
+        return Arrays.copyOf(items, n);
+    }
+
+    @Test
+    public void recommendMatchesAFullSort() {
+        FactorMatrix x = factors(30, 6, Precision.DOUBLE, 1, 7), y = factors(25, 6, Precision.DOUBLE, 1, 8);
+        InteractionMatrix r = ratings(30, 25, 200, 9), reference = ratings(30, 25, 200, 9);
+        // pending writes: a new rating, a deletion and a rewrite, left uncompacted in r
+        for (InteractionMatrix m : new InteractionMatrix[] { r, reference }) {
+            m.put(0, 3, 4);
+            m.put(1, m.colIndex(m.rowStart(1)), 0);
+            m.put(2, m.colIndex(m.rowStart(2)), 5);
+        }
+        double[][] dense = reference.toDense();
+        assertTrue(r.pending() > 0);
+
+        int[] users = new int[30];
+        for (int u = 0; u < users.length; ++u) users[u] = u;
+        for (int k : new int[] { 1, 5, 25, 40 }) {
+            int[][] excluded = ModelSnapshot.recommend(x, y, r, users, k, true), included = ModelSnapshot.recommend(x, y, r, users, k, false);
+            for (int u = 0; u < users.length; ++u) {
+                int[] unseen = sortedScores(x, y, dense[u], u), all = sortedScores(x, y, null, u);
+                assertArrayEquals(Arrays.copyOf(unseen, Math.min(k, unseen.length)), excluded[u]);
+                assertArrayEquals(Arrays.copyOf(all, Math.min(k, all.length)), included[u]);
+            }
+        }
+        // recommend only reads r
+        assertTrue(r.pending() > 0);
+    }
+
+    @Test
+    public void similarMatchesABruteForceCosine() {
+        FactorMatrix factors = factors(40, 5, Precision.DOUBLE, 1, 10);
+        // zero rows have no direction and are never returned
+        factors.setRow(4, new double[5]);
+        factors.setRow(9, new double[5]);
+        double[] norms = ModelSnapshot.norms(factors);
+        int[] rows = { 0, 4, 17, 39 };
+        int[][] similar = ModelSnapshot.similar(factors, norms, rows, 6, null);
+        for (int n = 0; n < rows.length; ++n) {
+            final double[] cosines = new double[40];
+            Integer[] order = new Integer[40];
+            for (int j = 0; j < 40; ++j) {
+                double norm = norms[rows[n]] * norms[j];
+                cosines[j] = j == rows[n] || norms[j] == 0 ? Double.NEGATIVE_INFINITY : factors.dot(j, factors, rows[n]) / (norm > 0 ? norm : norms[j]);
+                order[j] = j;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(cosines[b], cosines[a]);
+                }
+            });
+            assertEquals(6, similar[n].length);
+            for (int m = 0; m < 6; ++m) assertEquals(cosines[order[m]], cosines[similar[n][m]], 1e-12);
+        }
+    }
+
+    @Test
+    public void cachedAnswersAreReusedWhenCompleteOrLongEnough() {
+        FactorMatrix factors = factors(12, 4, Precision.DOUBLE, 1, 11);
+        factors.setRow(3, new double[4]);
+        double[] norms = ModelSnapshot.norms(factors);
+        NeighborCache cache = new NeighborCache(10);
+
+        // asking for more than exist leaves the 10 rows with a non-zero norm other than the query
+        int[] all = ModelSnapshot.similar(factors, norms, new int[] { 0 }, 20, cache)[0];
+        assertEquals(10, all.length);
+        assertSame(all, cache.get(0));
+        assertSame(all, ModelSnapshot.similar(factors, norms, new int[] { 0 }, 30, cache)[0]);
+        // the zero row itself has every row with a non-zero norm as candidates
+        int[] ofZero = ModelSnapshot.similar(factors, norms, new int[] { 3 }, 20, cache)[0];
+        assertEquals(11, ofZero.length);
+        assertSame(ofZero, ModelSnapshot.similar(factors, norms, new int[] { 3 }, 20, cache)[0]);
+
+        // a longer answer serves a shorter request by its prefix
+        int[] three = ModelSnapshot.similar(factors, norms, new int[] { 0 }, 3, cache)[0];
+        assertArrayEquals(Arrays.copyOf(all, 3), three);
+
+        // a short incomplete answer is recomputed
+        NeighborCache shortCache = new NeighborCache(10);
+        int[] two = ModelSnapshot.similar(factors, norms, new int[] { 5 }, 2, shortCache)[0];
+        int[] five = ModelSnapshot.similar(factors, norms, new int[] { 5 }, 5, shortCache)[0];
+        assertEquals(5, five.length);
+        assertArrayEquals(two, Arrays.copyOf(five, 2));
+        assertSame(five, shortCache.get(5));
+    }
+
+    @Test
+    public void neighborCacheEvictsTheLeastRecentlyUsedRow() {
+        NeighborCache cache = new NeighborCache(2);
+        int[] a = { 1 }, b = { 2 }, c = { 3 };
+        cache.put(0, a);
+        cache.put(1, b);
+        assertSame(a, cache.get(0));
+        cache.put(2, c);
+        assertEquals(2, cache.size());
+        assertSame(a, cache.get(0));
+        assertNull(cache.get(1));
+        assertSame(c, cache.get(2));
+    }
+}
@@ -0,0 +1,41 @@
+package com.matrix_factorization;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.matrix_factorization.TestData.*;
+import static org.junit.Assert.*;
+
+public class Nd4jMatrixFactorizationTest {
+    @Test
+    public void growingOneRowAtATimeKeepsRatingsAndFactors() {
+        double[][] r = denseRatings(10, 8, 30, 1);
+        Nd4jMatrixFactorization model = new Nd4jMatrixFactorization(r, 3, 0.1, 40, false);
+        double[][] predicted = model.predict();
+
+        Random random = new Random(2);
+        int users = 10, items = 8;
+        double[][] expected = new double[60][40];
+        for (int u = 0; u < 10; ++u) System.arraycopy(r[u], 0, expected[u], 0, 8);
+        while (users < 60) {
+            double[] user = new double[items];
+            user[random.nextInt(items)] = 1 + random.nextInt(5);
+            System.arraycopy(user, 0, expected[users], 0, items);
+            model.addUser(user);
+            ++users;
+            if (items < 40) {
+                model.addEmptyItem();
+                ++items;
+            }
+        }
+        assertSameMatrix(expected, model.getR(), 0);
+
+        // the views over the grown storage still hold the old factors
+        double[][] after = model.predict();
+        assertEquals(60, after.length);
+        assertEquals(40, after[0].length);
+        for (int u = 0; u < 10; ++u)
+            for (int i = 0; i < 8; ++i) assertEquals(predicted[u][i], after[u][i], 1e-6);
+    }
+}
@@ -0,0 +1,112 @@
+package com.matrix_factorization;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import static com.matrix_factorization.TestData.*;
+import static org.junit.Assert.*;
+
+public class ParallelAlternatingLeastSquaresTest {
+    private static final int USERS = 300, ITEMS = 120, FACTORS = 6;
+    private static final double LAMBDA = 0.1, ALPHA = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ParallelAlternatingLeastSquares parallel = new ParallelAlternatingLeastSquares(4);
+
+    @After
+    public void shutdown() {
+        this.parallel.shutdown();
+    }
+
+    private static InteractionMatrix ratings() {
+        return skewedRatings(USERS, ITEMS, 3000, 1);
+    }
+
+    private static FactorMatrix factors(int rows, long seed) {
+        return TestData.factors(rows, FACTORS, Precision.DOUBLE, 0.1, seed);
+    }
+
+    @Test
+    public void sweepsMatchTheSerialEngine() {
+        InteractionMatrix r = ratings();
+        DefaultAlternatingLeastSquares serial = new DefaultAlternatingLeastSquares();
+        FactorMatrix x1 = factors(USERS, 2), y1 = factors(ITEMS, 3), x2 = factors(USERS, 2), y2 = factors(ITEMS, 3);
+        for (int step = 0; step < 3; ++step) {
+            serial.optimizeUser(x1, y1, r, USERS, FACTORS, LAMBDA, ALPHA);
+            serial.optimizeItem(x1, y1, r, ITEMS, FACTORS, LAMBDA, ALPHA);
+            this.parallel.optimizeUser(x2, y2, r, USERS, FACTORS, LAMBDA, ALPHA);
+            this.parallel.optimizeItem(x2, y2, r, ITEMS, FACTORS, LAMBDA, ALPHA);
+        }
+        assertSameFactors(x1, x2, 1e-12);
+        assertSameFactors(y1, y2, 1e-12);
+        assertEquals(serial.loss(x1, y1, r, LAMBDA, ALPHA)[3], this.parallel.loss(x2, y2, r, LAMBDA, ALPHA)[3], 1e-9);
+    }
+
+    @Test
+    public void rowSubsetsMatchTheSerialEngine() {
+        InteractionMatrix r = ratings();
+        DefaultAlternatingLeastSquares serial = new DefaultAlternatingLeastSquares();
+        FactorMatrix x1 = factors(USERS, 4), y1 = factors(ITEMS, 5), x2 = factors(USERS, 4), y2 = factors(ITEMS, 5);
+        int[] users = { 0, 1, 7, 42, 100, 299 }, items = { 3, 50, 119 };
+        serial.optimizeUsers(x1, y1, r, users, FACTORS, LAMBDA, ALPHA);
+        serial.optimizeItems(x1, y1, r, items, FACTORS, LAMBDA, ALPHA);
+        this.parallel.optimizeUsers(x2, y2, r, users, FACTORS, LAMBDA, ALPHA);
+        this.parallel.optimizeItems(x2, y2, r, items, FACTORS, LAMBDA, ALPHA);
+        assertSameFactors(x1, x2, 1e-12);
+        assertSameFactors(y1, y2, 1e-12);
+    }
+
+    @Test
+    public void modelTrainsTheSameWithThreads() throws IOException {
+        double[][] r = denseRatings(80, 50, 800, 6);
+        // the initial factors are random, so both models start from one saved copy
+        String path = this.folder.newFile("start.mf").getPath();
+        new DefaultMatrixFactorization(r, 5, LAMBDA, ALPHA, false).saveModel(path);
+        DefaultMatrixFactorization serial = new DefaultMatrixFactorization(path), threaded = new DefaultMatrixFactorization(path);
+        serial.setPrintLog(false);
+        threaded.setPrintLog(false);
+        serial.fit(3);
+        threaded.fit(3, 3);
+        threaded.shutdown();
+        assertSameMatrix(serial.predict(), threaded.predict(), 1e-9);
+    }
+
+    /** Live workers of pools with the given parallelism. */
+    private static List<Thread> workers(int parallelism) {
+        List<Thread> workers = new ArrayList<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool().getParallelism() == parallelism)
+                workers.add(thread);
+        return workers;
+    }
+
+    @Test
+    public void modelShutdownReleasesTheWorkers() throws InterruptedException {
+        // a parallelism no other pool of the test run has
+        int nThreads = 7;
+        DefaultMatrixFactorization model = new DefaultMatrixFactorization(denseRatings(80, 50, 800, 7), 5, LAMBDA, ALPHA, false);
+        model.fit(1, nThreads);
+        List<Thread> workers = workers(nThreads);
+        assertFalse(workers.isEmpty());
+        model.shutdown();
+        for (Thread worker : workers) {
+            worker.join(10000);
+            assertFalse(worker.isAlive());
+        }
+        // the model keeps training, serially, and with a new pool when asked
+        model.fit(1);
+        assertTrue(workers(nThreads).isEmpty());
+        model.fit(1, nThreads);
+        assertFalse(workers(nThreads).isEmpty());
+        model.shutdown();
+    }
+}
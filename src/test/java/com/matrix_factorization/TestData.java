@@ -0,0 +1,56 @@
+package com.matrix_factorization;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/** Seeded random ratings and factors, and the comparisons the tests share. */
+final class TestData {
+    private TestData() {
+    }
+
+    /** n random ratings of 1 to 5, later ones overwriting earlier ones in the same cell, compacted. */
+    static InteractionMatrix ratings(int rows, int cols, int n, long seed) {
+        return InteractionMatrix.fromDense(denseRatings(rows, cols, n, seed));
+    }
+
+    /** Same as {@link #ratings} with a tenth of the ratings on the first five users, so rows differ widely in cost. */
+    static InteractionMatrix skewedRatings(int rows, int cols, int n, long seed) {
+        Random random = new Random(seed);
+        InteractionMatrix r = new InteractionMatrix(rows, cols);
+        for (int k = 0; k < n; ++k) {
+            int u = random.nextInt(10) == 0 ? random.nextInt(Math.min(5, rows)) : random.nextInt(rows);
+            r.put(u, random.nextInt(cols), 1 + random.nextInt(5));
+        }
+        r.compact();
+        return r;
+    }
+
+    static double[][] denseRatings(int rows, int cols, int n, long seed) {
+        Random random = new Random(seed);
+        double[][] r = new double[rows][cols];
+        for (int k = 0; k < n; ++k) r[random.nextInt(rows)][random.nextInt(cols)] = 1 + random.nextInt(5);
+        return r;
+    }
+
+    /** Gaussian factors with standard deviation scale. */
+    static FactorMatrix factors(int rows, int cols, Precision precision, double scale, long seed) {
+        Random random = new Random(seed);
+        FactorMatrix factors = FactorMatrix.create(rows, cols, precision);
+        for (int i = 0; i < rows; ++i)
+            for (int f = 0; f < cols; ++f) factors.set(i, f, scale * random.nextGaussian());
+        return factors;
+    }
+
+    static void assertSameFactors(FactorMatrix expected, FactorMatrix actual, double tolerance) {
+        assertEquals(expected.rows(), actual.rows());
+        assertEquals(expected.cols(), actual.cols());
+        for (int i = 0; i < expected.rows(); ++i)
+            for (int f = 0; f < expected.cols(); ++f) assertEquals(expected.get(i, f), actual.get(i, f), tolerance);
+    }
+
+    static void assertSameMatrix(double[][] expected, double[][] actual, double tolerance) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i) assertArrayEquals(expected[i], actual[i], tolerance);
+    }
+}
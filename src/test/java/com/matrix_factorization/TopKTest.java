@@ -0,0 +1,76 @@
+package com.matrix_factorization;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TopKTest {
+    /** Scores of the best k by a full sort, best first. */
+    private static double[] best(double[] scores, int k) {
+        double[] sorted = scores.clone();
+        Arrays.sort(sorted);
+        double[] best = new double[Math.min(k, sorted.length)];
+        for (int n = 0; n < best.length; ++n) best[n] = sorted[sorted.length - 1 - n];
+        return best;
+    }
+
+    private static void assertTop(double[] scores, int k, int[] items) {
+        double[] best = best(scores, k);
+        assertEquals(best.length, items.length);
+        boolean[] seen = new boolean[scores.length];
+        for (int n = 0; n < items.length; ++n) {
+            assertFalse(seen[items[n]]);
+            seen[items[n]] = true;
+            assertEquals(best[n], scores[items[n]], 0);
+        }
+    }
+
+    @Test
+    public void matchesAFullSort() {
+        Random random = new Random(1);
+        TopK top = new TopK(10);
+        for (int trial = 0; trial < 50; ++trial) {
+            double[] scores = new double[1 + random.nextInt(100)];
+            for (int i = 0; i < scores.length; ++i) scores[i] = random.nextGaussian();
+            for (int i = 0; i < scores.length; ++i) top.offer(i, scores[i]);
+            assertTop(scores, 10, top.poll());
+            assertEquals(0, top.size());
+        }
+    }
+
+    @Test
+    public void keepsEveryItemWhenKExceedsThem() {
+        TopK top = new TopK(8);
+        double[] scores = { 0.5, -1, 3, 2 };
+        for (int i = 0; i < scores.length; ++i) top.offer(i, scores[i]);
+        assertEquals(Double.NEGATIVE_INFINITY, top.threshold(), 0);
+        assertArrayEquals(new int[] { 2, 3, 0, 1 }, top.poll());
+    }
+
+    @Test
+    public void handlesTies() {
+        Random random = new Random(2);
+        TopK top = new TopK(7);
+        for (int trial = 0; trial < 50; ++trial) {
+            // few distinct scores, so ties straddle the cut
+            double[] scores = new double[20 + random.nextInt(20)];
+            for (int i = 0; i < scores.length; ++i) scores[i] = random.nextInt(4);
+            for (int i = 0; i < scores.length; ++i) top.offer(i, scores[i]);
+            assertEquals(best(scores, 7)[6], top.threshold(), 0);
+            assertTop(scores, 7, top.poll());
+        }
+        top.clear();
+        for (int i = 0; i < 20; ++i) top.offer(i, 1);
+        assertEquals(7, top.poll().length);
+    }
+
+    @Test
+    public void zeroKeepsNothing() {
+        TopK top = new TopK(0);
+        top.offer(0, 1);
+        assertEquals(0, top.poll().length);
+    }
+}